@@ -0,0 +1,120 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.map.model.FileType;
+import net.soundvibe.lasher.util.FileSupport;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of key hashes of a time bucket, persisted beside the bucket when it is closed.
+ * The persisted file is deleted on the first change after it was loaded, so a stale filter is never loaded.
+ */
+final class BloomFilter {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final Path file;
+    private volatile boolean persisted;
+
+    BloomFilter(Path dir, long expectedKeys) {
+        this(dir, numBits(expectedKeys), numHashes(expectedKeys), false);
+    }
+
+    private BloomFilter(Path dir, long numBits, int numHashes, boolean persisted) {
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.bits = new AtomicLongArray((int) ((numBits + 63L) >>> 6));
+        this.file = dir.resolve(FileType.BLOOM.filename);
+        this.persisted = persisted;
+    }
+
+    /**
+     * @return the filter persisted in the directory, or null if there is none and it has to be rebuilt
+     */
+    static BloomFilter load(Path dir) {
+        var file = dir.resolve(FileType.BLOOM.filename);
+        if (Files.notExists(file)) return null;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final var filter = new BloomFilter(dir, in.readLong(), in.readInt(), true);
+            for (int i = 0; i < filter.bits.length(); i++) {
+                filter.bits.set(i, in.readLong());
+            }
+            return filter;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void add(long hash) {
+        if (persisted) {
+            invalidate();
+        }
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            final long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            final long current = bits.get(word);
+            if ((current & mask) == 0L) {
+                bits.getAndUpdate(word, value -> value | mask);
+            }
+        }
+    }
+
+    /**
+     * @return false if the key hash was never added, true if it might have been
+     */
+    boolean mightContain(long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            final long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void persist() {
+        if (persisted) return;
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(numBits);
+            out.writeInt(numHashes);
+            for (int i = 0; i < bits.length(); i++) {
+                out.writeLong(bits.get(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        FileSupport.replaceDurably(tmp, file);
+        persisted = true;
+    }
+
+    private synchronized void invalidate() {
+        if (!persisted) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        persisted = false;
+    }
+
+    private static long numBits(long expectedKeys) {
+        final long n = Math.max(1L, expectedKeys);
+        return Math.max(64L, (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2))));
+    }
+
+    private static int numHashes(long expectedKeys) {
+        final long n = Math.max(1L, expectedKeys);
+        return Math.max(1, (int) Math.round((double) numBits(n) / n * Math.log(2)));
+    }
+}
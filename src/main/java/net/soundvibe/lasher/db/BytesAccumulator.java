@@ -0,0 +1,14 @@
+package net.soundvibe.lasher.db;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Folds raw key and value bytes of matching records into a mutable partial result of a shard,
+ * see {@link LasherDB#aggregate(BytesPredicate, java.util.function.Supplier, BytesAccumulator, java.util.function.BinaryOperator)}.
+ * Views are only valid during the call, so bytes needed later must be copied.
+ */
+@FunctionalInterface
+public interface BytesAccumulator<A> {
+
+	void accept(A partial, ByteBuffer key, ByteBuffer value);
+}
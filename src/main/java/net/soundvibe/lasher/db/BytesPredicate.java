@@ -0,0 +1,76 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.util.BytesSupport;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Predicate on raw key and value bytes, tested by scans of {@link LasherDB} against read-only views of records
+ * in the mapped data files, so records which don't match are never copied or deserialized.
+ * Views are only valid during the call and their positions should not be changed, use absolute gets instead.
+ */
+@FunctionalInterface
+public interface BytesPredicate {
+
+	/**
+	 * @param key remaining bytes of the key
+	 * @param value remaining bytes of the value
+	 */
+	boolean test(ByteBuffer key, ByteBuffer value);
+
+	default BytesPredicate and(BytesPredicate other) {
+		Objects.requireNonNull(other, "other cannot be null");
+		return (key, value) -> test(key, value) && other.test(key, value);
+	}
+
+	default BytesPredicate or(BytesPredicate other) {
+		Objects.requireNonNull(other, "other cannot be null");
+		return (key, value) -> test(key, value) || other.test(key, value);
+	}
+
+	default BytesPredicate negate() {
+		return (key, value) -> !test(key, value);
+	}
+
+	static BytesPredicate all() {
+		return (key, value) -> true;
+	}
+
+	/**
+	 * Matches keys starting with the prefix.
+	 */
+	static BytesPredicate keyPrefix(byte[] prefix) {
+		Objects.requireNonNull(prefix, "prefix cannot be null");
+		return (key, value) -> regionEquals(key, 0, prefix);
+	}
+
+	/**
+	 * Matches values containing the given bytes at the offset, e.g. a fixed width field of a serialized value.
+	 */
+	static BytesPredicate valueMatches(int offset, byte[] bytes) {
+		Objects.requireNonNull(bytes, "bytes cannot be null");
+		return (key, value) -> regionEquals(value, offset, bytes);
+	}
+
+	/**
+	 * Matches values containing a long in the range [from, to) at the offset,
+	 * written in the byte order of {@link net.soundvibe.lasher.serde.LongSerde}.
+	 */
+	static BytesPredicate longValueBetween(int offset, long from, long to) {
+		return (key, value) -> {
+			if (value == null || value.remaining() < offset + Long.BYTES) return false;
+			final long actual = BytesSupport.getLong(value, value.position() + offset);
+			return actual >= from && actual < to;
+		};
+	}
+
+	private static boolean regionEquals(ByteBuffer buffer, int offset, byte[] bytes) {
+		if (buffer == null || buffer.remaining() < offset + bytes.length) return false;
+		final int start = buffer.position() + offset;
+		for (int i = 0; i < bytes.length; i++) {
+			if (buffer.get(start + i) != bytes[i]) return false;
+		}
+		return true;
+	}
+}
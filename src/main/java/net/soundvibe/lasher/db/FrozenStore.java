@@ -0,0 +1,454 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.map.model.FileType;
+import net.soundvibe.lasher.serde.Serde;
+import net.soundvibe.lasher.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Immutable store of a time bucket which is no longer written, packed densely into a single file.
+ * Layout: blocks of records {@code [int key length][int value length][key][value]}, a block table, first blocks
+ * of partitions, key hash groups, index entries {@code [long key hash][int block][int offset in block]} and a footer.
+ */
+final class FrozenStore implements AutoCloseable {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int RECORD_HEADER = Integer.BYTES * 2;
+    private static final int BLOCK_ENTRY = Long.BYTES + Integer.BYTES * 2;
+    private static final int INDEX_ENTRY = Long.BYTES + Integer.BYTES * 2;
+    private static final int FOOTER = Long.BYTES * 4 + Integer.BYTES * 5;
+    private static final int MAGIC = 0x4C465A31;
+
+    private final FileChannel channel;
+    private final long size;
+    private final boolean compressed;
+    private final long[] blockPositions;
+    private final int[] storedLengths;
+    private final int[] rawLengths;
+    private final int[] partitionStarts;
+    private final long groupsPos;
+    private final int groups;
+    private final long entriesPos;
+
+    private FrozenStore(FileChannel channel) throws IOException {
+        this.channel = channel;
+        final var footer = read(channel.size() - FOOTER, FOOTER);
+        this.size = footer.getLong();
+        final long blocksPos = footer.getLong();
+        this.groupsPos = footer.getLong();
+        this.entriesPos = footer.getLong();
+        final int blocks = footer.getInt();
+        final int partitions = footer.getInt();
+        this.groups = footer.getInt();
+        this.compressed = footer.getInt() == 1;
+        if (footer.getInt() != MAGIC) {
+            throw new IOException("Not a frozen bucket file");
+        }
+        this.blockPositions = new long[blocks];
+        this.storedLengths = new int[blocks];
+        this.rawLengths = new int[blocks];
+        this.partitionStarts = new int[partitions + 1];
+        final var table = read(blocksPos, blocks * BLOCK_ENTRY + partitionStarts.length * Integer.BYTES);
+        for (int i = 0; i < blocks; i++) {
+            blockPositions[i] = table.getLong();
+            storedLengths[i] = table.getInt();
+            rawLengths[i] = table.getInt();
+        }
+        for (int i = 0; i < partitionStarts.length; i++) {
+            partitionStarts[i] = table.getInt();
+        }
+    }
+
+    static Path file(Path dir) {
+        return dir.resolve(FileType.FROZEN.filename);
+    }
+
+    /**
+     * @return the store, or null if the bucket was not converted
+     */
+    static FrozenStore load(Path dir) {
+        final var file = file(dir);
+        try {
+            Files.deleteIfExists(tmpFile(file));
+            if (Files.notExists(file)) return null;
+            final var channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                return new FrozenStore(channel);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes entries of each partition into the frozen store file of the bucket directory, replacing it atomically.
+     */
+    static void write(Path dir, List<Iterator<Map.Entry<byte[], byte[]>>> partitions, boolean compressed) {
+        final var file = file(dir);
+        final var tmp = tmpFile(file);
+        try (var out = new BlockWriter(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))), compressed)) {
+            final var partitionStarts = new int[partitions.size() + 1];
+            for (int p = 0; p < partitions.size(); p++) {
+                partitionStarts[p] = out.blocks();
+                partitions.get(p).forEachRemaining(out::add);
+                out.flushBlock();
+            }
+            partitionStarts[partitions.size()] = out.blocks();
+            out.finish(partitionStarts);
+        } catch (IOException e) {
+            deleteQuietly(tmp);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            deleteQuietly(tmp);
+            throw e;
+        }
+        FileSupport.replaceDurably(tmp, file);
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte[] get(byte[] key) {
+        final long hash = Hash.hashBytes(key);
+        final int group = group(hash, groups);
+        try {
+            final var bounds = read(groupsPos + (long) group * Integer.BYTES, Integer.BYTES * 2);
+            final int from = bounds.getInt();
+            final int to = bounds.getInt();
+            if (from == to) return null;
+            final var entries = read(entriesPos + (long) from * INDEX_ENTRY, (to - from) * INDEX_ENTRY);
+            while (entries.hasRemaining()) {
+                final long entryHash = entries.getLong();
+                final int block = entries.getInt();
+                final int offset = entries.getInt();
+                if (entryHash != hash) continue;
+                final byte[] value = readValue(block, offset, key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int partitions() {
+        return partitionStarts.length - 1;
+    }
+
+    /**
+     * @return entries in the order they were written in, reading one block at a time
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        return iterator(0, blockPositions.length);
+    }
+
+    /**
+     * @return entries of the partition in the order they were written in
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator(int partition) {
+        return iterator(partitionStarts[partition], partitionStarts[partition + 1]);
+    }
+
+    private Iterator<Map.Entry<byte[], byte[]>> iterator(int fromBlock, int toBlock) {
+        return new Iterator<>() {
+            int block = fromBlock;
+            ByteBuffer records;
+
+            @Override
+            public boolean hasNext() {
+                while ((records == null || !records.hasRemaining()) && block < toBlock) {
+                    try {
+                        records = ByteBuffer.wrap(readBlock(block++));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return records != null && records.hasRemaining();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                final var key = new byte[records.getInt()];
+                final var value = new byte[records.getInt()];
+                records.get(key);
+                records.get(value);
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    Iterator<byte[]> keyIterator() {
+        final var entries = iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return entries.next().getKey();
+            }
+        };
+    }
+
+    /**
+     * @return a read-only map view of the store
+     */
+    <K, V> Map<K, V> asMap(Serde<K> keySerde, Serde<V> valSerde) {
+        return new AbstractMap<>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public V get(Object key) {
+                final byte[] value = FrozenStore.this.get(keySerde.toBytes((K) key));
+                return value == null ? null : valSerde.fromBytes(value);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return (int) Math.min(Integer.MAX_VALUE, size);
+            }
+
+            @Override
+            public Set<Entry<K, V>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<K, V>> iterator() {
+                        final var entries = FrozenStore.this.iterator();
+                        return new Iterator<>() {
+                            @Override
+                            public boolean hasNext() {
+                                return entries.hasNext();
+                            }
+
+                            @Override
+                            public Entry<K, V> next() {
+                                final var entry = entries.next();
+                                return new SimpleImmutableEntry<>(keySerde.fromBytes(entry.getKey()), valSerde.fromBytes(entry.getValue()));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return (int) Math.min(Integer.MAX_VALUE, size);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] readValue(int block, int offset, byte[] key) throws IOException {
+        final ByteBuffer record;
+        if (compressed) {
+            record = ByteBuffer.wrap(readBlock(block));
+            record.position(offset);
+        } else {
+            final var header = read(blockPositions[block] + offset, RECORD_HEADER);
+            final int keyLength = header.getInt();
+            final int valueLength = header.getInt();
+            if (keyLength != key.length) return null;
+            record = read(blockPositions[block] + offset, RECORD_HEADER + keyLength + valueLength);
+        }
+        final int keyLength = record.getInt();
+        final int valueLength = record.getInt();
+        if (keyLength != key.length) return null;
+        final int keyPos = record.position();
+        if (!Arrays.equals(record.array(), keyPos, keyPos + keyLength, key, 0, key.length)) return null;
+        return Arrays.copyOfRange(record.array(), keyPos + keyLength, keyPos + keyLength + valueLength);
+    }
+
+    private byte[] readBlock(int block) throws IOException {
+        final var stored = read(blockPositions[block], storedLengths[block]).array();
+        if (!compressed) return stored;
+        final var inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            final var raw = new byte[rawLengths[block]];
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                length += inflater.inflate(raw, length, raw.length - length);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block " + block, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        final var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of frozen bucket file at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int group(long hash, int groups) {
+        return (int) (hash & (groups - 1));
+    }
+
+    private static Path tmpFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // the partial file is deleted when the bucket is opened again
+        }
+    }
+
+    private static final class BlockWriter implements AutoCloseable {
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE);
+        private final DataOutputStream blockOut = new DataOutputStream(block);
+        private final List<long[]> blockTable = new ArrayList<>();
+        private long[] hashes = new long[1024];
+        private long[] locations = new long[1024];
+        private int count;
+        private long position;
+
+        BlockWriter(DataOutputStream out, boolean compressed) {
+            this.out = out;
+            this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+        }
+
+        int blocks() {
+            return blockTable.size();
+        }
+
+        void add(Map.Entry<byte[], byte[]> entry) {
+            try {
+                if (block.size() > 0 && block.size() + RECORD_HEADER + entry.getKey().length + entry.getValue().length > BLOCK_SIZE) {
+                    flushBlock();
+                }
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                    locations = Arrays.copyOf(locations, count * 2);
+                }
+                hashes[count] = Hash.hashBytes(entry.getKey());
+                locations[count] = ((long) blockTable.size() << 32) | block.size();
+                count++;
+                blockOut.writeInt(entry.getKey().length);
+                blockOut.writeInt(entry.getValue().length);
+                blockOut.write(entry.getKey());
+                blockOut.write(entry.getValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void flushBlock() throws IOException {
+            if (block.size() == 0) return;
+            final int stored;
+            if (deflater == null) {
+                block.writeTo(out);
+                stored = block.size();
+            } else {
+                deflater.reset();
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                final var buffer = new byte[BLOCK_SIZE];
+                int length = 0;
+                while (!deflater.finished()) {
+                    final int deflated = deflater.deflate(buffer);
+                    out.write(buffer, 0, deflated);
+                    length += deflated;
+                }
+                stored = length;
+            }
+            blockTable.add(new long[]{position, stored, block.size()});
+            position += stored;
+            block.reset();
+        }
+
+        void finish(int[] partitionStarts) throws IOException {
+            final long blocksPos = position;
+            for (var entry : blockTable) {
+                out.writeLong(entry[0]);
+                out.writeInt((int) entry[1]);
+                out.writeInt((int) entry[2]);
+            }
+            for (int start : partitionStarts) {
+                out.writeInt(start);
+            }
+            position += (long) blockTable.size() * BLOCK_ENTRY + (long) partitionStarts.length * Integer.BYTES;
+
+            final int groups = Integer.highestOneBit(Math.max(1, count));
+            final var starts = new int[groups + 1];
+            for (int i = 0; i < count; i++) {
+                starts[group(hashes[i], groups) + 1]++;
+            }
+            for (int g = 0; g < groups; g++) {
+                starts[g + 1] += starts[g];
+            }
+            final long groupsPos = position;
+            for (int start : starts) {
+                out.writeInt(start);
+            }
+            position += (long) starts.length * Integer.BYTES;
+
+            final var order = new int[count];
+            final var next = Arrays.copyOf(starts, groups);
+            for (int i = 0; i < count; i++) {
+                order[next[group(hashes[i], groups)]++] = i;
+            }
+            final long entriesPos = position;
+            for (int i : order) {
+                out.writeLong(hashes[i]);
+                out.writeLong(locations[i]);
+            }
+
+            out.writeLong(count);
+            out.writeLong(blocksPos);
+            out.writeLong(groupsPos);
+            out.writeLong(entriesPos);
+            out.writeInt(blockTable.size());
+            out.writeInt(partitionStarts.length - 1);
+            out.writeInt(groups);
+            out.writeInt(deflater != null ? 1 : 0);
+            out.writeInt(MAGIC);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+}
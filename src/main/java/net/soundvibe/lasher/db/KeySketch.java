@@ -0,0 +1,210 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.map.model.FileType;
+import net.soundvibe.lasher.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog of distinct keys and count-min sketch of puts per key of a time bucket, persisted like a {@link BloomFilter}.
+ */
+final class KeySketch {
+
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024;
+    static final int TOP_KEYS = 64;
+
+    private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+    private final Map<ByteBuffer, Long> topKeys = new HashMap<>();
+    private final Path file;
+    private volatile long topKeysThreshold;
+    private volatile boolean persisted;
+
+    /**
+     * @param dir bucket directory the sketch is persisted in, or null if it is not persisted
+     */
+    KeySketch(Path dir) {
+        this.file = dir == null ? null : dir.resolve(FileType.SKETCH.filename);
+    }
+
+    /**
+     * @return the sketch persisted in the directory, or null if there is none and it has to be rebuilt
+     */
+    static KeySketch load(Path dir) {
+        var file = dir.resolve(FileType.SKETCH.filename);
+        if (Files.notExists(file)) return null;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final var sketch = new KeySketch(dir);
+            for (int i = 0; i < REGISTERS; i++) {
+                sketch.registers.set(i, in.readByte());
+            }
+            for (int i = 0; i < DEPTH * WIDTH; i++) {
+                sketch.counters.set(i, in.readInt());
+            }
+            final int keys = in.readInt();
+            for (int i = 0; i < keys; i++) {
+                final var key = new byte[in.readInt()];
+                in.readFully(key);
+                sketch.topKeys.put(ByteBuffer.wrap(key), in.readLong());
+            }
+            sketch.updateThreshold();
+            sketch.persisted = true;
+            return sketch;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Counts a put of the key.
+     * @param hash hash of the key bytes, see {@link Hash#hashBytes(byte[])}
+     */
+    void add(byte[] key, long hash) {
+        if (persisted) {
+            invalidate();
+        }
+        final int register = (int) (hash >>> (Long.SIZE - PRECISION));
+        final int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (registers.get(register) < rank) {
+            registers.accumulateAndGet(register, rank, Math::max);
+        }
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        long count = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            count = Math.min(count, counters.incrementAndGet(counter(i, h1, h2)));
+        }
+        if (count > topKeysThreshold) {
+            addTopKey(ByteBuffer.wrap(key), count);
+        }
+    }
+
+    /**
+     * @return estimated number of distinct keys
+     */
+    long distinct() {
+        double sum = 0d;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            final int value = registers.get(i);
+            sum += 1d / (1L << value);
+            if (value == 0) zeros++;
+        }
+        final double alpha = 0.7213d / (1d + 1.079d / REGISTERS);
+        final double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5d * REGISTERS && zeros > 0) {
+            return Math.round(REGISTERS * Math.log((double) REGISTERS / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return estimated number of puts of the key, which is never less than the actual number
+     */
+    long count(byte[] key, long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        long count = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            count = Math.min(count, counters.get(counter(i, h1, h2)));
+        }
+        return count;
+    }
+
+    /**
+     * @return keys put most often, which are candidates for the top keys of merged sketches too
+     */
+    synchronized List<byte[]> topKeys() {
+        var result = new ArrayList<byte[]>(topKeys.size());
+        for (var key : topKeys.keySet()) {
+            result.add(key.array());
+        }
+        return result;
+    }
+
+    void mergeInto(KeySketch target) {
+        for (int i = 0; i < REGISTERS; i++) {
+            final int value = registers.get(i);
+            if (target.registers.get(i) < value) {
+                target.registers.accumulateAndGet(i, value, Math::max);
+            }
+        }
+        for (int i = 0; i < DEPTH * WIDTH; i++) {
+            target.counters.addAndGet(i, counters.get(i));
+        }
+        final var keys = topKeys();
+        synchronized (target) {
+            for (var key : keys) {
+                target.topKeys.putIfAbsent(ByteBuffer.wrap(key), 0L);
+            }
+            target.refreshTopKeys();
+        }
+    }
+
+    synchronized void persist() {
+        if (persisted || file == null) return;
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (int i = 0; i < REGISTERS; i++) {
+                out.writeByte(registers.get(i));
+            }
+            for (int i = 0; i < DEPTH * WIDTH; i++) {
+                out.writeInt(counters.get(i));
+            }
+            out.writeInt(topKeys.size());
+            for (var entry : topKeys.entrySet()) {
+                out.writeInt(entry.getKey().capacity());
+                out.write(entry.getKey().array());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        FileSupport.replaceDurably(tmp, file);
+        persisted = true;
+    }
+
+    private synchronized void invalidate() {
+        if (!persisted) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        persisted = false;
+    }
+
+    private synchronized void addTopKey(ByteBuffer key, long count) {
+        topKeys.merge(key, count, Math::max);
+        if (topKeys.size() > TOP_KEYS) {
+            topKeys.remove(Collections.min(topKeys.entrySet(), Map.Entry.comparingByValue()).getKey());
+        }
+        updateThreshold();
+    }
+
+    /**
+     * Re-estimates counts of the top keys after counters were merged.
+     */
+    private synchronized void refreshTopKeys() {
+        topKeys.replaceAll((key, count) -> count(key.array(), Hash.hashBytes(key.array())));
+        while (topKeys.size() > TOP_KEYS) {
+            topKeys.remove(Collections.min(topKeys.entrySet(), Map.Entry.comparingByValue()).getKey());
+        }
+        updateThreshold();
+    }
+
+    private synchronized void updateThreshold() {
+        topKeysThreshold = topKeys.size() < TOP_KEYS ? 0L : Collections.min(topKeys.values());
+    }
+
+    private static int counter(int row, int h1, int h2) {
+        return row * WIDTH + ((h1 + (row + 1) * h2) & (WIDTH - 1));
+    }
+}
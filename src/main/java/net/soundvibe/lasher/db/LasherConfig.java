@@ -0,0 +1,167 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.map.core.*;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.*;
+import java.util.regex.Pattern;
+
+/**
+ * Configuration of a {@link LasherDB}.
+ * @param shards number of local shards
+ * @param indexFileLength initial length of each shard index file in bytes
+ * @param dataFileLength initial length of each shard data file in bytes
+ * @param asyncExecutor executor used by async operations, or null to use a default executor owned by the store,
+ *                      which is created on the first async call
+ * @param lockMetrics if true, shard lock wait times, hold times and queue lengths are published to Micrometer
+ * @param versioned if true, a new store keeps a version in every record, enabling version based conditional writes.
+ *                  It costs 8 bytes per record and can't be enabled for an existing store created without it.
+ * @param expiry if true, a new store keeps an expiration time in every record, enabling puts with TTL.
+ *               It costs 8 bytes per record and can't be enabled for an existing store created without it.
+ * @param sweepInterval how often expired entries are swept from stores with expiry
+ * @param maxEntries maximum number of entries, or 0 if the store is unbounded. The bound is split evenly between
+ *                   shards and inserts into a full shard evict entries which were not read recently.
+ * @param orderedBy sort key extractor of the ordered index used by range and prefix scans, or null if the store
+ *                  has no ordered index. Keys for which the extractor returns null are not indexed.
+ * @param secondaryIndexes value extractors of secondary indexes by index names, queried by
+ *                         {@link LasherDB#getBy(String, byte[])}. Values for which an extractor returns null are not indexed.
+ */
+public record LasherConfig(int shards, long indexFileLength, long dataFileLength, Executor asyncExecutor,
+						   boolean lockMetrics, boolean versioned, boolean expiry, Duration sweepInterval,
+						   long maxEntries, UnaryOperator<byte[]> orderedBy,
+						   Map<String, UnaryOperator<byte[]>> secondaryIndexes) {
+
+	private static final Pattern INDEX_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+	public LasherConfig {
+		if (shards < 1) {
+			throw new IllegalArgumentException("shards must be positive: " + shards);
+		}
+		if (sweepInterval == null || sweepInterval.isNegative() || sweepInterval.isZero()) {
+			throw new IllegalArgumentException("sweepInterval must be positive: " + sweepInterval);
+		}
+		if (maxEntries < 0L) {
+			throw new IllegalArgumentException("maxEntries must not be negative: " + maxEntries);
+		}
+		for (var name : secondaryIndexes.keySet()) {
+			if (!INDEX_NAME.matcher(name).matches()) {
+				throw new IllegalArgumentException("Secondary index name must consist of letters, digits, '_' and '-': " + name);
+			}
+		}
+		secondaryIndexes = Map.copyOf(secondaryIndexes);
+	}
+
+	public static LasherConfig defaults() {
+		return new LasherConfig(Math.max(2, Runtime.getRuntime().availableProcessors()),
+				Lasher.MB_32, Lasher.MB_32, null, false, false, false, Duration.ofSeconds(30), 0L, null, Map.of());
+	}
+
+	public LasherConfig withShards(int shards) {
+		return with(b -> b.shards = shards);
+	}
+
+	public LasherConfig withFileLengths(long indexFileLength, long dataFileLength) {
+		return with(b -> {
+			b.indexFileLength = indexFileLength;
+			b.dataFileLength = dataFileLength;
+		});
+	}
+
+	public LasherConfig withAsyncExecutor(Executor asyncExecutor) {
+		return with(b -> b.asyncExecutor = asyncExecutor);
+	}
+
+	public LasherConfig withLockMetrics(boolean lockMetrics) {
+		return with(b -> b.lockMetrics = lockMetrics);
+	}
+
+	public LasherConfig withVersioning(boolean versioned) {
+		return with(b -> b.versioned = versioned);
+	}
+
+	public LasherConfig withExpiry(boolean expiry) {
+		return with(b -> b.expiry = expiry);
+	}
+
+	public LasherConfig withSweepInterval(Duration sweepInterval) {
+		return with(b -> b.sweepInterval = sweepInterval);
+	}
+
+	public LasherConfig withMaxEntries(long maxEntries) {
+		return with(b -> b.maxEntries = maxEntries);
+	}
+
+	/**
+	 * Keeps keys in an ordered index, so they could be scanned by {@link LasherDB#range(byte[], byte[])}
+	 * and {@link LasherDB#prefix(byte[])} in unsigned lexicographic order.
+	 */
+	public LasherConfig withOrderedIndex() {
+		return withOrderedIndex(OrderedIndex.BY_KEY);
+	}
+
+	/**
+	 * Keeps keys in an ordered index by sort keys extracted from them, with ties ordered by keys.
+	 * The extractor must be deterministic and the same every time the store is opened.
+	 */
+	public LasherConfig withOrderedIndex(UnaryOperator<byte[]> sortKey) {
+		return with(b -> b.orderedBy = sortKey);
+	}
+
+	/**
+	 * Adds a secondary index, which maps values extracted from record values to keys of the records.
+	 * The index is updated together with the records under the shard write lock and is built from existing
+	 * records when the store is opened with it for the first time.
+	 * @param name index name, also used as a directory name
+	 * @param valueExtractor extracts the indexed value from a record value, must be deterministic
+	 */
+	public LasherConfig withSecondaryIndex(String name, UnaryOperator<byte[]> valueExtractor) {
+		return with(b -> {
+			b.secondaryIndexes = new HashMap<>(secondaryIndexes);
+			b.secondaryIndexes.put(name, valueExtractor);
+		});
+	}
+
+	private LasherConfig with(Consumer<Builder> change) {
+		var builder = new Builder(this);
+		change.accept(builder);
+		return builder.build();
+	}
+
+	/**
+	 * Mutable copy of a configuration, so each wither changes only its own components.
+	 */
+	private static final class Builder {
+		private int shards;
+		private long indexFileLength;
+		private long dataFileLength;
+		private Executor asyncExecutor;
+		private boolean lockMetrics;
+		private boolean versioned;
+		private boolean expiry;
+		private Duration sweepInterval;
+		private long maxEntries;
+		private UnaryOperator<byte[]> orderedBy;
+		private Map<String, UnaryOperator<byte[]>> secondaryIndexes;
+
+		private Builder(LasherConfig config) {
+			this.shards = config.shards;
+			this.indexFileLength = config.indexFileLength;
+			this.dataFileLength = config.dataFileLength;
+			this.asyncExecutor = config.asyncExecutor;
+			this.lockMetrics = config.lockMetrics;
+			this.versioned = config.versioned;
+			this.expiry = config.expiry;
+			this.sweepInterval = config.sweepInterval;
+			this.maxEntries = config.maxEntries;
+			this.orderedBy = config.orderedBy;
+			this.secondaryIndexes = config.secondaryIndexes;
+		}
+
+		private LasherConfig build() {
+			return new LasherConfig(shards, indexFileLength, dataFileLength, asyncExecutor, lockMetrics, versioned,
+					expiry, sweepInterval, maxEntries, orderedBy, secondaryIndexes);
+		}
+	}
+}
@@ -2,36 +2,133 @@ package net.soundvibe.lasher.db;
 
 import io.micrometer.core.instrument.*;
 import net.soundvibe.lasher.map.core.*;
-import net.soundvibe.lasher.util.Hash;
+import net.soundvibe.lasher.map.model.*;
+import net.soundvibe.lasher.util.*;
 
-import java.nio.file.Path;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.toList;
 import static net.soundvibe.lasher.util.Constants.*;
 
 public final class LasherDB implements AutoCloseable {
 
 	private final UUID id;
 	private final List<Shard> shards;
+	private final List<ShardQueue> queues;
+	private final Executor configuredExecutor;
+	private ExecutorService ownedExecutor;
+	private boolean executorShutdown;
+	private final ScheduledExecutorService maintenance;
+	private final UnaryOperator<byte[]> orderedBy;
+
+	private static final String SHARD_DIR_PREFIX = "shard_";
+	private static final int SWEEP_SLOTS = 4096;
+	private static final int COMPACTION_SLOTS = 4096;
+	private static final long COMPACTION_CHECK_MILLIS = 1000L;
 
 	public LasherDB(Path baseDir) {
-		this(baseDir, Math.max(2, Runtime.getRuntime().availableProcessors()));
+		this(baseDir, LasherConfig.defaults());
 	}
 
 	public LasherDB(Path baseDir, int shards) {
-		this(baseDir, shards, Lasher.MB_32, Lasher.MB_32);
+		this(baseDir, LasherConfig.defaults().withShards(shards));
 	}
 
 	public LasherDB(Path baseDir, int shards, long indexFileLength, long dataFileLength) {
+		this(baseDir, LasherConfig.defaults()
+				.withShards(shards)
+				.withFileLengths(indexFileLength, dataFileLength));
+	}
+
+	public LasherDB(Path baseDir, LasherConfig config) {
 		this.id = UUID.randomUUID();
 		var tags = Tags.of(Tag.of("lasherId", id.toString()));
-		this.shards = IntStream.range(0, shards)
-				.mapToObj(i -> new Shard(i, baseDir.resolve("shard_" + i), indexFileLength, dataFileLength, tags))
-				.collect(toList());
-		Metrics.gauge("shards", tags, shards);
+		this.shards = new ArrayList<>(config.shards());
+		this.orderedBy = config.orderedBy();
+		var options = storeOptions(config);
+		try {
+			for (int i = 0; i < config.shards(); i++) {
+				shards.add(new Shard(i, baseDir.resolve(SHARD_DIR_PREFIX + i), config.indexFileLength(), config.dataFileLength(),
+						tags, config.lockMetrics(), options, config.secondaryIndexes()));
+			}
+		} catch (RuntimeException e) {
+			shards.forEach(Shard::close);
+			throw e;
+		}
+		this.queues = shards.stream().map(ShardQueue::new).toList();
+		this.configuredExecutor = config.asyncExecutor();
+		this.maintenance = expires() || config.maxEntries() > 0L ?
+				Executors.newSingleThreadScheduledExecutor(ExecutorSupport.daemonThreadFactory("lasher-maintenance")) : null;
+		if (expires()) {
+			scheduleSweeps(config.sweepInterval());
+		}
+		if (config.maxEntries() > 0L) {
+			scheduleCompactions();
+		}
+		Metrics.gauge("shards", tags, config.shards());
+	}
+
+	private static StoreOptions storeOptions(LasherConfig config) {
+		int features = (config.versioned() ? Lasher.FEATURE_VERSIONS : 0) | (config.expiry() ? Lasher.FEATURE_EXPIRY : 0);
+		long shardMaxEntries = (config.maxEntries() + config.shards() - 1L) / config.shards();
+		return new StoreOptions(features, shardMaxEntries, config.orderedBy());
+	}
+
+	/**
+	 * Periodically sweeps every shard in small steps, so the shard write lock is held only briefly at a time.
+	 */
+	private void scheduleSweeps(Duration interval) {
+		maintenance.scheduleWithFixedDelay(() -> {
+			for (var shard : shards) {
+				long idx = 0L;
+				do {
+					idx = shard.sweepExpired(idx, SWEEP_SLOTS);
+				} while (idx != 0L && !maintenance.isShutdown());
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Periodically compacts shards of a bounded store which wasted enough space by evictions, in small steps,
+	 * so writes are not blocked by a rewrite of the whole shard.
+	 */
+	private void scheduleCompactions() {
+		maintenance.scheduleWithFixedDelay(() -> {
+			for (var shard : shards) {
+				boolean continued;
+				do {
+					continued = shard.compactStep(COMPACTION_SLOTS);
+				} while (continued && !maintenance.isShutdown());
+			}
+		}, COMPACTION_CHECK_MILLIS, COMPACTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true if entries of this store could be put with TTL
+	 */
+	public boolean expires() {
+		return shards.get(0).expires();
+	}
+
+	/**
+	 * Puts the entry which is treated as absent once the TTL elapses and is later removed by a background sweeper.
+	 * @throws IllegalStateException if the store was not created with {@link LasherConfig#withExpiry(boolean)}
+	 */
+	public byte[] put(byte[] key, byte[] value, Duration ttl) {
+		requireNonNull(key, KEY_NOT_NULL);
+		requireNonNull(value, VALUE_NOT_NULL);
+		if (ttl.isNegative() || ttl.isZero()) {
+			throw new IllegalArgumentException("ttl must be positive: " + ttl);
+		}
+		final long hash = Hash.hashBytes(key);
+		return shardForHash(hash).put(key, hash, value, System.currentTimeMillis() + ttl.toMillis());
 	}
 
 	public byte[] get(byte[] key) {
@@ -41,6 +138,32 @@ public final class LasherDB implements AutoCloseable {
 		return shard.get(key, hash);
 	}
 
+	/**
+	 * Looks the key up without intermediate arrays and passes a read-only view of the stored value to the reader.
+	 * The view is only valid during the reader call.
+	 * @param key key bytes from the buffer's position to its limit
+	 * @return the reader result or null if the key is absent
+	 */
+	public <T> T get(ByteBuffer key, Function<ByteBuffer, T> reader) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		var shard = shardForHash(hash);
+		return shard.get(key, hash, reader);
+	}
+
+	/**
+	 * Puts remaining bytes of the value buffer under the key, copying them straight into mapped memory.
+	 * @param previousReader reads the previous value from a read-only view, may be null if it is not needed
+	 * @return the previous reader result or null if the key was absent or previousReader is null
+	 */
+	public <T> T put(ByteBuffer key, ByteBuffer value, Function<ByteBuffer, T> previousReader) {
+		requireNonNull(key, KEY_NOT_NULL);
+		requireNonNull(value, VALUE_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		var shard = shardForHash(hash);
+		return shard.put(key, hash, value, previousReader);
+	}
+
 	public byte[] put(byte[] key, byte[] value) {
 		requireNonNull(key, KEY_NOT_NULL);
 		requireNonNull(value, VALUE_NOT_NULL);
@@ -49,6 +172,69 @@ public final class LasherDB implements AutoCloseable {
 		return shard.put(key, hash, value);
 	}
 
+	/**
+	 * Adds delta to the long value of the key, treating an absent key as 0.
+	 * Values are 8 byte longs as written by {@link net.soundvibe.lasher.serde.LongSerde}
+	 * and existing aligned values are updated atomically in place without taking the shard write lock.
+	 * @return the new value
+	 * @throws IllegalStateException if the existing value is not a long
+	 */
+	public long increment(byte[] key, long delta) {
+		return getAndAdd(key, delta) + delta;
+	}
+
+	/**
+	 * @return the previous value, 0 if the key was absent
+	 * @see #increment(byte[], long)
+	 */
+	public long getAndAdd(byte[] key, long delta) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return shardForHash(hash).getAndAdd(key, hash, delta);
+	}
+
+	/**
+	 * Sets the long value of the key if it equals the expected value, treating an absent key as 0.
+	 * @throws IllegalStateException if the existing value is not a long
+	 */
+	public boolean compareAndSet(byte[] key, long expected, long newValue) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return shardForHash(hash).compareAndSet(key, hash, expected, newValue);
+	}
+
+	/**
+	 * @return the value with the version of its record or null if the key is absent
+	 * @throws IllegalStateException if the store was not created with {@link LasherConfig#withVersioning(boolean)}
+	 */
+	public VersionedValue getWithVersion(byte[] key) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return shardForHash(hash).getWithVersion(key, hash);
+	}
+
+	/**
+	 * Replaces the value only if the record still has the version obtained by {@link #getWithVersion(byte[])}.
+	 * Unlike {@link #replace(byte[], byte[], byte[])} it doesn't compare values, so it costs the same for any value size.
+	 * @throws IllegalStateException if the store was not created with {@link LasherConfig#withVersioning(boolean)}
+	 */
+	public boolean replaceIfVersion(byte[] key, long version, byte[] newValue) {
+		requireNonNull(key, KEY_NOT_NULL);
+		requireNonNull(newValue, VALUE_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return shardForHash(hash).replaceIfVersion(key, hash, version, newValue);
+	}
+
+	/**
+	 * Removes the key only if its record still has the version obtained by {@link #getWithVersion(byte[])}.
+	 * @throws IllegalStateException if the store was not created with {@link LasherConfig#withVersioning(boolean)}
+	 */
+	public boolean removeIfVersion(byte[] key, long version) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return shardForHash(hash).removeIfVersion(key, hash, version);
+	}
+
 	public byte[] putIfAbsent(byte[] key, byte[] value) {
 		requireNonNull(key, KEY_NOT_NULL);
 		requireNonNull(value, VALUE_NOT_NULL);
@@ -57,6 +243,20 @@ public final class LasherDB implements AutoCloseable {
 		return shard.putIfAbsent(key, hash, value);
 	}
 
+	/**
+	 * Atomically computes a new value for the key while holding the key's shard lock.
+	 * The remapping function receives the current value, or null if absent, and must not access this store.
+	 * Returning null removes the mapping and returning the very same array it received leaves it untouched.
+	 * @return the new value or null if there is no mapping after the call
+	 */
+	public byte[] compute(byte[] key, UnaryOperator<byte[]> remapping) {
+		requireNonNull(key, KEY_NOT_NULL);
+		requireNonNull(remapping, "remapping function cannot be null");
+		final long hash = Hash.hashBytes(key);
+		var shard = shardForHash(hash);
+		return shard.compute(key, hash, remapping);
+	}
+
 	public byte[] remove(byte[] key) {
 		requireNonNull(key, KEY_NOT_NULL);
 		final long hash = Hash.hashBytes(key);
@@ -89,6 +289,134 @@ public final class LasherDB implements AutoCloseable {
 		return shard.replace(key, hash, value);
 	}
 
+	/**
+	 * Reads values for all given keys, acquiring each involved shard lock once.
+	 * All involved shards are locked together, so the result never observes a partially applied {@link WriteBatch}.
+	 * @return values in the same order as keys, with null for missing keys
+	 */
+	public List<byte[]> getAll(List<byte[]> keys) {
+		var result = new byte[keys.size()][];
+		var batches = batchesByShard(keys);
+		runLocked(batches, 0, false, () -> {
+			for (var batch : batches) {
+				batch.getInto(keys, result);
+			}
+		});
+		return Arrays.asList(result);
+	}
+
+	public void write(WriteBatch batch) {
+		write(batch, false);
+	}
+
+	/**
+	 * Atomically applies all operations of the given batch. Every involved shard is write locked once,
+	 * in shard order, for the whole commit, so concurrent readers see either all or none of the batch.
+	 * Every operation is checked before the first one is applied, so a rejected batch leaves the store unchanged.
+	 * @param sync if true, changes of the involved shards are forced to the storage device before returning
+	 */
+	public void write(WriteBatch batch, boolean sync) {
+		requireNonNull(batch, "batch cannot be null");
+		if (batch.isEmpty()) return;
+		var ops = batch.ops();
+		var keys = new ArrayList<byte[]>(ops.size());
+		var values = new ArrayList<byte[]>(ops.size());
+		var hashes = new long[ops.size()];
+		for (int i = 0; i < hashes.length; i++) {
+			var op = ops.get(i);
+			keys.add(op.key());
+			values.add(op.value());
+			hashes[i] = op.hash();
+		}
+		var batches = batchesByShard(hashes);
+		runLocked(batches, 0, true, () -> {
+			for (var shardBatch : batches) {
+				shardBatch.requireWritable(keys, values);
+			}
+			for (var shardBatch : batches) {
+				shardBatch.putFrom(keys, values);
+			}
+			if (sync) {
+				batches.forEach(shardBatch -> shardBatch.shard().flush());
+			}
+		});
+	}
+
+	/**
+	 * Writes all given entries, acquiring each involved shard lock once.
+	 */
+	public void putAll(Map<byte[], byte[]> entries) {
+		var keys = new ArrayList<byte[]>(entries.size());
+		var values = new ArrayList<byte[]>(entries.size());
+		entries.forEach((k, v) -> {
+			keys.add(requireNonNull(k, KEY_NOT_NULL));
+			values.add(requireNonNull(v, VALUE_NOT_NULL));
+		});
+		for (var batch : batchesByShard(keys)) {
+			batch.putFrom(keys, values);
+		}
+	}
+
+	/**
+	 * Asynchronously reads the value of the key. Concurrent single-key async operations of the same shard
+	 * are coalesced, so they are served by a single task under a single lock acquisition per run of reads or writes.
+	 */
+	public CompletableFuture<byte[]> getAsync(byte[] key) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return queues.get(shardIndex(hash)).get(key, hash, asyncExecutor());
+	}
+
+	/**
+	 * @see #getAsync(byte[])
+	 */
+	public CompletableFuture<byte[]> putAsync(byte[] key, byte[] value) {
+		requireNonNull(key, KEY_NOT_NULL);
+		requireNonNull(value, VALUE_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return queues.get(shardIndex(hash)).write(key, hash, value, asyncExecutor());
+	}
+
+	/**
+	 * @see #getAsync(byte[])
+	 */
+	public CompletableFuture<byte[]> removeAsync(byte[] key) {
+		requireNonNull(key, KEY_NOT_NULL);
+		final long hash = Hash.hashBytes(key);
+		return queues.get(shardIndex(hash)).write(key, hash, null, asyncExecutor());
+	}
+
+	/**
+	 * Asynchronously reads values for all given keys. Keys are coalesced per shard,
+	 * so each involved shard is read by a single task under a single lock acquisition.
+	 * @return future of values in the same order as keys, with null for missing keys
+	 */
+	public CompletableFuture<List<byte[]>> getAllAsync(List<byte[]> keys) {
+		var result = new byte[keys.size()][];
+		var futures = batchesByShard(keys).stream()
+				.map(batch -> CompletableFuture.runAsync(() -> batch.getInto(keys, result), asyncExecutor()))
+				.toArray(CompletableFuture[]::new);
+		return CompletableFuture.allOf(futures)
+				.thenApply(ignored -> Arrays.asList(result));
+	}
+
+	/**
+	 * Asynchronously writes all given entries. Entries are coalesced per shard,
+	 * so each involved shard is written by a single task under a single lock acquisition.
+	 */
+	public CompletableFuture<Void> putAllAsync(Map<byte[], byte[]> entries) {
+		var keys = new ArrayList<byte[]>(entries.size());
+		var values = new ArrayList<byte[]>(entries.size());
+		entries.forEach((k, v) -> {
+			keys.add(requireNonNull(k, KEY_NOT_NULL));
+			values.add(requireNonNull(v, VALUE_NOT_NULL));
+		});
+		var futures = batchesByShard(keys).stream()
+				.map(batch -> CompletableFuture.runAsync(() -> batch.putFrom(keys, values), asyncExecutor()))
+				.toArray(CompletableFuture[]::new);
+		return CompletableFuture.allOf(futures);
+	}
+
 	public boolean containsKey(byte[] k) {
 		return get(k) != null;
 	}
@@ -105,14 +433,312 @@ public final class LasherDB implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * Empties a closed store in place, keeping its index and data files at their initial lengths for reuse.
+	 * @see BaseLinearHashMap#reset(Path, long, long)
+	 */
+	static void reset(Path baseDir, LasherConfig config) {
+		try (var dirs = Files.list(baseDir)) {
+			for (var dir : (Iterable<Path>) dirs::iterator) {
+				if (Files.isDirectory(dir) && dir.getFileName().toString().startsWith(SHARD_DIR_PREFIX)) {
+					BaseLinearHashMap.reset(dir, config.indexFileLength(), config.dataFileLength());
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Rewrites each shard's files without the space taken by removed, replaced, evicted and expired entries,
+	 * blocking one shard at a time. Stores bounded by {@link LasherConfig#withMaxEntries(long)} are compacted
+	 * automatically in the background, in small steps, once eviction has wasted enough space.
+	 */
+	public void compact() {
+		for (var shard : shards) {
+			shard.compact();
+		}
+	}
+
 	public Iterator<Map.Entry<byte[], byte[]>> iterator() {
 		return shards.stream()
 				.flatMap(shard -> StreamSupport.stream(shard.spliterator(), false))
 				.iterator();
 	}
 
+	/**
+	 * Finds entries whose values are indexed under the given value by the named secondary index.
+	 * Each shard is read under its own read lock, so the result is not a consistent snapshot across shards.
+	 * @throws IllegalArgumentException if the store was not created with such an index
+	 * @see LasherConfig#withSecondaryIndex(String, UnaryOperator)
+	 */
+	public List<Map.Entry<byte[], byte[]>> getBy(String indexName, byte[] indexedValue) {
+		requireNonNull(indexName, "indexName cannot be null");
+		requireNonNull(indexedValue, "indexedValue cannot be null");
+		var result = new ArrayList<Map.Entry<byte[], byte[]>>();
+		for (var shard : shards) {
+			result.addAll(shard.getBy(indexName, indexedValue));
+		}
+		return result;
+	}
+
+	/**
+	 * Iterates in ascending order over entries whose sort keys are in the range [from, to).
+	 * Sort keys are the keys themselves unless an extractor was given to {@link LasherConfig#withOrderedIndex(UnaryOperator)}.
+	 * @param from inclusive lower bound or null if unbounded
+	 * @param to exclusive upper bound or null if unbounded
+	 * @throws IllegalStateException if the store was not created with an ordered index
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+		return range(from, to, false);
+	}
+
+	/**
+	 * @see #range(byte[], byte[])
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to, boolean descending) {
+		return orderedIterator(OrderedIndex.boundOf(orderedBy, from), OrderedIndex.boundOf(orderedBy, to), descending);
+	}
+
+	/**
+	 * Iterates in ascending order over entries whose sort keys start with the prefix.
+	 * @throws IllegalStateException if the store was not created with an ordered index
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> prefix(byte[] prefix) {
+		return prefix(prefix, false);
+	}
+
+	/**
+	 * @see #prefix(byte[])
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> prefix(byte[] prefix, boolean descending) {
+		requireNonNull(prefix, "prefix cannot be null");
+		final byte[] lower = OrderedIndex.boundOf(orderedBy, prefix);
+		return orderedIterator(lower, OrderedIndex.prefixEnd(lower), descending);
+	}
+
+	/**
+	 * Merges ordered iterators of all shards. Each shard is read in batches under its own read lock,
+	 * so the result is not a consistent snapshot across shards.
+	 */
+	private Iterator<Map.Entry<byte[], byte[]>> orderedIterator(byte[] lower, byte[] upper, boolean descending) {
+		if (orderedBy == null) {
+			throw new IllegalStateException("Store was not created with an ordered index");
+		}
+		var sources = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>(shards.size());
+		for (var shard : shards) {
+			sources.add(shard.orderedIterator(lower, upper, descending));
+		}
+		Comparator<Map.Entry<byte[], byte[]>> order = Comparator.comparing(
+				entry -> OrderedIndex.entryOf(orderedBy, entry.getKey()), Arrays::compareUnsigned);
+		return new MergingIterator<>(sources, descending ? order.reversed() : order);
+	}
+
+	public int shardCount() {
+		return shards.size();
+	}
+
+	/**
+	 * Iterates over entries of a single shard, so shards could be scanned in parallel.
+	 * Iterating over all shards in order yields the entries in the order of {@link #iterator()}.
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> shardIterator(int shard) {
+		return shards.get(shard).iterator();
+	}
+
+	/**
+	 * Iterates over entries in the order of their records in the data files, reading each shard's data file
+	 * sequentially instead of looking records up through the index. Prefer it for full scans of stores larger
+	 * than memory, where {@link #iterator()} runs at random read speed.
+	 * Shards are scanned one after another, each in windows read under its own read lock.
+	 * @throws java.util.ConcurrentModificationException from next() if a shard was compacted or cleared during the scan
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> sequentialIterator() {
+		return flatIterator(Shard::sequentialIterator);
+	}
+
+	/**
+	 * Sequentially iterates over entries of a single shard, so shards could be scanned in parallel.
+	 * @see #sequentialIterator()
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> sequentialShardIterator(int shard) {
+		return shards.get(shard).sequentialIterator();
+	}
+
+	/**
+	 * Finds entries matching the predicate by scanning data files of all shards in parallel, testing records in place,
+	 * so only matching records are copied out of the mapped files.
+	 * @throws ConcurrentModificationException if a shard was compacted or cleared during the scan
+	 */
+	public List<Map.Entry<byte[], byte[]>> scan(BytesPredicate predicate) {
+		return aggregate(predicate, ArrayList::new,
+				(result, key, value) -> result.add(new AbstractMap.SimpleEntry<>(bytesOf(key), bytesOf(value))),
+				(left, right) -> {
+					left.addAll(right);
+					return left;
+				});
+	}
+
+	/**
+	 * Counts entries matching the predicate without copying any records out of the mapped files.
+	 * @see #scan(BytesPredicate)
+	 */
+	public long count(BytesPredicate predicate) {
+		return aggregate(predicate, () -> new long[1], (count, key, value) -> count[0]++,
+				(left, right) -> {
+					left[0] += right[0];
+					return left;
+				})[0];
+	}
+
+	/**
+	 * Aggregates entries matching the predicate: each shard is scanned in parallel into its own partial result,
+	 * created by the supplier, and partial results are combined into the final one.
+	 * Records are accumulated from read-only views of the mapped files, so they are not copied unless the accumulator does.
+	 * @param combiner combines partial results of two shards, e.g. by adding the right one into the left one
+	 * @throws ConcurrentModificationException if a shard was compacted or cleared during the scan
+	 */
+	public <A> A aggregate(BytesPredicate predicate, Supplier<A> supplier, BytesAccumulator<A> accumulator,
+						   BinaryOperator<A> combiner) {
+		requireNonNull(predicate, "predicate cannot be null");
+		requireNonNull(supplier, "supplier cannot be null");
+		requireNonNull(accumulator, "accumulator cannot be null");
+		requireNonNull(combiner, "combiner cannot be null");
+		return shards.parallelStream()
+				.map(shard -> {
+					final A partial = supplier.get();
+					shard.scan((key, value) -> {
+						if (predicate.test(key, value)) {
+							accumulator.accept(partial, key, value);
+						}
+					});
+					return partial;
+				})
+				.reduce(combiner)
+				.orElseGet(supplier);
+	}
+
+	private static byte[] bytesOf(ByteBuffer buffer) {
+		if (buffer == null) return null;
+		var bytes = new byte[buffer.remaining()];
+		buffer.get(buffer.position(), bytes);
+		return bytes;
+	}
+
+	/**
+	 * Iterates over keys only, without reading value bytes from the data files.
+	 */
+	public Iterator<byte[]> keyIterator() {
+		return flatIterator(Shard::keyIterator);
+	}
+
+	/**
+	 * Iterates over values only, without reading key bytes from the data files.
+	 */
+	public Iterator<byte[]> valueIterator() {
+		return flatIterator(Shard::valueIterator);
+	}
+
+	/**
+	 * Iterates over record headers only, without reading key or value bytes from the data files.
+	 */
+	public Iterator<RecordHeader> headerIterator() {
+		return flatIterator(Shard::headerIterator);
+	}
+
+	private <T> Iterator<T> flatIterator(Function<Shard, Iterator<T>> shardIterator) {
+		return shards.stream()
+				.flatMap(shard -> StreamSupport.stream(
+						Spliterators.spliteratorUnknownSize(shardIterator.apply(shard), Spliterator.NONNULL), false))
+				.iterator();
+	}
+
 	private Shard shardForHash(long hash) {
-		return shards.get(Math.floorMod(hash, shards.size()));
+		return shards.get(shardIndex(hash));
+	}
+
+	private int shardIndex(long hash) {
+		return Math.floorMod(hash, shards.size());
+	}
+
+	/**
+	 * Groups key positions by shard. Batches are ordered by shard index, which is also the lock order.
+	 */
+	private List<ShardBatch> batchesByShard(List<byte[]> keys) {
+		var hashes = new long[keys.size()];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = Hash.hashBytes(requireNonNull(keys.get(i), KEY_NOT_NULL));
+		}
+		return batchesByShard(hashes);
+	}
+
+	private List<ShardBatch> batchesByShard(long[] hashes) {
+		var positions = new TreeMap<Integer, List<Integer>>();
+		for (int i = 0; i < hashes.length; i++) {
+			positions.computeIfAbsent(shardIndex(hashes[i]), s -> new ArrayList<>()).add(i);
+		}
+		var batches = new ArrayList<ShardBatch>(positions.size());
+		positions.forEach((shardIndex, pos) -> batches.add(new ShardBatch(shards.get(shardIndex),
+				pos.stream().mapToInt(Integer::intValue).toArray(), hashes)));
+		return batches;
+	}
+
+	private static void runLocked(List<ShardBatch> batches, int from, boolean write, Runnable action) {
+		if (from == batches.size()) {
+			action.run();
+			return;
+		}
+		var shard = batches.get(from).shard();
+		if (write) {
+			shard.writeLocked(() -> runLocked(batches, from + 1, true, action));
+		} else {
+			shard.readLocked(() -> {
+				runLocked(batches, from + 1, false, action);
+				return null;
+			});
+		}
+	}
+
+	private record ShardBatch(Shard shard, int[] positions, long[] hashes) {
+
+		void getInto(List<byte[]> keys, byte[][] result) {
+			var values = shard.getAll(keysAt(keys), hashesAt());
+			for (int i = 0; i < positions.length; i++) {
+				result[positions[i]] = values[i];
+			}
+		}
+
+		void putFrom(List<byte[]> keys, List<byte[]> values) {
+			shard.writeAll(keysAt(keys), hashesAt(), valuesAt(values));
+		}
+
+		void requireWritable(List<byte[]> keys, List<byte[]> values) {
+			shard.requireWritable(keysAt(keys), valuesAt(values));
+		}
+
+		private byte[][] valuesAt(List<byte[]> values) {
+			var batchValues = new byte[positions.length][];
+			for (int i = 0; i < positions.length; i++) {
+				batchValues[i] = values.get(positions[i]);
+			}
+			return batchValues;
+		}
+
+		private byte[][] keysAt(List<byte[]> keys) {
+			var batchKeys = new byte[positions.length][];
+			for (int i = 0; i < positions.length; i++) {
+				batchKeys[i] = keys.get(positions[i]);
+			}
+			return batchKeys;
+		}
+
+		private long[] hashesAt() {
+			var batchHashes = new long[positions.length];
+			for (int i = 0; i < positions.length; i++) {
+				batchHashes[i] = hashes[positions[i]];
+			}
+			return batchHashes;
+		}
 	}
 
 	@Override
@@ -130,14 +756,59 @@ public final class LasherDB implements AutoCloseable {
 
 	@Override
 	public void close() {
+		shutdownMaintenance();
+		shutdownExecutor();
 		for (var shard : shards) {
 			shard.close();
 		}
 	}
 
 	public void delete() {
+		shutdownMaintenance();
+		shutdownExecutor();
 		for (var shard : shards) {
 			shard.delete();
 		}
 	}
+
+	private void shutdownMaintenance() {
+		if (maintenance == null) return;
+		maintenance.shutdown();
+		try {
+			maintenance.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the configured executor, or the default executor owned by the store, created on the first async call
+	 * @throws RejectedExecutionException if the store was closed
+	 */
+	private synchronized Executor asyncExecutor() {
+		if (configuredExecutor != null) return configuredExecutor;
+		if (executorShutdown) {
+			throw new RejectedExecutionException("Store was closed");
+		}
+		if (ownedExecutor == null) {
+			ownedExecutor = ExecutorSupport.newAsyncExecutor("lasher-async");
+		}
+		return ownedExecutor;
+	}
+
+	private void shutdownExecutor() {
+		final ExecutorService executor;
+		synchronized (this) {
+			executorShutdown = true;
+			executor = ownedExecutor;
+		}
+		if (executor == null) return;
+		executor.shutdown();
+		try {
+			//let in-flight async operations finish before shards are unmapped
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 }
@@ -0,0 +1,26 @@
+package net.soundvibe.lasher.db;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+
+/**
+ * Roll-up of a {@link TimeLash}, which merges buckets past a given age into coarser buckets, so old data takes less
+ * space and long range queries read fewer buckets.
+ * @param after age of buckets, counted back from the newest bucket, after which they stop accepting writes
+ *              and are rolled up once all buckets of their roll-up window are as old
+ * @param window time span of a roll-up bucket, a multiple of the bucket window
+ * @param combiner combines the rolled up value of a key with its value in the next newer bucket, e.g. {@code Long::sum}
+ */
+public record RollUp<V>(Duration after, Duration window, BinaryOperator<V> combiner) {
+
+	public RollUp {
+		if (after == null || after.isNegative()) {
+			throw new IllegalArgumentException("after must not be negative: " + after);
+		}
+		if (window == null || window.toSeconds() < 1L) {
+			throw new IllegalArgumentException("window must be at least a second: " + window);
+		}
+		Objects.requireNonNull(combiner, "combiner cannot be null");
+	}
+}
@@ -0,0 +1,100 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.map.core.Shard;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces concurrent single-key async operations of a shard. Operations are queued and a single drain task
+ * serves all operations queued meanwhile, taking the shard lock once per run of consecutive reads or writes.
+ * Runs are served in the order operations were queued, so a read queued after a write sees the written value.
+ */
+final class ShardQueue {
+
+	private static final int MAX_RUN = 1024;
+
+	private final Shard shard;
+	private final Queue<Operation> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	/**
+	 * @param value value to put, null to remove the key, ignored by reads
+	 */
+	private record Operation(byte[] key, long hash, byte[] value, boolean write, CompletableFuture<byte[]> future) {}
+
+	ShardQueue(Shard shard) {
+		this.shard = shard;
+	}
+
+	CompletableFuture<byte[]> get(byte[] key, long hash, Executor executor) {
+		return submit(new Operation(key, hash, null, false, new CompletableFuture<>()), executor);
+	}
+
+	/**
+	 * @param value value to put, or null to remove the key
+	 * @return future of the previous value
+	 */
+	CompletableFuture<byte[]> write(byte[] key, long hash, byte[] value, Executor executor) {
+		return submit(new Operation(key, hash, value, true, new CompletableFuture<>()), executor);
+	}
+
+	private CompletableFuture<byte[]> submit(Operation operation, Executor executor) {
+		queue.add(operation);
+		if (draining.compareAndSet(false, true)) {
+			try {
+				executor.execute(this::drain);
+			} catch (RuntimeException e) {
+				queue.remove(operation);
+				draining.set(false);
+				throw e;
+			}
+		}
+		return operation.future();
+	}
+
+	/**
+	 * Serves queued operations until the queue is empty. Only the drain task polls the queue.
+	 */
+	private void drain() {
+		var run = new ArrayList<Operation>();
+		while (true) {
+			Operation next;
+			while (run.size() < MAX_RUN && (next = queue.peek()) != null
+					&& (run.isEmpty() || run.get(0).write() == next.write())) {
+				run.add(queue.poll());
+			}
+			if (run.isEmpty()) {
+				draining.set(false);
+				if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+				continue;
+			}
+			serve(run);
+			run.clear();
+		}
+	}
+
+	private void serve(List<Operation> run) {
+		final int size = run.size();
+		var keys = new byte[size][];
+		var hashes = new long[size];
+		var values = new byte[size][];
+		for (int i = 0; i < size; i++) {
+			var operation = run.get(i);
+			keys[i] = operation.key();
+			hashes[i] = operation.hash();
+			values[i] = operation.value();
+		}
+		final byte[][] results;
+		try {
+			results = run.get(0).write() ? shard.writeAll(keys, hashes, values) : shard.getAll(keys, hashes);
+		} catch (RuntimeException e) {
+			run.forEach(operation -> operation.future().completeExceptionally(e));
+			return;
+		}
+		for (int i = 0; i < size; i++) {
+			run.get(i).future().complete(results[i]);
+		}
+	}
+}
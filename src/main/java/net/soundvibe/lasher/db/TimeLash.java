@@ -1,17 +1,19 @@
 package net.soundvibe.lasher.db;
 
 import net.soundvibe.lasher.map.LasherMap;
+import net.soundvibe.lasher.map.model.FileType;
 import net.soundvibe.lasher.serde.Serde;
+import net.soundvibe.lasher.util.*;
 
-import java.nio.file.Path;
+import java.io.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Stream;
-
-import static java.util.function.Predicate.not;
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
 
@@ -19,38 +21,198 @@ public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
     private final Serde<K> keySerde;
     private final Serde<V> valSerde;
     private final long retentionSecs;
+    private final long writeWindowSecs;
+    private final boolean compressColdBuckets;
+    private final boolean sketches;
     private final AtomicLong watermark = new AtomicLong();
-    private final Map<Long, LasherMap<K,V>> buckets;
+    private final Map<Long, Bucket> buckets;
     private final long bucketSizeSeconds;
+    private final long expectedKeysPerBucket;
+    private final LasherConfig bucketConfig;
+    private final Path poolDir;
+    private final Queue<Path> pool = new ConcurrentLinkedQueue<>();
+    private final RollUp<V> rollUp;
+    private final long rollUpAfterSecs;
+    private final long rollUpSizeSeconds;
+    private final Map<Long, Bucket> rollUps = new ConcurrentHashMap<>();
+    private final Path rollUpDir;
+    private final ScheduledExecutorService retention;
 
-    private static final Duration DEFAULT_BUCKET_WINDOW = Duration.ofHours(1);
+    private static final Duration RETENTION_INTERVAL = Duration.ofMinutes(1);
+    private static final String POOL_DIR = "pool";
+    private static final String ROLL_UP_DIR = "rollup";
+    private static final int MAX_POOLED_BUCKETS = 2;
 
     public TimeLash(Path baseDir, Duration retention, Duration bucketWindow, Serde<K> keySerde, Serde<V> valSerde) {
+        this(baseDir, TimeLashConfig.defaults(retention).withBucketWindow(bucketWindow), keySerde, valSerde);
+    }
+
+    /**
+     * @param expectedKeysPerBucket number of distinct keys per bucket the Bloom filters of buckets are sized for.
+     *                              Filters of buckets with more keys skip fewer buckets in lookups across buckets.
+     */
+    public TimeLash(Path baseDir, Duration retention, Duration bucketWindow, Serde<K> keySerde, Serde<V> valSerde,
+                    long expectedKeysPerBucket) {
+        this(baseDir, TimeLashConfig.defaults(retention)
+                .withBucketWindow(bucketWindow)
+                .withExpectedKeysPerBucket(expectedKeysPerBucket), keySerde, valSerde);
+    }
+
+    /**
+     * @param bucketConfig configuration of bucket stores, e.g. their number of shards and initial file lengths.
+     *                     Existing buckets must have been created with the same configuration.
+     * @param expectedKeysPerBucket number of distinct keys per bucket the Bloom filters of buckets are sized for.
+     */
+    public TimeLash(Path baseDir, Duration retention, Duration bucketWindow, Serde<K> keySerde, Serde<V> valSerde,
+                    LasherConfig bucketConfig, long expectedKeysPerBucket) {
+        this(baseDir, TimeLashConfig.defaults(retention)
+                .withBucketWindow(bucketWindow)
+                .withBucketConfig(bucketConfig)
+                .withExpectedKeysPerBucket(expectedKeysPerBucket), keySerde, valSerde);
+    }
+
+    public TimeLash(Path baseDir, Duration retention, Serde<K> keySerde, Serde<V> valSerde) {
+        this(baseDir, TimeLashConfig.defaults(retention), keySerde, valSerde);
+    }
+
+    public TimeLash(Path baseDir, TimeLashConfig config, Serde<K> keySerde, Serde<V> valSerde) {
+        this(baseDir, config, keySerde, valSerde, null);
+    }
+
+    /**
+     * @param rollUp roll-up of old buckets, or null if buckets are kept as they are until retention deletes them.
+     *               Existing roll-up buckets must have been created with the same roll-up window.
+     */
+    public TimeLash(Path baseDir, TimeLashConfig config, Serde<K> keySerde, Serde<V> valSerde, RollUp<V> rollUp) {
+        if (rollUp != null && rollUp.window().toSeconds() % config.bucketWindow().toSeconds() != 0L) {
+            throw new IllegalArgumentException("Roll-up window " + rollUp.window() + " is not a multiple of bucket window " + config.bucketWindow());
+        }
         this.baseDir = baseDir;
         this.keySerde = keySerde;
         this.valSerde = valSerde;
-        this.retentionSecs = retention.toSeconds();
-        this.buckets = new ConcurrentHashMap<>(Math.max(10, (int)retention.toHours()));
-        this.bucketSizeSeconds = bucketWindow.toSeconds();
+        this.retentionSecs = config.retention().toSeconds();
+        this.writeWindowSecs = config.writeWindow() == null ? retentionSecs : config.writeWindow().toSeconds();
+        this.compressColdBuckets = config.compressColdBuckets();
+        this.sketches = config.sketches();
+        this.buckets = new ConcurrentHashMap<>(Math.max(10, (int)config.retention().toHours()));
+        this.bucketSizeSeconds = config.bucketWindow().toSeconds();
+        this.expectedKeysPerBucket = config.expectedKeysPerBucket();
+        this.bucketConfig = config.bucketConfig();
+        this.rollUp = rollUp;
+        this.rollUpAfterSecs = rollUp == null ? retentionSecs : rollUp.after().toSeconds();
+        this.rollUpSizeSeconds = rollUp == null ? bucketSizeSeconds : rollUp.window().toSeconds();
+        this.rollUpDir = baseDir.resolve(ROLL_UP_DIR);
+        this.poolDir = baseDir.resolve(POOL_DIR);
+        FileSupport.deleteDirectory(poolDir);
+        this.retention = startRetention();
+        if (discoverBuckets()) {
+            this.retention.execute(this::maintainBuckets);
+        }
     }
 
-    public TimeLash(Path baseDir, Duration retention, Serde<K> keySerde, Serde<V> valSerde) {
-        this(baseDir, retention, DEFAULT_BUCKET_WINDOW, keySerde, valSerde);
+    /**
+     * Deletes expired buckets and converts buckets out of the write window in the background.
+     */
+    private ScheduledExecutorService startRetention() {
+        var executor = Executors.newSingleThreadScheduledExecutor(ExecutorSupport.daemonThreadFactory("timelash-retention"));
+        executor.scheduleWithFixedDelay(this::maintainBuckets,
+                RETENTION_INTERVAL.toMillis(), RETENTION_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    /**
+     * @return true if bucket directories of a previous instance were found and registered without opening them
+     */
+    private boolean discoverBuckets() {
+        discover(baseDir, idx -> {
+            buckets.put(idx, new Bucket(idx, bucketSizeSeconds, baseDir.resolve(Long.toString(idx)), false));
+            watermark.accumulateAndGet(idx, Math::max);
+        });
+        if (rollUp != null) {
+            discover(rollUpDir, idx -> {
+                rollUps.put(idx, new Bucket(idx, rollUpSizeSeconds, rollUpDir.resolve(Long.toString(idx)), false));
+                watermark.accumulateAndGet(idx + rollUpSizeSeconds - bucketSizeSeconds, Math::max);
+            });
+        }
+        return !buckets.isEmpty() || !rollUps.isEmpty();
+    }
+
+    private static void discover(Path dir, LongConsumer bucket) {
+        if (Files.notExists(dir)) return;
+        try (var dirs = Files.list(dir)) {
+            dirs.filter(Files::isDirectory).forEach(bucketDir -> {
+                final long idx;
+                try {
+                    idx = Long.parseLong(bucketDir.getFileName().toString());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                bucket.accept(idx);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public V get(K key, Instant timestamp) {
         return get(key, timestamp.getEpochSecond());
     }
 
+    /**
+     * Finds the value of the key in the bucket of the timestamp, or in its roll-up bucket if the bucket was rolled up.
+     */
     public V get(K key, long timestamp) {
-        long idx = idxFromTimestamp(timestamp);
-        var map = buckets.get(idx);
-        if (map != null) {
-            return map.get(key);
+        var bucket = liveBucket(idxFromTimestamp(timestamp));
+        if (bucket == null) {
+            bucket = liveRollUp(timestamp);
+        }
+        if (bucket == null) return null;
+        final var target = bucket;
+        final long hash = keyHash(key);
+        return target.locked(map -> target.filter.mightContain(hash) ? map.get(key) : null);
+    }
+
+    /**
+     * Finds the value of the key in the newest bucket containing it. Buckets whose Bloom filters rule the key out
+     * are skipped without being read.
+     * @return the latest value or null if no bucket within retention contains the key
+     */
+    public V getLatest(K key) {
+        final long hash = keyHash(key);
+        for (var bucket : bucketsBetween(Long.MIN_VALUE, Long.MAX_VALUE, true)) {
+            if (!bucket.mightContain(hash)) continue;
+            var value = bucket.locked(map -> map.get(key));
+            if (value != null) {
+                return value;
+            }
         }
         return null;
     }
 
+    public NavigableMap<Long, V> getRange(K key, Instant from, Instant to) {
+        return getRange(key, from.getEpochSecond(), to.getEpochSecond());
+    }
+
+    /**
+     * Finds values of the key in all buckets overlapping the time range. Buckets whose Bloom filters rule the key out
+     * are skipped without being read.
+     * @param from inclusive start of the range, in seconds from the Java epoch
+     * @param to inclusive end of the range, in seconds from the Java epoch
+     * @return values by start timestamps of their buckets, in ascending order, including values of roll-up buckets
+     */
+    public NavigableMap<Long, V> getRange(K key, long from, long to) {
+        final long hash = keyHash(key);
+        var result = new TreeMap<Long, V>();
+        for (var bucket : bucketsBetween(from, to, false)) {
+            if (!bucket.mightContain(hash)) continue;
+            var value = bucket.locked(map -> map.get(key));
+            if (value != null) {
+                result.put(bucket.start, value);
+            }
+        }
+        return result;
+    }
+
     public V put(K key, V value, Instant timestamp) {
         return put(key, value, timestamp.getEpochSecond());
     }
@@ -63,32 +225,27 @@ public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
      * @return the previous value associated with key, or null if there was no mapping for key.
      */
     public V put(K key, V value, long timestamp) {
-        var maxBucketTime = watermark.updateAndGet(prev -> Math.max(prev, idxFromTimestamp(timestamp)));
-        long bucketTimestampStart = idxFromTimestamp(timestamp);
-        var map = buckets.compute(bucketTimestampStart, (k, oldMap) -> {
-            if (oldMap != null) return oldMap;
-            if (bucketInRange(bucketTimestampStart, maxBucketTime)) {
-                return createNewMap(bucketTimestampStart);
-            }
-            return null;
-        });
-        if (map == null) {
+        final long idx = idxFromTimestamp(timestamp);
+        final long maxBucketTime = watermark.updateAndGet(prev -> Math.max(prev, idx));
+        if (!bucketWritable(idx, maxBucketTime)) {
             return null;
         }
-
-        if (map.isEmpty()) {
-            //check for expired entries
-            var expiredEntries = buckets.entrySet().stream()
-                    .filter(not(e -> bucketInRange(e.getKey(), maxBucketTime)))
-                    .collect(toList());
-
-            expiredEntries.forEach(e -> {
-                deleteExpired(e.getValue());
-                buckets.remove(e.getKey());
-            });
+        var bucket = buckets.get(idx);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(idx, this::createBucket);
+            if (bucket == null) return null;
         }
-
-        return map.put(key, value);
+        final byte[] keyBytes = keySerde.toBytes(key);
+        final long hash = Hash.hashBytes(keyBytes);
+        final var target = bucket;
+        return target.locked(map -> {
+            if (target.sealed) return null;
+            target.filter.add(hash);
+            if (target.sketch != null) {
+                target.sketch.add(keyBytes, hash);
+            }
+            return map.put(key, value);
+        });
     }
 
     public V remove(K key, Instant timestamp) {
@@ -96,17 +253,16 @@ public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
     }
 
     public V remove(K key, long timestamp) {
-        long idx = idxFromTimestamp(timestamp);
-        var map = buckets.get(idx);
-        if (map != null) {
-            return map.remove(key);
+        var bucket = liveBucket(idxFromTimestamp(timestamp));
+        if (bucket != null) {
+            return bucket.locked(map -> bucket.sealed ? null : map.remove(key));
         }
         return null;
     }
 
     public long size() {
-        return buckets.values().stream()
-                .mapToLong(LasherMap::sizeLong)
+        return liveBuckets()
+                .mapToLong(Bucket::size)
                 .sum();
     }
 
@@ -118,20 +274,140 @@ public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
         return get(key, timestamp) != null;
     }
 
+    /**
+     * Streams keys of buckets within retention. A bucket deleted by retention while it is streamed ends early.
+     */
     public Stream<K> streamKeys() {
-        return buckets.values().stream()
-                .flatMap(map -> map.keySet().stream());
+        return liveBuckets()
+                .flatMap(bucket -> bucket.stream(map -> map.keySet().iterator()));
     }
 
+    /**
+     * Streams entries of buckets within retention. A bucket deleted by retention while it is streamed ends early.
+     */
     public Stream<Map.Entry<K,V>> stream() {
-        return buckets.values().stream()
-                .flatMap(map -> map.entrySet().stream());
+        return liveBuckets()
+                .flatMap(bucket -> bucket.stream(map -> map.entrySet().iterator()));
+    }
+
+    public Stream<Map.Entry<K,V>> stream(Instant from, Instant to, boolean descending) {
+        return stream(from.getEpochSecond(), to.getEpochSecond(), descending);
+    }
+
+    /**
+     * Streams entries of buckets overlapping the time range, one bucket after another in time order,
+     * without visiting other buckets. Entries within a bucket are in no particular order.
+     * @param from inclusive start of the range, in seconds from the Java epoch
+     * @param to inclusive end of the range, in seconds from the Java epoch
+     * @param descending if true, newer buckets are streamed first
+     */
+    public Stream<Map.Entry<K,V>> stream(long from, long to, boolean descending) {
+        return bucketsBetween(from, to, descending).stream()
+                .flatMap(bucket -> bucket.stream(map -> map.entrySet().iterator()));
+    }
+
+    public Stream<Map.Entry<K,V>> parallelStream(Instant from, Instant to, boolean descending) {
+        return parallelStream(from.getEpochSecond(), to.getEpochSecond(), descending);
+    }
+
+    /**
+     * Streams entries of buckets overlapping the time range in parallel, split into a task for each shard
+     * of each bucket. The stream is ordered, so ordered operations, e.g. {@link Stream#forEachOrdered},
+     * see buckets in time order like {@link #stream(long, long, boolean)} does.
+     */
+    public Stream<Map.Entry<K,V>> parallelStream(long from, long to, boolean descending) {
+        var partitions = new ArrayList<Supplier<Stream<Map.Entry<K,V>>>>();
+        for (var bucket : bucketsBetween(from, to, descending)) {
+            for (int partition = 0; partition < bucket.partitions(); partition++) {
+                final int p = partition;
+                partitions.add(() -> bucket.partitionStream(p));
+            }
+        }
+        return partitions.parallelStream()
+                .flatMap(Supplier::get);
+    }
+
+    /**
+     * @return buckets overlapping the time range sorted by their start, including live roll-up buckets
+     */
+    private List<Bucket> bucketsBetween(long from, long to, boolean descending) {
+        final long maxBucketTime = watermark.get();
+        var result = new ArrayList<Bucket>();
+        for (var bucket : buckets.values()) {
+            if (bucket.overlaps(from, to) && bucketInRange(bucket.start, maxBucketTime)) {
+                result.add(bucket);
+            }
+        }
+        for (var bucket : rollUps.values()) {
+            if (bucket.overlaps(from, to) && rollUpInRange(bucket.start, maxBucketTime) && !rollingUp(bucket.start)) {
+                result.add(bucket);
+            }
+        }
+        var byStart = Comparator.<Bucket>comparingLong(bucket -> bucket.start);
+        result.sort(descending ? byStart.reversed() : byStart);
+        return result;
+    }
+
+    public long distinctKeys(Instant from, Instant to) {
+        return distinctKeys(from.getEpochSecond(), to.getEpochSecond());
+    }
+
+    /**
+     * Estimates the number of distinct keys put within the time range by merging sketches of the buckets overlapping it,
+     * without reading the buckets. The estimate is typically within 2% of the actual number.
+     * @throws IllegalStateException if the map was created without {@link TimeLashConfig#withSketches(boolean)}
+     */
+    public long distinctKeys(long from, long to) {
+        return sketchBetween(from, to).distinct();
+    }
+
+    public List<Map.Entry<K, Long>> topKeys(Instant from, Instant to, int limit) {
+        return topKeys(from.getEpochSecond(), to.getEpochSecond(), limit);
+    }
+
+    /**
+     * Estimates the keys put most often within the time range by merging sketches of the buckets overlapping it,
+     * without reading the buckets. Counts may be overestimated, but never underestimated.
+     * @param limit maximum number of keys to return, at most 64 keys are tracked per bucket
+     * @return keys with their estimated number of puts, most often put first
+     * @throws IllegalStateException if the map was created without {@link TimeLashConfig#withSketches(boolean)}
+     */
+    public List<Map.Entry<K, Long>> topKeys(long from, long to, int limit) {
+        var sketch = sketchBetween(from, to);
+        return sketch.topKeys().stream()
+                .map(key -> new AbstractMap.SimpleImmutableEntry<>(key, sketch.count(key, Hash.hashBytes(key))))
+                .sorted(Map.Entry.<byte[], Long>comparingByValue().reversed())
+                .limit(limit)
+                .map(entry -> Map.entry(keySerde.fromBytes(entry.getKey()), entry.getValue()))
+                .toList();
+    }
+
+    private KeySketch sketchBetween(long from, long to) {
+        if (!sketches) {
+            throw new IllegalStateException("Key sketches are not enabled for " + baseDir);
+        }
+        var result = new KeySketch(null);
+        for (var bucket : bucketsBetween(from, to, false)) {
+            bucket.locked(map -> {
+                bucket.sketch.mergeInto(result);
+                return null;
+            });
+        }
+        return result;
     }
 
     @Override
     public void close() {
-        buckets.forEach((k, m) -> m.close());
+        retention.shutdown();
+        try {
+            retention.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buckets.forEach((k, bucket) -> bucket.close(false));
         buckets.clear();
+        rollUps.forEach((k, bucket) -> bucket.close(false));
+        rollUps.clear();
     }
 
     private boolean bucketInRange(long bucket, long maxWatermark) {
@@ -144,13 +420,218 @@ public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
         return bucket >= allowedStart;
     }
 
-    private LasherMap<K,V> createNewMap(long bucket) {
-        var lasher = new LasherDB(baseDir.resolve(Long.toString(bucket)));
-        return new LasherMap<>(lasher, keySerde, valSerde);
+    /**
+     * @return true if the bucket is within the write window and not old enough to be rolled up
+     */
+    private boolean bucketWritable(long bucket, long maxWatermark) {
+        return bucket >= maxWatermark - Math.min(Math.min(writeWindowSecs, rollUpAfterSecs), retentionSecs);
+    }
+
+    private boolean rollUpInRange(long rollUpBucket, long maxWatermark) {
+        return bucketInRange(rollUpBucket + rollUpSizeSeconds - bucketSizeSeconds, maxWatermark);
     }
 
-    private synchronized void deleteExpired(LasherMap<K,V> map) {
-        map.delete();
+    /**
+     * @return true if any bucket of the roll-up bucket is still there to be read instead
+     */
+    private boolean rollingUp(long rollUpBucket) {
+        for (long idx = rollUpBucket; idx < rollUpBucket + rollUpSizeSeconds; idx += bucketSizeSeconds) {
+            if (buckets.containsKey(idx)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the bucket if it exists and is within retention
+     */
+    private Bucket liveBucket(long idx) {
+        return bucketInRange(idx, watermark.get()) ? buckets.get(idx) : null;
+    }
+
+    /**
+     * @return the roll-up bucket of the timestamp if it exists and is within retention
+     */
+    private Bucket liveRollUp(long timestamp) {
+        if (rollUp == null) return null;
+        final long rollUpIdx = timestamp - (timestamp % rollUpSizeSeconds);
+        return rollUpInRange(rollUpIdx, watermark.get()) ? rollUps.get(rollUpIdx) : null;
+    }
+
+    private Stream<Bucket> liveBuckets() {
+        return bucketsBetween(Long.MIN_VALUE, Long.MAX_VALUE, false).stream();
+    }
+
+    private void maintainBuckets() {
+        expireBuckets();
+        rollUpBuckets();
+        freezeBuckets();
+    }
+
+    /**
+     * Rolls up windows whose buckets all became old enough, oldest first.
+     */
+    private void rollUpBuckets() {
+        if (rollUp == null) return;
+        final long maxBucketTime = watermark.get();
+        var windows = new TreeMap<Long, List<Long>>();
+        for (var idx : buckets.keySet()) {
+            final long window = idx - (idx % rollUpSizeSeconds);
+            final long newest = window + rollUpSizeSeconds - bucketSizeSeconds;
+            if (newest < maxBucketTime - rollUpAfterSecs && rollUpInRange(window, maxBucketTime)) {
+                windows.computeIfAbsent(window, w -> new ArrayList<>()).add(idx);
+            }
+        }
+        for (var window : windows.entrySet()) {
+            if (retention.isShutdown()) return;
+            try {
+                rollUp(window.getKey(), window.getValue());
+            } catch (RuntimeException e) {
+                // buckets are kept, so no data is lost
+            }
+        }
+    }
+
+    /**
+     * Combines the buckets of the window into a roll-up bucket built in a temporary directory, then recycles them.
+     */
+    private void rollUp(long window, List<Long> idxs) {
+        var dir = rollUpDir.resolve(Long.toString(window));
+        if (Files.notExists(dir)) {
+            var tmp = rollUpDir.resolve(window + ".tmp");
+            FileSupport.deleteDirectory(tmp);
+            var filter = new BloomFilter(tmp, expectedKeysPerBucket);
+            var sketch = sketches ? new KeySketch(tmp) : null;
+            var map = new LasherMap<>(new LasherDB(tmp, bucketConfig), keySerde, valSerde);
+            try {
+                idxs.stream()
+                        .sorted()
+                        .map(buckets::get)
+                        .filter(Objects::nonNull)
+                        .peek(bucket -> {
+                            if (sketch != null) {
+                                bucket.locked(source -> {
+                                    bucket.sketch.mergeInto(sketch);
+                                    return null;
+                                });
+                            }
+                        })
+                        .flatMap(bucket -> bucket.stream(source -> source.entrySet().iterator()))
+                        .forEach(entry -> {
+                            filter.add(keyHash(entry.getKey()));
+                            map.merge(entry.getKey(), entry.getValue(), rollUp.combiner());
+                        });
+            } catch (RuntimeException e) {
+                map.delete();
+                FileSupport.deleteDirectory(tmp);
+                throw e;
+            }
+            map.close();
+            filter.persist();
+            if (sketch != null) {
+                sketch.persist();
+            }
+            try {
+                Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                FileSupport.deleteDirectory(tmp);
+                throw new UncheckedIOException(e);
+            }
+        }
+        rollUps.computeIfAbsent(window, w -> new Bucket(w, rollUpSizeSeconds, dir, false));
+        for (var idx : idxs) {
+            var bucket = buckets.get(idx);
+            if (bucket != null && buckets.remove(idx, bucket)) {
+                bucket.close(true);
+            }
+        }
+    }
+
+    /**
+     * Converts buckets which fell out of the write window to immutable files, oldest first.
+     */
+    private void freezeBuckets() {
+        if (writeWindowSecs >= retentionSecs) return;
+        final long maxBucketTime = watermark.get();
+        for (var bucket : bucketsBetween(Long.MIN_VALUE, Long.MAX_VALUE, false)) {
+            if (retention.isShutdown()) return;
+            if (bucket.span == bucketSizeSeconds && bucketWritable(bucket.start, maxBucketTime)) continue;
+            try {
+                bucket.freeze();
+            } catch (RuntimeException e) {
+                // left mutable, so no data is lost
+            }
+        }
+    }
+
+    /**
+     * Removes buckets which fell out of the retention window and recycles their files.
+     */
+    private void expireBuckets() {
+        final long maxBucketTime = watermark.get();
+        for (var entry : buckets.entrySet()) {
+            if (!bucketInRange(entry.getKey(), maxBucketTime) && buckets.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close(true);
+            }
+        }
+        for (var entry : rollUps.entrySet()) {
+            if (!rollUpInRange(entry.getKey(), maxBucketTime) && rollUps.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close(true);
+            }
+        }
+    }
+
+    /**
+     * @return the new bucket, or null if retention has moved past it meanwhile
+     */
+    private Bucket createBucket(long idx) {
+        if (!bucketWritable(idx, watermark.get())) return null;
+        retention.execute(this::maintainBuckets);
+        var bucket = new Bucket(idx, bucketSizeSeconds, baseDir.resolve(Long.toString(idx)), true);
+        var pooled = pool.poll();
+        if (pooled != null) {
+            try {
+                Files.move(pooled, bucket.dir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                FileSupport.deleteDirectory(pooled);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Resets the files of an expired bucket in place and moves them to the pool for the next new bucket.
+     */
+    private void recycle(Path dir, LasherDB store) {
+        if (pool.size() >= MAX_POOLED_BUCKETS) {
+            delete(dir, store);
+            return;
+        }
+        try {
+            if (store != null) {
+                store.close();
+            }
+            LasherDB.reset(dir, bucketConfig);
+            Files.deleteIfExists(dir.resolve(FileType.BLOOM.filename));
+            Files.deleteIfExists(FrozenStore.file(dir));
+            Files.deleteIfExists(dir.resolve(FileType.SKETCH.filename));
+            Files.createDirectories(poolDir);
+            var pooled = poolDir.resolve(dir.getFileName());
+            Files.move(dir, pooled, StandardCopyOption.ATOMIC_MOVE);
+            pool.add(pooled);
+        } catch (IOException | RuntimeException e) {
+            delete(dir, null);
+        }
+    }
+
+    private static void delete(Path dir, LasherDB store) {
+        if (store != null) {
+            store.delete();
+        }
+        FileSupport.deleteDirectory(dir);
+    }
+
+    private long keyHash(K key) {
+        return Hash.hashBytes(keySerde.toBytes(key));
     }
 
     protected long idxFromTimestamp(long timestamp) {
@@ -161,4 +642,245 @@ public class TimeLash<K,V> implements AutoCloseable, Iterable<Map.Entry<K,V>> {
     public Iterator<Map.Entry<K, V>> iterator() {
         return stream().iterator();
     }
+
+    /**
+     * Bucket store with a Bloom filter of its keys, opened on first use and guarded by a read-write lock.
+     */
+    private final class Bucket {
+        private final long start;
+        private final long span;
+        private final Path dir;
+        private final boolean created;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile LasherDB store;
+        private volatile FrozenStore frozen;
+        private volatile Map<K,V> map;
+        private volatile BloomFilter filter;
+        private volatile KeySketch sketch;
+        private volatile boolean sealed;
+        private volatile boolean closed;
+
+        /**
+         * @param created true if the bucket is new, so it has no keys to build a filter of
+         */
+        private Bucket(long start, long span, Path dir, boolean created) {
+            this.start = start;
+            this.span = span;
+            this.dir = dir;
+            this.created = created;
+        }
+
+        boolean overlaps(long from, long to) {
+            return start <= to && start + span > from;
+        }
+
+        /**
+         * @return false if the bucket was closed meanwhile
+         */
+        private synchronized boolean open() {
+            if (closed) return false;
+            if (map != null) return true;
+            var frozenStore = FrozenStore.load(dir);
+            if (frozenStore != null) {
+                deleteStoreFiles();
+                sealed = true;
+            }
+            var lasher = frozenStore == null ? new LasherDB(dir, bucketConfig) : null;
+            var loaded = created ? null : BloomFilter.load(dir);
+            var loadedSketch = !sketches || created ? null : KeySketch.load(dir);
+            if (!created && (loaded == null || (sketches && loadedSketch == null))) {
+                var rebuiltFilter = loaded == null ? new BloomFilter(dir, expectedKeysPerBucket) : null;
+                var rebuiltSketch = sketches && loadedSketch == null ? new KeySketch(dir) : null;
+                var keys = frozenStore != null ? frozenStore.keyIterator() : lasher.keyIterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    final long hash = Hash.hashBytes(key);
+                    if (rebuiltFilter != null) rebuiltFilter.add(hash);
+                    if (rebuiltSketch != null) rebuiltSketch.add(key, hash);
+                }
+                loaded = loaded == null ? rebuiltFilter : loaded;
+                loadedSketch = loadedSketch == null ? rebuiltSketch : loadedSketch;
+            }
+            filter = loaded != null ? loaded : new BloomFilter(dir, expectedKeysPerBucket);
+            sketch = sketches && loadedSketch == null ? new KeySketch(dir) : loadedSketch;
+            store = lasher;
+            frozen = frozenStore;
+            map = frozenStore != null ? frozenStore.asMap(keySerde, valSerde) : new LasherMap<>(lasher, keySerde, valSerde);
+            return true;
+        }
+
+        /**
+         * Deletes store files left beside the immutable file when the process died right after a conversion.
+         */
+        private void deleteStoreFiles() {
+            try (var dirs = Files.list(dir)) {
+                dirs.filter(Files::isDirectory).forEach(FileSupport::deleteDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Converts the bucket store to an immutable file and deletes the store once the file is durable.
+         */
+        void freeze() {
+            if (frozen != null || !open()) return;
+            lock.writeLock().lock();
+            try {
+                if (closed || frozen != null) return;
+                sealed = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            lock.readLock().lock();
+            try {
+                if (closed) return;
+                var shards = IntStream.range(0, store.shardCount())
+                        .mapToObj(store::shardIterator)
+                        .toList();
+                FrozenStore.write(dir, shards, compressColdBuckets);
+            } catch (RuntimeException e) {
+                sealed = false;
+                throw e;
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                if (closed) return;
+                var frozenStore = FrozenStore.load(dir);
+                filter.persist();
+                if (sketch != null) {
+                    sketch.persist();
+                }
+                store.delete();
+                store = null;
+                frozen = frozenStore;
+                map = frozenStore.asMap(keySerde, valSerde);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * @return number of entries, or 0 if the bucket was closed meanwhile
+         */
+        long size() {
+            var size = locked(map -> frozen != null ? frozen.size() : store.size());
+            return size == null ? 0L : size;
+        }
+
+        boolean mightContain(long keyHash) {
+            var result = locked(map -> filter.mightContain(keyHash));
+            return result != null && result;
+        }
+
+        /**
+         * @return the action result, or null if the bucket was closed meanwhile
+         */
+        <T> T locked(Function<Map<K,V>, T> action) {
+            if (map == null && !open()) return null;
+            lock.readLock().lock();
+            try {
+                return closed ? null : action.apply(map);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Streams an iterator of the bucket, continuing in the immutable file if the bucket is converted meanwhile.
+         */
+        <T> Stream<T> stream(Function<Map<K,V>, Iterator<T>> source) {
+            var iterator = new Iterator<T>() {
+                Map<K,V> from;
+                Iterator<T> it;
+                long returned;
+
+                @Override
+                public boolean hasNext() {
+                    var hasNext = locked(map -> current(map).hasNext());
+                    return hasNext != null && hasNext;
+                }
+
+                @Override
+                public T next() {
+                    var next = locked(map -> {
+                        var current = current(map);
+                        return current.hasNext() ? current.next() : null;
+                    });
+                    if (next == null) throw new NoSuchElementException();
+                    returned++;
+                    return next;
+                }
+
+                private Iterator<T> current(Map<K,V> map) {
+                    if (from != map) {
+                        it = source.apply(map);
+                        for (long i = 0L; i < returned && it.hasNext(); i++) {
+                            it.next();
+                        }
+                        from = map;
+                    }
+                    return it;
+                }
+            };
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+        }
+
+        /**
+         * @return number of shards of the bucket store, or 0 if the bucket was closed meanwhile
+         */
+        int partitions() {
+            var partitions = locked(map -> frozen != null ? frozen.partitions() : store.shardCount());
+            return partitions == null ? 0 : partitions;
+        }
+
+        Stream<Map.Entry<K,V>> partitionStream(int partition) {
+            return stream(map -> partitionIterator(partition));
+        }
+
+        private Iterator<Map.Entry<K,V>> partitionIterator(int partition) {
+            var entries = frozen != null ? frozen.iterator(partition) : store.shardIterator(partition);
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Map.Entry<K,V> next() {
+                    var entry = entries.next();
+                    return new AbstractMap.SimpleImmutableEntry<>(keySerde.fromBytes(entry.getKey()), valSerde.fromBytes(entry.getValue()));
+                }
+            };
+        }
+
+        /**
+         * Waits for in-flight reads and writes, then closes the bucket or recycles its files.
+         */
+        synchronized void close(boolean expire) {
+            lock.writeLock().lock();
+            try {
+                if (closed) return;
+                closed = true;
+                if (frozen != null) {
+                    frozen.close();
+                    if (expire) {
+                        delete(dir, null);
+                    }
+                } else if (expire) {
+                    recycle(dir, store);
+                } else if (store != null) {
+                    filter.persist();
+                    if (sketch != null) {
+                        sketch.persist();
+                    }
+                    store.close();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package net.soundvibe.lasher.db;
+
+import java.time.Duration;
+
+/**
+ * Configuration of a {@link TimeLash}.
+ * @param retention how long buckets are kept, counted back from the newest bucket
+ * @param bucketWindow time span of a single bucket
+ * @param bucketConfig configuration of bucket stores, e.g. their number of shards and initial file lengths.
+ *                     Existing buckets must have been created with the same configuration.
+ * @param expectedKeysPerBucket number of distinct keys per bucket the Bloom filters of buckets are sized for.
+ *                              Filters of buckets with more keys skip fewer buckets in lookups across buckets.
+ * @param writeWindow how long buckets accept writes, counted back from the newest bucket, or null if all buckets
+ *                    within retention do. Older buckets are converted in the background to compact immutable files
+ *                    and writes to them are ignored.
+ * @param compressColdBuckets if true, immutable files of buckets out of the write window are deflated
+ * @param sketches if true, each bucket keeps sketches of its keys for {@link TimeLash#distinctKeys(long, long)}
+ *                 and {@link TimeLash#topKeys(long, long, int)}
+ */
+public record TimeLashConfig(Duration retention, Duration bucketWindow, LasherConfig bucketConfig,
+							 long expectedKeysPerBucket, Duration writeWindow, boolean compressColdBuckets,
+							 boolean sketches) {
+
+	private static final Duration DEFAULT_BUCKET_WINDOW = Duration.ofHours(1);
+	private static final long DEFAULT_EXPECTED_KEYS_PER_BUCKET = 100_000L;
+
+	public TimeLashConfig {
+		if (bucketWindow == null || bucketWindow.toSeconds() < 1L) {
+			throw new IllegalArgumentException("bucketWindow must be at least a second: " + bucketWindow);
+		}
+		if (writeWindow != null && writeWindow.isNegative()) {
+			throw new IllegalArgumentException("writeWindow must not be negative: " + writeWindow);
+		}
+	}
+
+	public static TimeLashConfig defaults(Duration retention) {
+		return new TimeLashConfig(retention, DEFAULT_BUCKET_WINDOW, LasherConfig.defaults(),
+				DEFAULT_EXPECTED_KEYS_PER_BUCKET, null, false, false);
+	}
+
+	public TimeLashConfig withBucketWindow(Duration bucketWindow) {
+		return new TimeLashConfig(retention, bucketWindow, bucketConfig, expectedKeysPerBucket, writeWindow, compressColdBuckets, sketches);
+	}
+
+	public TimeLashConfig withBucketConfig(LasherConfig bucketConfig) {
+		return new TimeLashConfig(retention, bucketWindow, bucketConfig, expectedKeysPerBucket, writeWindow, compressColdBuckets, sketches);
+	}
+
+	public TimeLashConfig withExpectedKeysPerBucket(long expectedKeysPerBucket) {
+		return new TimeLashConfig(retention, bucketWindow, bucketConfig, expectedKeysPerBucket, writeWindow, compressColdBuckets, sketches);
+	}
+
+	/**
+	 * Converts buckets older than the write window to compact immutable files, which take a fraction of the space
+	 * of the mutable stores: records are packed without free space and the hash index has no empty slots.
+	 * Reads of a bucket keep working while it is converted.
+	 */
+	public TimeLashConfig withWriteWindow(Duration writeWindow, boolean compressColdBuckets) {
+		return new TimeLashConfig(retention, bucketWindow, bucketConfig, expectedKeysPerBucket, writeWindow, compressColdBuckets, sketches);
+	}
+
+	/**
+	 * Keeps a HyperLogLog of distinct keys and a count-min sketch of puts per key with the keys put most often
+	 * in each bucket, about 20 KB per bucket, updated on every put.
+	 */
+	public TimeLashConfig withSketches(boolean sketches) {
+		return new TimeLashConfig(retention, bucketWindow, bucketConfig, expectedKeysPerBucket, writeWindow, compressColdBuckets, sketches);
+	}
+}
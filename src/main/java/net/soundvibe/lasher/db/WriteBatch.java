@@ -0,0 +1,49 @@
+package net.soundvibe.lasher.db;
+
+import net.soundvibe.lasher.util.Hash;
+
+import java.util.*;
+
+import static java.util.Objects.requireNonNull;
+import static net.soundvibe.lasher.util.Constants.*;
+
+/**
+ * Buffers puts and removes which are later applied atomically by {@link LasherDB#write(WriteBatch)}.
+ * Operations on the same key are applied in the order they were added.
+ * WriteBatch is not thread safe.
+ */
+public final class WriteBatch {
+
+	private final List<Op> ops = new ArrayList<>();
+
+	record Op(byte[] key, long hash, byte[] value) {}
+
+	public WriteBatch put(byte[] key, byte[] value) {
+		requireNonNull(key, KEY_NOT_NULL);
+		requireNonNull(value, VALUE_NOT_NULL);
+		ops.add(new Op(key, Hash.hashBytes(key), value));
+		return this;
+	}
+
+	public WriteBatch remove(byte[] key) {
+		requireNonNull(key, KEY_NOT_NULL);
+		ops.add(new Op(key, Hash.hashBytes(key), null));
+		return this;
+	}
+
+	public int size() {
+		return ops.size();
+	}
+
+	public boolean isEmpty() {
+		return ops.isEmpty();
+	}
+
+	public void clear() {
+		ops.clear();
+	}
+
+	List<Op> ops() {
+		return ops;
+	}
+}
@@ -1,21 +1,53 @@
 package net.soundvibe.lasher.map;
 
 import net.soundvibe.lasher.db.LasherDB;
-import net.soundvibe.lasher.serde.Serde;
+import net.soundvibe.lasher.serde.*;
 
+import java.nio.*;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import static java.util.Objects.requireNonNull;
 
 public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K, V>, AutoCloseable {
 
     private final LasherDB lasherDB;
     private final Serde<K> keySerde;
     private final Serde<V> valSerde;
+    private final NearCache<ByteBuffer, V> nearCache;
+    private final BufferSerde<K> keyBufferSerde;
+    private final BufferSerde<V> valBufferSerde;
+    private final ThreadLocal<ByteBuffer[]> scratch = ThreadLocal.withInitial(() -> new ByteBuffer[2]);
+
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
 
     public LasherMap(LasherDB lasherDB, Serde<K> keySerde, Serde<V> valSerde) {
+        this(lasherDB, keySerde, valSerde, null);
+    }
+
+    /**
+     * @param nearCache optional cache of deserialized values, invalidated by every write made through this map.
+     *                  It is keyed by serialized keys, so keys without value based equality, e.g. byte arrays,
+     *                  are cached too. Writes made directly to the underlying {@link LasherDB} bypass it.
+     *                  It can't be used with stores with expiry, because cached values would never expire.
+     */
+    public LasherMap(LasherDB lasherDB, Serde<K> keySerde, Serde<V> valSerde, NearCache<ByteBuffer, V> nearCache) {
+        if (nearCache != null && lasherDB.expires()) {
+            throw new IllegalArgumentException("Near cache can't be used with a store with expiry");
+        }
         this.lasherDB = lasherDB;
         this.keySerde = keySerde;
         this.valSerde = valSerde;
+        this.nearCache = nearCache;
+        if (keySerde instanceof BufferSerde<K> kbs && valSerde instanceof BufferSerde<V> vbs) {
+            this.keyBufferSerde = kbs;
+            this.valBufferSerde = vbs;
+        } else {
+            this.keyBufferSerde = null;
+            this.valBufferSerde = null;
+        }
     }
 
     @Override
@@ -43,23 +75,76 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
 
     @Override
     public V get(Object key) {
-        var kBytes = keySerde.toBytes( (K)key);
-        var out = lasherDB.get(kBytes);
-        if (out == null) return null;
-        return valSerde.fromBytes(out);
+        if (nearCache == null) {
+            return getFromStore((K) key);
+        }
+        final var cacheKey = cacheKey(key);
+        var cached = nearCache.get(cacheKey);
+        if (cached != null) return cached;
+        final long stamp = nearCache.stamp(cacheKey);
+        var value = getFromStore((K) key);
+        nearCache.put(cacheKey, value, stamp);
+        return value;
+    }
+
+    private ByteBuffer cacheKey(Object key) {
+        return ByteBuffer.wrap(keySerde.toBytes((K) key));
+    }
+
+    private V getFromStore(K key) {
+        if (keyBufferSerde != null) {
+            return lasherDB.get(encode(keyBufferSerde, key, 0), valBufferSerde::read);
+        }
+        return valueFromBytes(lasherDB.get(keySerde.toBytes(key)));
     }
 
     @Override
     public V put(K key, V value) {
-        var old = lasherDB.put(keySerde.toBytes(key), valSerde.toBytes(value));
-        if (old == null) return null;
-        return valSerde.fromBytes(old);
+        V old;
+        if (keyBufferSerde != null) {
+            requireNonNull(value);
+            old = lasherDB.put(encode(keyBufferSerde, key, 0), encode(valBufferSerde, value, 1), valBufferSerde::read);
+        } else {
+            old = valueFromBytes(lasherDB.put(keySerde.toBytes(key), valSerde.toBytes(value)));
+        }
+        invalidate(key);
+        return old;
+    }
+
+    /**
+     * Puts the entry which is treated as absent once the TTL elapses.
+     * @throws IllegalStateException if the store was not created with expiry
+     * @see LasherDB#put(byte[], byte[], Duration)
+     */
+    public V put(K key, V value, Duration ttl) {
+        return valueFromBytes(lasherDB.put(keySerde.toBytes(key), valSerde.toBytes(value), ttl));
+    }
+
+    /**
+     * Encodes the value into a reusable per thread buffer, so no intermediate byte arrays are allocated.
+     * @param slot 0 for keys, 1 for values
+     */
+    private <T> ByteBuffer encode(BufferSerde<T> serde, T value, int slot) {
+        requireNonNull(value);
+        final int size = serde.sizeOf(value);
+        var buffers = scratch.get();
+        var buffer = buffers[slot];
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, 64)).order(ByteOrder.nativeOrder());
+            if (size <= MAX_SCRATCH_SIZE) {
+                buffers[slot] = buffer;
+            }
+        }
+        buffer.clear();
+        serde.write(value, buffer);
+        return buffer.flip();
     }
 
     @Override
     public V remove(Object key) {
         var kBytes = keySerde.toBytes((K)key);
         var old = lasherDB.remove(kBytes);
+        invalidate(key);
         if (old == null) return null;
         return valSerde.fromBytes(old);
     }
@@ -67,6 +152,23 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
     @Override
     public void clear() {
         lasherDB.clear();
+        if (nearCache != null) {
+            nearCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Finds entries whose values have the given field value, reading the secondary index instead of all entries.
+     * @throws IllegalArgumentException if the store was not configured with the index
+     */
+    public <T> Map<K, V> getBy(SecondaryIndex<V, T> index, T fieldValue) {
+        requireNonNull(fieldValue);
+        var entries = lasherDB.getBy(index.name(), index.fieldSerde().toBytes(fieldValue));
+        var result = new HashMap<K, V>(entries.size());
+        for (var entry : entries) {
+            result.put(keySerde.fromBytes(entry.getKey()), valSerde.fromBytes(entry.getValue()));
+        }
+        return result;
     }
 
     @Override
@@ -74,10 +176,29 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
         return new EntrySet();
     }
 
+    /**
+     * Returns a key set view whose iterator reads and deserializes only keys.
+     */
+    @Override
+    public Set<K> keySet() {
+        return new KeySet();
+    }
+
+    /**
+     * Returns a values view whose iterator reads and deserializes only values.
+     */
+    @Override
+    public Collection<V> values() {
+        return new Values();
+    }
+
     @Override
     public V putIfAbsent(K key, V value) {
         var old = lasherDB.putIfAbsent(keySerde.toBytes(key), valSerde.toBytes(value));
-        if (old == null) return null;
+        if (old == null) {
+            invalidate(key);
+            return null;
+        }
         return valSerde.fromBytes(old);
     }
 
@@ -85,7 +206,11 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
     public boolean remove(Object key, Object value) {
         var kBytes = keySerde.toBytes((K)key);
         var vBytes = valSerde.toBytes((V)value);
-        return lasherDB.remove(kBytes, vBytes);
+        var removed = lasherDB.remove(kBytes, vBytes);
+        if (removed) {
+            invalidate(key);
+        }
+        return removed;
     }
 
     @Override
@@ -93,7 +218,11 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
         var kBytes = keySerde.toBytes(key);
         var oldValBytes = valSerde.toBytes(oldValue);
         var newValBytes = valSerde.toBytes(newValue);
-        return lasherDB.replace(kBytes, oldValBytes, newValBytes);
+        var replaced = lasherDB.replace(kBytes, oldValBytes, newValBytes);
+        if (replaced) {
+            invalidate(key);
+        }
+        return replaced;
     }
 
     @Override
@@ -102,9 +231,216 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
         var vBytes = valSerde.toBytes(value);
         var out = lasherDB.replace(kBytes, vBytes);
         if (out == null) return null;
+        invalidate(key);
         return valSerde.fromBytes(out);
     }
 
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        requireNonNull(remappingFunction);
+        var computed = new ComputedValue();
+        lasherDB.compute(keySerde.toBytes(key), oldBytes -> {
+            var newValue = remappingFunction.apply(key, valueFromBytes(oldBytes));
+            return computed.set(newValue);
+        });
+        invalidate(key);
+        return computed.value;
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        requireNonNull(mappingFunction);
+        var kBytes = keySerde.toBytes(key);
+        var existing = lasherDB.get(kBytes);
+        if (existing != null) return valSerde.fromBytes(existing);
+
+        var computed = new ComputedValue();
+        lasherDB.compute(kBytes, oldBytes -> {
+            if (oldBytes != null) {
+                computed.value = valSerde.fromBytes(oldBytes);
+                return oldBytes;
+            }
+            return computed.set(mappingFunction.apply(key));
+        });
+        invalidate(key);
+        return computed.value;
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        requireNonNull(remappingFunction);
+        var computed = new ComputedValue();
+        lasherDB.compute(keySerde.toBytes(key), oldBytes -> {
+            if (oldBytes == null) return null;
+            return computed.set(remappingFunction.apply(key, valSerde.fromBytes(oldBytes)));
+        });
+        invalidate(key);
+        return computed.value;
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        requireNonNull(value);
+        requireNonNull(remappingFunction);
+        var computed = new ComputedValue();
+        lasherDB.compute(keySerde.toBytes(key), oldBytes -> {
+            if (oldBytes == null) return computed.set(value);
+            return computed.set(remappingFunction.apply(valSerde.fromBytes(oldBytes), value));
+        });
+        invalidate(key);
+        return computed.value;
+    }
+
+    /**
+     * Keeps the deserialized result of a remapping function, so it is not deserialized again after the write.
+     */
+    private final class ComputedValue {
+        V value;
+
+        byte[] set(V newValue) {
+            this.value = newValue;
+            return newValue == null ? null : valSerde.toBytes(newValue);
+        }
+    }
+
+    public CompletableFuture<V> getAsync(K key) {
+        return lasherDB.getAsync(keySerde.toBytes(key))
+                .thenApply(this::valueFromBytes);
+    }
+
+    public CompletableFuture<V> putAsync(K key, V value) {
+        return lasherDB.putAsync(keySerde.toBytes(key), valSerde.toBytes(value))
+                .thenApply(old -> {
+                    invalidate(key);
+                    return valueFromBytes(old);
+                });
+    }
+
+    public CompletableFuture<V> removeAsync(K key) {
+        return lasherDB.removeAsync(keySerde.toBytes(key))
+                .thenApply(old -> {
+                    invalidate(key);
+                    return valueFromBytes(old);
+                });
+    }
+
+    /**
+     * Asynchronously reads all given keys, coalescing them per shard.
+     * @return future of a map containing only the keys that are present
+     */
+    public CompletableFuture<Map<K, V>> getAllAsync(Collection<? extends K> keys) {
+        var orderedKeys = new ArrayList<K>(keys);
+        var keyBytes = new ArrayList<byte[]>(orderedKeys.size());
+        for (var key : orderedKeys) {
+            keyBytes.add(keySerde.toBytes(key));
+        }
+        return lasherDB.getAllAsync(keyBytes)
+                .thenApply(values -> {
+                    var result = new HashMap<K, V>(values.size());
+                    for (int i = 0; i < values.size(); i++) {
+                        var value = values.get(i);
+                        if (value != null) {
+                            result.put(orderedKeys.get(i), valSerde.fromBytes(value));
+                        }
+                    }
+                    return result;
+                });
+    }
+
+    public CompletableFuture<Void> putAllAsync(Map<? extends K, ? extends V> entries) {
+        return lasherDB.putAllAsync(toBytesEntries(entries))
+                .thenRun(() -> entries.keySet().forEach(this::invalidate));
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        lasherDB.putAll(toBytesEntries(entries));
+        entries.keySet().forEach(this::invalidate);
+    }
+
+    private Map<byte[], byte[]> toBytesEntries(Map<? extends K, ? extends V> entries) {
+        var result = new IdentityHashMap<byte[], byte[]>(entries.size());
+        entries.forEach((k, v) -> result.put(keySerde.toBytes(k), valSerde.toBytes(v)));
+        return result;
+    }
+
+    private void invalidate(Object key) {
+        if (nearCache != null) {
+            nearCache.invalidate(cacheKey(key));
+        }
+    }
+
+    private V valueFromBytes(byte[] bytes) {
+        if (bytes == null) return null;
+        return valSerde.fromBytes(bytes);
+    }
+
+    protected class KeySet extends AbstractSet<K> {
+        @Override
+        public int size() {
+            return LasherMap.this.size();
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            var backingIt = lasherDB.keyIterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return backingIt.hasNext();
+                }
+
+                @Override
+                public K next() {
+                    return keySerde.fromBytes(backingIt.next());
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return LasherMap.this.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return LasherMap.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            LasherMap.this.clear();
+        }
+    }
+
+    protected class Values extends AbstractCollection<V> {
+        @Override
+        public int size() {
+            return LasherMap.this.size();
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            var backingIt = lasherDB.valueIterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return backingIt.hasNext();
+                }
+
+                @Override
+                public V next() {
+                    return valSerde.fromBytes(backingIt.next());
+                }
+            };
+        }
+
+        @Override
+        public void clear() {
+            LasherMap.this.clear();
+        }
+    }
+
     protected class EntrySet extends AbstractSet<Map.Entry<K, V>> {
         @Override
         public int size() {
@@ -115,6 +451,7 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
         public Iterator<Map.Entry<K, V>> iterator() {
             return new Iterator<>() {
                 final Iterator<Map.Entry<byte[], byte[]>> backingIt = lasherDB.iterator();
+                K lastKey;
 
                 @Override
                 public boolean hasNext() {
@@ -126,12 +463,14 @@ public class LasherMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,
                     final Map.Entry<byte[], byte[]> e = backingIt.next();
                     var k = keySerde.fromBytes(e.getKey());
                     var v = valSerde.fromBytes(e.getValue());
+                    lastKey = k;
                     return new AbstractMap.SimpleImmutableEntry<>(k, v);
                 }
 
                 @Override
                 public void remove() {
                     backingIt.remove();
+                    invalidate(lastKey);
                 }
             };
         }
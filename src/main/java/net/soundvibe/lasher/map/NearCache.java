@@ -0,0 +1,196 @@
+package net.soundvibe.lasher.map;
+
+import io.micrometer.core.instrument.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bounded on-heap cache of deserialized values which could be put in front of {@link LasherMap}.
+ * Eviction uses the CLOCK (second chance) policy and is bounded either by entry count or by total weight.
+ * Cache hits are lock free, while inserts, evictions and invalidations are serialized per segment.
+ * Cached instances are shared between readers, so values should be immutable.
+ */
+public final class NearCache<K, V> {
+
+	private final List<Segment<K, V>> segments;
+	private final ToIntFunction<? super V> weigher;
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter evictions;
+
+	/**
+	 * Creates a cache bounded by number of entries.
+	 */
+	public NearCache(long maxEntries, Tags tags) {
+		this(maxEntries, value -> 1, tags);
+	}
+
+	/**
+	 * Creates a cache bounded by total weight of cached values.
+	 * @param maxWeight maximum total weight of cached values
+	 * @param weigher computes non-negative weight of a value, e.g. its approximate size in bytes
+	 */
+	public NearCache(long maxWeight, ToIntFunction<? super V> weigher, Tags tags) {
+		if (maxWeight <= 0L) {
+			throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+		}
+		this.weigher = weigher;
+		int segmentCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2);
+		while (segmentCount > 1 && maxWeight / segmentCount < 16) {
+			segmentCount >>= 1;
+		}
+		this.segments = new ArrayList<>(segmentCount);
+		for (int i = 0; i < segmentCount; i++) {
+			segments.add(new Segment<>(Math.max(1L, maxWeight / segmentCount)));
+		}
+		this.hits = Metrics.counter("near-cache-hits", tags);
+		this.misses = Metrics.counter("near-cache-misses", tags);
+		this.evictions = Metrics.counter("near-cache-evictions", tags);
+		Metrics.gauge("near-cache-size", tags, this, NearCache::size);
+	}
+
+	public V get(Object key) {
+		var node = segmentFor(key).nodes.get(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+		node.referenced = true;
+		hits.increment();
+		return node.value;
+	}
+
+	/**
+	 * Returns a stamp which should be taken before the backing store is read for a value which is going to be cached.
+	 * @see #put(Object, Object, long)
+	 */
+	public long stamp(Object key) {
+		return segmentFor(key).stamp.get();
+	}
+
+	/**
+	 * Caches the value unless the key's segment was invalidated after the stamp was taken,
+	 * so a value read concurrently with a write is never cached over the newer one.
+	 */
+	public void put(K key, V value, long stamp) {
+		if (value == null) return;
+		var segment = segmentFor(key);
+		synchronized (segment) {
+			if (segment.stamp.get() != stamp) return;
+			evictions.increment(segment.put(key, value, weigher.applyAsInt(value)));
+		}
+	}
+
+	public void invalidate(Object key) {
+		var segment = segmentFor(key);
+		synchronized (segment) {
+			segment.stamp.incrementAndGet();
+			segment.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		for (var segment : segments) {
+			synchronized (segment) {
+				segment.stamp.incrementAndGet();
+				segment.clear();
+			}
+		}
+	}
+
+	public long size() {
+		long size = 0L;
+		for (var segment : segments) {
+			size += segment.nodes.size();
+		}
+		return size;
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments.get(h & (segments.size() - 1));
+	}
+
+	private static final class Node<K, V> {
+		final K key;
+		final V value;
+		final int weight;
+		int slot;
+		volatile boolean referenced;
+
+		Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private static final class Segment<K, V> {
+		final Map<Object, Node<K, V>> nodes = new ConcurrentHashMap<>();
+		final List<Node<K, V>> clock = new ArrayList<>();
+		final AtomicLong stamp = new AtomicLong();
+		final long maxWeight;
+		long weight;
+		int hand;
+
+		Segment(long maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+
+		int put(K key, V value, int valueWeight) {
+			var node = new Node<>(key, value, valueWeight);
+			var old = nodes.put(key, node);
+			if (old == null) {
+				node.slot = clock.size();
+				clock.add(node);
+			} else {
+				node.slot = old.slot;
+				node.referenced = true;
+				clock.set(old.slot, node);
+				weight -= old.weight;
+			}
+			weight += valueWeight;
+			return evict();
+		}
+
+		int evict() {
+			int evicted = 0;
+			while (weight > maxWeight && !clock.isEmpty()) {
+				if (hand >= clock.size()) {
+					hand = 0;
+				}
+				var candidate = clock.get(hand);
+				if (candidate.referenced) {
+					candidate.referenced = false;
+					hand++;
+				} else {
+					remove(candidate.key);
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		void remove(Object key) {
+			var node = nodes.remove(key);
+			if (node == null) return;
+			var last = clock.remove(clock.size() - 1);
+			if (last != node) {
+				last.slot = node.slot;
+				clock.set(node.slot, last);
+			}
+			weight -= node.weight;
+		}
+
+		void clear() {
+			nodes.clear();
+			clock.clear();
+			weight = 0L;
+			hand = 0;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package net.soundvibe.lasher.map;
+
+import net.soundvibe.lasher.db.LasherConfig;
+import net.soundvibe.lasher.serde.Serde;
+
+import java.util.function.Function;
+
+/**
+ * Typed definition of a secondary index of a {@link LasherMap}, which indexes values by one of their fields.
+ * The index is added to the store configuration by {@link #register(LasherConfig, Serde)}
+ * and queried by {@link LasherMap#getBy(SecondaryIndex, Object)}.
+ * @param name index name, see {@link LasherConfig#withSecondaryIndex(String, java.util.function.UnaryOperator)}
+ * @param field extracts the indexed field from a value, returning null leaves the value unindexed
+ * @param fieldSerde serializes indexed fields, equal fields must have equal bytes
+ */
+public record SecondaryIndex<V, T>(String name, Function<? super V, ? extends T> field, Serde<T> fieldSerde) {
+
+    /**
+     * @param valSerde serde of values of the map this index is used with
+     * @return the configuration with this index added
+     */
+    public LasherConfig register(LasherConfig config, Serde<V> valSerde) {
+        return config.withSecondaryIndex(name, bytes -> {
+            final T value = field.apply(valSerde.fromBytes(bytes));
+            return value == null ? null : fieldSerde.toBytes(value);
+        });
+    }
+}
@@ -1,10 +1,12 @@
 package net.soundvibe.lasher.map.core;
 
 import io.micrometer.core.instrument.*;
+import net.soundvibe.lasher.map.model.FileType;
 import net.soundvibe.lasher.map.sync.*;
 import net.soundvibe.lasher.mmap.*;
 
-import java.nio.file.Path;
+import java.io.*;
+import java.nio.file.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -13,66 +15,264 @@ import static net.soundvibe.lasher.util.FileSupport.deleteDirectory;
 
 public abstract class BaseLinearHashMap implements AutoCloseable {
 
-	private static final long HEADER_SIZE = 28L;
+	/**
+	 * Stores created before versioned records were introduced have a header without magic and features.
+	 */
+	static final long LEGACY_HEADER_SIZE = 28L;
+	static final long HEADER_SIZE = 48L;
+	static final long MAGIC_POS = 28L;
+	static final long FEATURES_POS = 36L;
+	static final long LAST_VERSION_POS = 40L;
+	static final long MAGIC = 0x4C61736865723031L;
+	public static final int FEATURE_VERSIONS = 1;
+	public static final int FEATURE_EXPIRY = 1 << 1;
 	static final int STRIPES = (int) Math.pow(2, 8);
 	static final double LOAD_FACTOR = 0.75;
+	static final String COMPACTION_DIR = "compaction";
+	static final String COMPACTION_COMMITTED = "committed";
 
 	private final long defaultFileLength /*1L << 28*/;
 
-	final IndexNode index;
-	final DataNode data;
+	IndexNode index;
+	DataNode data;
 	final Path baseDir;
 	final LinerHashMapMetrics metrics;
 	final Locker dataLock;
+	final int requestedFeatures;
 
 	long tableLength;
+	long headerSize = HEADER_SIZE;
+	int features;
+	/**
+	 * Approximate number of bytes taken by records which are no longer linked, reset by compaction.
+	 * It is not persisted, so space wasted before the store was reopened is not counted.
+	 */
+	long wastedBytes;
+	/**
+	 * Number of times the files were replaced by compaction, which moves all records, or cleared,
+	 * after which records are overwritten from the start of the data file.
+	 */
+	int compactions;
 
 	final AtomicLong dataWritePos = new AtomicLong(0L);
 	final AtomicLong size = new AtomicLong(0L);
 	final AtomicInteger rehashIndex = new AtomicInteger(0);
+	final AtomicLong lastVersion = new AtomicLong(0L);
 
 	protected BaseLinearHashMap(Path baseDir, long indexFileLength, long dataFileLength) {
 		this(baseDir, indexFileLength, dataFileLength, true, Tags.empty());
 	}
 
 	protected BaseLinearHashMap(Path baseDir, long indexFileLength, long dataFileLength, boolean locker, Tags tags) {
+		this(baseDir, indexFileLength, dataFileLength, locker, tags, 0);
+	}
+
+	/**
+	 * @param features optional record header fields of a new store, a combination of FEATURE_* flags.
+	 *                 Existing stores keep the layout they were created with, so requesting a feature
+	 *                 the store was created without fails.
+	 */
+	protected BaseLinearHashMap(Path baseDir, long indexFileLength, long dataFileLength, boolean locker, Tags tags,
+								int features) {
 		this.baseDir = baseDir;
+		this.requestedFeatures = features;
 		this.defaultFileLength = nextPowerOf2(dataFileLength);
 		this.dataLock = locker ? new RWLocker(new ReentrantReadWriteLock()) : new NoOpLocker();
 		baseDir.toFile().mkdirs();
+		recoverCompaction();
 		this.index = new IndexNode(baseDir, nextPowerOf2(indexFileLength));
 		this.data = new DataNode(baseDir, this.defaultFileLength);
-		readHeader();
-		Metrics.gauge("index-size-bytes", tags, this.index, MemoryMapped::size);
-		Metrics.gauge("data-size-bytes", tags, this.data, MemoryMapped::size);
+		try {
+			readHeader();
+		} catch (RuntimeException e) {
+			index.close();
+			data.close();
+			throw e;
+		}
+		Metrics.gauge("index-size-bytes", tags, this, map -> map.index.size());
+		Metrics.gauge("data-size-bytes", tags, this, map -> map.data.size());
 		this.metrics = new LinerHashMapMetrics(
 				Metrics.timer("rehash-duration", tags),
 				Metrics.gauge("rehashing", tags, new AtomicLong(0L)),
-				Metrics.counter("rehash-count", tags));
+				Metrics.counter("rehash-count", tags),
+				Metrics.counter("expired-reads", tags),
+				Metrics.counter("expired-swept", tags),
+				Metrics.counter("evicted-entries", tags),
+				Metrics.timer("compaction-duration", tags));
 	}
 
-	record LinerHashMapMetrics(Timer rehashDuration, AtomicLong rehashInProgress, Counter rehashCounter) {}
+	record LinerHashMapMetrics(Timer rehashDuration, AtomicLong rehashInProgress, Counter rehashCounter,
+							   Counter expiredReads, Counter expiredSwept, Counter evictions, Timer compactionDuration) {}
 
 	protected abstract void readHeader();
 
 	public abstract byte[] get(byte[] key);
 
 	protected long getHeaderSize() {
-		return HEADER_SIZE;
+		return headerSize;
+	}
+
+	/**
+	 * Reads the optional part of the header, which tells what features the store was created with.
+	 * @param newStore true if nothing was written to the store yet
+	 */
+	protected void readFeatures(boolean newStore) {
+		if (newStore) {
+			this.headerSize = HEADER_SIZE;
+			this.features = requestedFeatures;
+		} else if (data.getLong(MAGIC_POS) == MAGIC) {
+			this.headerSize = HEADER_SIZE;
+			this.features = data.getInt(FEATURES_POS);
+			this.lastVersion.set(data.getLong(LAST_VERSION_POS));
+		} else {
+			this.headerSize = LEGACY_HEADER_SIZE;
+			this.features = 0;
+		}
+
+		if ((requestedFeatures & ~features) != 0) {
+			throw new IllegalStateException(String.format("Store at %s was created without requested features: %d",
+					baseDir, requestedFeatures & ~features));
+		}
+		data.useLayout((features & FEATURE_VERSIONS) != 0, (features & FEATURE_EXPIRY) != 0);
+	}
+
+	public boolean versioned() {
+		return data.versioned();
+	}
+
+	public boolean expires() {
+		return data.expires();
+	}
+
+	/**
+	 * Stamps the record at the given position with a new version, if the store keeps versions.
+	 * Versions are unique and increasing within a single store.
+	 */
+	protected void stampVersion(long pos) {
+		if (data.versioned()) {
+			data.writeVersion(pos, lastVersion.incrementAndGet());
+		}
 	}
 
 	protected void writeHeader() {
 		dataLock.writeLock();
 		try {
-			data.putLong(0L, size());
-			data.putLong(8L, tableLength);
-			data.putLong(16L, dataWritePos.get());
-			data.putInt(24L, rehashIndex.get());
+			writeHeader(data, size(), dataWritePos.get());
 		} finally {
 			dataLock.writeUnlock();
 		}
 	}
 
+	protected void writeHeader(DataNode target, long size, long writePos) {
+		target.putLong(0L, size);
+		target.putLong(8L, tableLength);
+		target.putLong(16L, writePos);
+		target.putInt(24L, rehashIndex.get());
+		if (headerSize == HEADER_SIZE) {
+			target.putLong(MAGIC_POS, MAGIC);
+			target.putInt(FEATURES_POS, features);
+			target.putLong(LAST_VERSION_POS, lastVersion.get());
+		}
+	}
+
+	/**
+	 * Replaces index and data files with compacted ones prepared in the given directory.
+	 * A commit marker is written first, so if the process dies while files are moved,
+	 * the move is completed by {@link #recoverCompaction()} when the store is opened again.
+	 */
+	protected void replaceFiles(Path compactedDir, long size, long writePos) {
+		try {
+			Files.createFile(compactedDir.resolve(COMPACTION_COMMITTED));
+			index.close();
+			data.close();
+			moveCompactedFiles(compactedDir);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.index = new IndexNode(baseDir, index.size());
+		this.data = new DataNode(baseDir, defaultFileLength);
+		data.useLayout((features & FEATURE_VERSIONS) != 0, (features & FEATURE_EXPIRY) != 0);
+		this.size.set(size);
+		this.dataWritePos.set(writePos);
+		this.wastedBytes = 0L;
+		this.compactions++;
+	}
+
+	/**
+	 * Compaction pays off once at least half of the used space of the data file is wasted.
+	 * Small stores are not compacted, since the data file never shrinks below its default length anyway.
+	 */
+	protected boolean isWasteful() {
+		final long used = dataWritePos.get() - headerSize;
+		return wastedBytes >= used / 2L && used >= defaultFileLength / 2L;
+	}
+
+	/**
+	 * Completes a committed compaction or discards an unfinished one.
+	 */
+	private void recoverCompaction() {
+		var compactedDir = baseDir.resolve(COMPACTION_DIR);
+		if (Files.notExists(compactedDir)) return;
+		try {
+			if (Files.exists(compactedDir.resolve(COMPACTION_COMMITTED))) {
+				moveCompactedFiles(compactedDir);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		deleteDirectory(compactedDir);
+	}
+
+	private void moveCompactedFiles(Path compactedDir) throws IOException {
+		for (var fileType : new FileType[]{FileType.INDEX, FileType.DATA}) {
+			var compacted = compactedDir.resolve(fileType.filename);
+			if (Files.exists(compacted)) {
+				Files.move(compacted, baseDir.resolve(fileType.filename),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+		deleteDirectory(compactedDir);
+	}
+
+	/**
+	 * Empties a closed store in place, without zero-filling or writing back its mapped files. The index file is
+	 * truncated and regrown sparsely to the initial length of a new store, the data file is shrunk to its initial
+	 * length with the header of a new store, and the other files of the store are deleted.
+	 */
+	public static void reset(Path baseDir, long indexFileLength, long dataFileLength) {
+		final var indexFile = baseDir.resolve(FileType.INDEX.filename);
+		final var dataFile = baseDir.resolve(FileType.DATA.filename);
+		try (var files = Files.list(baseDir)) {
+			for (var file : (Iterable<Path>) files::iterator) {
+				if (file.equals(indexFile) || file.equals(dataFile)) continue;
+				if (Files.isDirectory(file)) {
+					deleteDirectory(file);
+				} else {
+					Files.delete(file);
+				}
+			}
+			final long dataLength = powerOf2(dataFileLength);
+			if (Files.exists(indexFile)) {
+				try (var index = new RandomAccessFile(indexFile.toFile(), "rw")) {
+					index.setLength(0L);
+					index.setLength(Math.max(dataLength, powerOf2(indexFileLength)));
+				}
+			}
+			if (Files.exists(dataFile)) {
+				try (var data = new RandomAccessFile(dataFile.toFile(), "rw")) {
+					data.setLength(Math.min(data.length(), dataLength));
+					data.write(new byte[(int) HEADER_SIZE]);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static long powerOf2(long i) {
+		return (i & (i - 1)) == 0 ? i : 1L << (64 - Long.numberOfLeadingZeros(i));
+	}
+
 	public long nextPowerOf2(long i) {
 		if (i < defaultFileLength) return (defaultFileLength);
 		if ((i & (i - 1)) == 0) return i;
@@ -193,11 +393,22 @@ public abstract class BaseLinearHashMap implements AutoCloseable {
 			this.dataWritePos.set(getHeaderSize());
 			this.size.set(0);
 			this.rehashIndex.set(0);
+			this.wastedBytes = 0L;
+			this.compactions++;
 		} finally {
 			dataLock.writeUnlock();
 		}
 	}
 
+	/**
+	 * Writes all header metadata and forces the backing mmap'd files to the storage device.
+	 */
+	public void flush() {
+		writeHeader();
+		index.flush();
+		data.flush();
+	}
+
 	/**
 	 * Writes all header metadata and unmaps the backing mmap'd files.
 	 */
@@ -0,0 +1,15 @@
+package net.soundvibe.lasher.map.core;
+
+/**
+ * Receives changes of entries made by a {@link Lasher} while it is written, so that structures derived
+ * from the entries could be kept in sync without looking the keys up again.
+ */
+@FunctionalInterface
+interface EntryListener {
+
+	/**
+	 * @param before value before the change, or null if the key was absent
+	 * @param after value after the change, or null if the key was removed, evicted or expired
+	 */
+	void changed(byte[] key, byte[] before, byte[] after);
+}
@@ -1,43 +1,92 @@
 package net.soundvibe.lasher.map.core;
 
 import io.micrometer.core.instrument.Tags;
-import net.soundvibe.lasher.map.model.RecordNode;
+import net.soundvibe.lasher.map.model.*;
 import net.soundvibe.lasher.map.sync.Locker;
-import net.soundvibe.lasher.util.Hash;
+import net.soundvibe.lasher.mmap.*;
+import net.soundvibe.lasher.util.*;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.*;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 import static java.util.Objects.requireNonNull;
 import static net.soundvibe.lasher.util.Constants.*;
+import static net.soundvibe.lasher.util.FileSupport.deleteDirectory;
 
 public class Lasher extends BaseLinearHashMap {
 
 	public static final long DEFAULT_FILE_LENGTH = 1L << 28;
+	public static final long NO_EXPIRY = 0L;
 
 	public static final long MB_32 = (long) Math.pow(2, 25L);
 	public static final long MB_128 = (long) Math.pow(2, 27L);
 
 	private static final int INDEX_REC_SIZE = Long.BYTES;
+	private static final Cleaner SCANS = Cleaner.create();
+	private static final int MAX_EVICTIONS = 16;
+	/**
+	 * Bytes of the data file parsed by sequential scans under a single read lock acquisition.
+	 */
+	private static final long SCAN_WINDOW_BYTES = 1L << 20;
+
+	private final long maxEntries;
+	private final UnaryOperator<byte[]> orderedBy;
+	private final OrderedIndex ordered;
+	private long clockIdx;
+	private EntryListener listener;
+	private Compaction runningCompaction;
+	/**
+	 * Number of running sequential scans, which defer the end of a compaction.
+	 */
+	private final AtomicInteger scans = new AtomicInteger();
 
 	public Lasher(Path baseDir) {
 		this(baseDir, MB_128, MB_32);
 	}
 
 	public Lasher(Path baseDir, long indexFileLength) {
-		super(baseDir, indexFileLength, DEFAULT_FILE_LENGTH);
+		this(baseDir, indexFileLength, DEFAULT_FILE_LENGTH);
 	}
 
 	public Lasher(Path baseDir, long indexFileLength, long dataFileLength) {
-		super(baseDir, indexFileLength, dataFileLength);
+		this(baseDir, indexFileLength, dataFileLength, true, Tags.empty());
 	}
 
 	public Lasher(Path baseDir, long indexFileLength, long dataFileLength, boolean locker, Tags tags) {
-		super(baseDir, indexFileLength, dataFileLength, locker, tags);
+		this(baseDir, indexFileLength, dataFileLength, locker, tags, StoreOptions.NONE);
+	}
+
+	public Lasher(Path baseDir, long indexFileLength, long dataFileLength, boolean locker, Tags tags,
+				  StoreOptions options) {
+		super(baseDir, indexFileLength, dataFileLength, locker, tags, options.features());
+		this.maxEntries = options.maxEntries();
+		this.orderedBy = options.orderedBy();
+		this.ordered = orderedBy == null ? null : new OrderedIndex(baseDir);
+		if (ordered != null && !ordered.isSynced(size(), dataWritePos.get())) {
+			rebuildOrderedIndex();
+		}
 	}
 
 	public static Lasher forShard(Path baseDir, long indexFileLength, long dataFileLength, Tags tags) {
-		return new Lasher(baseDir, indexFileLength, dataFileLength, false, tags);
+		return forShard(baseDir, indexFileLength, dataFileLength, tags, StoreOptions.NONE);
+	}
+
+	public static Lasher forShard(Path baseDir, long indexFileLength, long dataFileLength, Tags tags,
+								  StoreOptions options) {
+		return new Lasher(baseDir, indexFileLength, dataFileLength, false, tags, options);
+	}
+
+	/**
+	 * Sets the listener notified of every change of an entry, including evictions and expirations.
+	 * It is called by writers while they hold the lock of the store.
+	 */
+	void setListener(EntryListener listener) {
+		this.listener = listener;
 	}
 
 	@Override
@@ -54,7 +103,8 @@ public class Lasher extends BaseLinearHashMap {
 
 		var record = readDataRecord(adr);
 		while (true) {
-			if (record.keyEquals(key)) {
+			if (matches(record, key)) {
+				touch(record.pos);
 				return record.val;
 			} else if (record.getNextRecordPos() != 0L) {
 				record = readDataRecord(record.getNextRecordPos());
@@ -63,26 +113,637 @@ public class Lasher extends BaseLinearHashMap {
 		}
 	}
 
+	/**
+	 * Looks the key up without copying stored keys and passes a read-only view of the stored value to the reader.
+	 * @param key key bytes from the buffer's position to its limit
+	 * @return the reader result or null if the key is absent
+	 */
+	public <T> T get(ByteBuffer key, long hash, Function<ByteBuffer, T> reader) {
+		long adr = index.getDataAddress(indexPos(hash));
+		while (adr != 0L) {
+			if (matches(adr, key)) {
+				touch(adr);
+				return data.readValue(adr, reader);
+			}
+			adr = data.readNextRecordPos(adr);
+		}
+		return null;
+	}
+
+	/**
+	 * Puts the key and value taken from the buffers' remaining bytes, copying them straight into mapped memory.
+	 * @param previousReader reads the previous value from a read-only view, may be null if it is not needed
+	 * @return the previous reader result or null if the key was absent or previousReader is null
+	 */
+	public <T> T put(ByteBuffer key, ByteBuffer value, long hash, Function<ByteBuffer, T> previousReader) {
+		rehash();
+		requireIndexable(key);
+
+		final long indexPos = writeIndexPos(hash);
+		final long recordSize = (long) data.headerSize() + key.remaining() + value.remaining();
+		long adr = index.getDataAddress(indexPos);
+		long prevPos = 0L;
+		while (adr != 0L) {
+			final long nextPos = data.readNextRecordPos(adr);
+			if (data.keyEquals(adr, key)) {
+				final T previous = previousReader == null || !isLive(adr) ? null : data.readValue(adr, previousReader);
+				if (listener != null) {
+					listener.changed(bytesOf(key), data.readValue(adr), bytesOf(value));
+				}
+				if (data.updateValue(adr, value)) {
+					stamp(adr, NO_EXPIRY);
+					return previous;
+				}
+				final long insertPos = allocateData(recordSize);
+				writeRecord(key, value, insertPos, nextPos);
+				link(indexPos, prevPos, insertPos);
+				wastedBytes += data.recordLength(adr);
+				return previous;
+			}
+			prevPos = adr;
+			adr = nextPos;
+		}
+		final long insertPos = allocateData(recordSize);
+		writeRecord(key, value, insertPos, 0L);
+		link(indexPos, prevPos, insertPos);
+		size.incrementAndGet();
+		afterInsert(insertPos);
+		return null;
+	}
+
+	/**
+	 * Finds the long value of the key if it could be updated atomically in place while holding only a shared lock.
+	 * Values of versioned stores are never updated this way, because their versions have to change as well.
+	 * @return position of the 8 byte aligned value, or -1 if the key is absent or its value is not aligned
+	 * @throws IllegalStateException if the value is not a long
+	 */
+	public long alignedLongPos(byte[] key, long hash) {
+		if (data.versioned()) return -1L;
+		final long adr = findRecord(ByteBuffer.wrap(key), index.getDataAddress(writeIndexPos(hash)));
+		if (adr == 0L) return -1L;
+		touch(adr);
+		final long valuePos = data.longValuePos(adr);
+		return data.isAligned(valuePos) ? valuePos : -1L;
+	}
+
+	/**
+	 * Atomically adds delta to the value found by {@link #alignedLongPos(byte[], long)}.
+	 * @return the previous value
+	 */
+	public long getAndAddAligned(long valuePos, long delta) {
+		return data.getAndAddLong(valuePos, delta);
+	}
+
+	/**
+	 * Atomically sets the value found by {@link #alignedLongPos(byte[], long)} if it equals the expected value.
+	 */
+	public boolean compareAndSetAligned(long valuePos, long expected, long newValue) {
+		return data.compareAndSetLong(valuePos, expected, newValue);
+	}
+
+	/**
+	 * Adds delta to the long value of the key in place. An absent key is treated as 0 and inserted.
+	 * A value which is not 8 byte aligned is moved into an aligned record, so later updates could be atomic.
+	 * Values are longs in {@link BytesSupport#BYTE_ORDER}, as written by LongSerde.
+	 * @return the previous value
+	 * @throws IllegalStateException if the value is not a long
+	 */
+	public long getAndAdd(byte[] key, long delta, long hash) {
+		rehash();
+		requireIndexable(key);
+
+		final long indexPos = writeIndexPos(hash);
+		final var keyBuffer = ByteBuffer.wrap(key);
+		long adr = index.getDataAddress(indexPos);
+		long prevPos = 0L;
+		while (adr != 0L) {
+			if (data.keyEquals(adr, keyBuffer)) {
+				if (!isLive(adr)) {
+					relocateLong(indexPos, prevPos, adr, key, delta, NO_EXPIRY);
+					return 0L;
+				}
+				touch(adr);
+				final long previous = data.getLong(data.longValuePos(adr));
+				updateLong(indexPos, prevPos, adr, key, previous + delta);
+				return previous;
+			}
+			prevPos = adr;
+			adr = data.readNextRecordPos(adr);
+		}
+		insertLong(indexPos, prevPos, key, delta);
+		return 0L;
+	}
+
+	/**
+	 * Sets the long value of the key in place if it equals the expected value. An absent key is treated as 0,
+	 * so it is inserted if the expected value is 0.
+	 * @throws IllegalStateException if the value is not a long
+	 */
+	public boolean compareAndSet(byte[] key, long expected, long newValue, long hash) {
+		rehash();
+		requireIndexable(key);
+
+		final long indexPos = writeIndexPos(hash);
+		final var keyBuffer = ByteBuffer.wrap(key);
+		long adr = index.getDataAddress(indexPos);
+		long prevPos = 0L;
+		while (adr != 0L) {
+			if (data.keyEquals(adr, keyBuffer)) {
+				if (!isLive(adr)) {
+					if (expected != 0L) return false;
+					relocateLong(indexPos, prevPos, adr, key, newValue, NO_EXPIRY);
+					return true;
+				}
+				touch(adr);
+				if (data.getLong(data.longValuePos(adr)) != expected) return false;
+				updateLong(indexPos, prevPos, adr, key, newValue);
+				return true;
+			}
+			prevPos = adr;
+			adr = data.readNextRecordPos(adr);
+		}
+		if (expected != 0L) return false;
+		insertLong(indexPos, prevPos, key, newValue);
+		return true;
+	}
+
+	/**
+	 * @return the value with the version of its record or null if the key is absent
+	 * @throws IllegalStateException if the store doesn't keep versions
+	 */
+	public VersionedValue getWithVersion(byte[] key, long hash) {
+		requireVersions();
+		final long adr = findRecord(ByteBuffer.wrap(key), index.getDataAddress(indexPos(hash)));
+		if (adr == 0L) return null;
+		touch(adr);
+		return new VersionedValue(data.readValue(adr), data.readVersion(adr));
+	}
+
+	/**
+	 * Replaces the value only if the record still has the given version, which costs a single comparison
+	 * regardless of the value size.
+	 * @throws IllegalStateException if the store doesn't keep versions
+	 */
+	public boolean replaceIfVersion(byte[] key, long version, byte[] newValue, long hash) {
+		requireVersions();
+		final long indexPos = writeIndexPos(hash);
+		final var keyBuffer = ByteBuffer.wrap(key);
+		long adr = index.getDataAddress(indexPos);
+		long prevPos = 0L;
+		while (adr != 0L) {
+			final long nextPos = data.readNextRecordPos(adr);
+			if (matches(adr, keyBuffer)) {
+				if (data.readVersion(adr) != version) return false;
+				updateRecord(indexPos, adr, nextPos, key, newValue, prevPos, NO_EXPIRY);
+				return true;
+			}
+			prevPos = adr;
+			adr = nextPos;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the key only if its record still has the given version.
+	 * @throws IllegalStateException if the store doesn't keep versions
+	 */
+	public boolean removeIfVersion(byte[] key, long version, long hash) {
+		requireVersions();
+		final long indexPos = writeIndexPos(hash);
+		final var keyBuffer = ByteBuffer.wrap(key);
+		long adr = index.getDataAddress(indexPos);
+		long prevPos = 0L;
+		while (adr != 0L) {
+			final long nextPos = data.readNextRecordPos(adr);
+			if (matches(adr, keyBuffer)) {
+				if (data.readVersion(adr) != version) return false;
+				unlink(indexPos, prevPos, adr, nextPos);
+				return true;
+			}
+			prevPos = adr;
+			adr = nextPos;
+		}
+		return false;
+	}
+
+	/**
+	 * Unlinks expired records from chains of a range of index slots, so the whole table can be swept
+	 * in small steps, each holding the lock only briefly.
+	 * @param fromIdx index slot to start from
+	 * @param maxSlots maximum number of index slots to sweep
+	 * @return index slot to continue from, 0 if the end of the table was reached
+	 */
+	public long sweepExpired(long fromIdx, int maxSlots) {
+		if (!data.expires()) return 0L;
+		final long length = rehashIndex.get() == 0L ? tableLength : tableLength * 2L;
+		final long now = System.currentTimeMillis();
+		long removed = 0L;
+		long idx = fromIdx;
+		for (int i = 0; i < maxSlots && idx < length; i++, idx++) {
+			final long indexPos = idxToPos(idx);
+			long adr = index.getDataAddress(indexPos);
+			long prevPos = 0L;
+			while (adr != 0L) {
+				final long nextPos = data.readNextRecordPos(adr);
+				if (data.isExpired(adr, now)) {
+					unlink(indexPos, prevPos, adr, nextPos);
+					markDirty(indexPos);
+					removed++;
+				} else {
+					prevPos = adr;
+				}
+				adr = nextPos;
+			}
+		}
+		if (removed > 0L) {
+			metrics.expiredSwept().increment(removed);
+		}
+		return idx >= length ? 0L : idx;
+	}
+
+	/**
+	 * Rewrites linked records into new files, reclaiming the space of removed, replaced, evicted and expired records.
+	 * Chains keep their index slots and order, and aligned long values stay aligned, so counters could still
+	 * be updated atomically in place. A compaction started by {@link #compactStep(int)} is completed.
+	 */
+	public void compact() {
+		dataLock.writeLock();
+		try {
+			runCompaction(Long.MAX_VALUE, true);
+		} finally {
+			dataLock.writeUnlock();
+		}
+	}
+
+	/**
+	 * Runs a step of a compaction, which is started once enough space is wasted. Each step copies at most maxSlots
+	 * index slots into new files, so a compaction runs between writes, holding the lock only briefly at a time.
+	 * The last step copies slots written meanwhile once more and replaces the files. It is deferred while
+	 * sequential scans run, since it moves all records, and restarted if the table was rehashed meanwhile.
+	 * @return true if the compaction should be continued by another step right away
+	 */
+	public boolean compactStep(int maxSlots) {
+		dataLock.writeLock();
+		try {
+			if (runningCompaction == null && !isWasteful()) return false;
+			return runCompaction(maxSlots, false);
+		} finally {
+			dataLock.writeUnlock();
+		}
+	}
+
+	private boolean runCompaction(long maxSlots, boolean force) {
+		if (runningCompaction != null && runningCompaction.isStale()) {
+			abortCompaction();
+			if (!force) return false;
+		}
+		if (runningCompaction == null) {
+			runningCompaction = new Compaction();
+		}
+		try {
+			if (!runningCompaction.copy(maxSlots)) return true;
+			runningCompaction.copyDirty();
+			if (!force && scans.get() > 0) return false;
+		} catch (RuntimeException e) {
+			abortCompaction();
+			throw e;
+		}
+		final var completed = runningCompaction;
+		runningCompaction = null;
+		completed.commit();
+		return false;
+	}
+
+	private void abortCompaction() {
+		if (runningCompaction != null) {
+			runningCompaction.abort();
+			runningCompaction = null;
+		}
+	}
+
+	/**
+	 * Index position of the key's slot for a write, which marks the slot to be copied again
+	 * by a compaction in progress.
+	 */
+	private long writeIndexPos(long hash) {
+		final long indexPos = indexPos(hash);
+		markDirty(indexPos);
+		return indexPos;
+	}
+
+	private void markDirty(long indexPos) {
+		final var running = runningCompaction;
+		if (running != null) {
+			running.markDirty(indexPos / INDEX_REC_SIZE);
+		}
+	}
+
+	/**
+	 * Compaction copying live records into new files slot by slot, so that it could run in steps between writes.
+	 * Slots which were copied already and are written meanwhile are marked dirty, possibly by concurrent writers of
+	 * aligned longs, and copied again before the new files replace the current ones. Expired records are unlinked
+	 * instead of being copied.
+	 */
+	private final class Compaction {
+		private final long started = System.nanoTime();
+		private final Path dir = baseDir.resolve(COMPACTION_DIR);
+		private final long tableLength = Lasher.this.tableLength;
+		private final int rehashIndex = Lasher.this.rehashIndex.get();
+		private final long length = rehashIndex == 0 ? tableLength : tableLength * 2L;
+		private final AtomicLongArray dirty = new AtomicLongArray((int) ((length + Long.SIZE - 1L) / Long.SIZE));
+		private final IndexNode newIndex;
+		private final DataNode newData;
+		private long nextIdx;
+		private long writePos = headerSize;
+		private long wasted;
+
+		Compaction() {
+			deleteDirectory(dir);
+			dir.toFile().mkdirs();
+			this.newIndex = new IndexNode(dir, index.size());
+			try {
+				this.newData = new DataNode(dir, nextPowerOf2(dataWritePos.get() - wastedBytes));
+			} catch (RuntimeException e) {
+				newIndex.close();
+				deleteDirectory(dir);
+				throw e;
+			}
+			newData.useLayout(data.versioned(), data.expires());
+		}
+
+		boolean isStale() {
+			return tableLength != Lasher.this.tableLength || rehashIndex != Lasher.this.rehashIndex.get();
+		}
+
+		/**
+		 * @return true if all slots were copied
+		 */
+		boolean copy(long maxSlots) {
+			for (long i = 0L; i < maxSlots && nextIdx < length; i++) {
+				copySlot(nextIdx++);
+			}
+			return nextIdx >= length;
+		}
+
+		void markDirty(long idx) {
+			if (idx < nextIdx) {
+				dirty.getAndUpdate((int) (idx / Long.SIZE), word -> word | 1L << (idx % Long.SIZE));
+			}
+		}
+
+		void copyDirty() {
+			for (int i = 0; i < dirty.length(); i++) {
+				long word = dirty.getAndSet(i, 0L);
+				while (word != 0L) {
+					final long idx = (long) i * Long.SIZE + Long.numberOfTrailingZeros(word);
+					word &= word - 1L;
+					for (long adr = newIndex.getDataAddress(idxToPos(idx)); adr != 0L; adr = newData.readNextRecordPos(adr)) {
+						wasted += newData.recordLength(adr);
+					}
+					copySlot(idx);
+				}
+			}
+		}
+
+		private void copySlot(long idx) {
+			final long indexPos = idxToPos(idx);
+			final long now = System.currentTimeMillis();
+			newIndex.putDataAddress(indexPos, 0L);
+			long prevPos = 0L;
+			long oldPrevPos = 0L;
+			long adr = index.getDataAddress(indexPos);
+			while (adr != 0L) {
+				final long nextPos = data.readNextRecordPos(adr);
+				if (data.expires() && data.isExpired(adr, now)) {
+					unlink(indexPos, oldPrevPos, adr, nextPos);
+					metrics.expiredSwept().increment();
+					adr = nextPos;
+					continue;
+				}
+				final var record = new byte[(int) data.recordLength(adr)];
+				data.getBytes(adr, record);
+				final long padding = isAlignedLong(adr) ? alignmentPadding(writePos, record.length - Long.BYTES) : 0L;
+				while (writePos + padding + record.length >= newData.size()) {
+					newData.doubleGrow();
+				}
+				if (padding != 0L) {
+					newData.writeFiller(writePos, (int) padding);
+				}
+				final long pos = writePos + padding;
+				newData.putBytes(pos, record);
+				newData.writeNextRecordPos(pos, 0L);
+				if (prevPos == 0L) {
+					newIndex.putDataAddress(indexPos, pos);
+				} else {
+					newData.writeNextRecordPos(prevPos, pos);
+				}
+				prevPos = pos;
+				writePos = pos + record.length;
+				oldPrevPos = adr;
+				adr = nextPos;
+			}
+		}
+
+		void commit() {
+			try {
+				writeHeader(newData, size.get(), writePos);
+			} finally {
+				newIndex.close();
+				newData.close();
+			}
+			replaceFiles(dir, size.get(), writePos);
+			wastedBytes = wasted;
+			metrics.compactionDuration().record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+		}
+
+		void abort() {
+			newIndex.close();
+			newData.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	/**
+	 * Keeps a bounded store within its bound after a record was inserted at the given position by evicting entries.
+	 * The inserted record is marked as accessed, so it is not evicted before the clock hand passes it once.
+	 */
+	private void afterInsert(long pos) {
+		if (listener != null) {
+			listener.changed(data.readKey(pos), null, data.readValue(pos));
+		}
+		if (ordered != null) {
+			final byte[] entry = OrderedIndex.entryOf(orderedBy, data.readKey(pos));
+			if (entry != null) {
+				ordered.add(entry);
+			}
+		}
+		if (maxEntries > 0L) {
+			data.markAccessed(pos);
+			evict();
+		}
+	}
+
+	/**
+	 * Evicts entries above the bound using the CLOCK policy. The hand walks index slots, evicting records whose access bit
+	 * is clear and clearing the bits it passes, so records read since the hand last passed get a second chance.
+	 * Expired records are evicted regardless of their bits. At most {@link #MAX_EVICTIONS} records are evicted
+	 * per write, so a lowered bound is reached gradually.
+	 */
+	private void evict() {
+		if (size.get() <= maxEntries) return;
+		final long length = rehashIndex.get() == 0L ? tableLength : tableLength * 2L;
+		final long now = System.currentTimeMillis();
+		int evicted = 0;
+		for (long scanned = 0L; scanned <= length * 2L && evicted < MAX_EVICTIONS && size.get() > maxEntries; scanned++) {
+			if (clockIdx >= length) {
+				clockIdx = 0L;
+			}
+			final long indexPos = idxToPos(clockIdx++);
+			long adr = index.getDataAddress(indexPos);
+			long prevPos = 0L;
+			while (adr != 0L && size.get() > maxEntries) {
+				final long nextPos = data.readNextRecordPos(adr);
+				if (data.isAccessed(adr) && !(data.expires() && data.isExpired(adr, now))) {
+					data.clearAccessed(adr);
+					prevPos = adr;
+				} else {
+					unlink(indexPos, prevPos, adr, nextPos);
+					markDirty(indexPos);
+					evicted++;
+				}
+				adr = nextPos;
+			}
+		}
+		if (evicted > 0) {
+			metrics.evictions().increment(evicted);
+		}
+	}
+
+	/**
+	 * Marks the record as recently read, if the store is bounded.
+	 */
+	private void touch(long pos) {
+		if (maxEntries > 0L) {
+			data.markAccessed(pos);
+		}
+	}
+
+	private boolean isAlignedLong(long pos) {
+		return data.readHeader(pos).valueLength() == Long.BYTES && data.isAligned(pos + data.recordLength(pos) - Long.BYTES);
+	}
+
+	/**
+	 * @return length of a filler record to write at pos, so that a record following it has
+	 * the long value at the given offset placed at an 8 byte aligned position
+	 */
+	private long alignmentPadding(long pos, long valueOffset) {
+		final long padding = -(pos + valueOffset) & (Long.BYTES - 1);
+		return padding == 0L ? 0L : padding + data.headerSize();
+	}
+
+	private void requireExpiry() {
+		if (!data.expires()) {
+			throw new IllegalStateException("Store at " + baseDir + " doesn't keep record expiration times");
+		}
+	}
+
+	private void requireVersions() {
+		if (!data.versioned()) {
+			throw new IllegalStateException("Store at " + baseDir + " doesn't keep record versions");
+		}
+	}
+
+	private long findRecord(ByteBuffer key, long adr) {
+		while (adr != 0L && !matches(adr, key)) {
+			adr = data.readNextRecordPos(adr);
+		}
+		return adr;
+	}
+
+	private void insertLong(long indexPos, long prevPos, byte[] key, long value) {
+		final long insertPos = appendLong(key, value, 0L, NO_EXPIRY);
+		link(indexPos, prevPos, insertPos);
+		size.incrementAndGet();
+		afterInsert(insertPos);
+	}
+
+	/**
+	 * Writes the long value of the record at pos in place if it is 8 byte aligned. Otherwise the record is
+	 * replaced by an aligned one, which keeps its expiration time, so that later updates of the key could
+	 * be done atomically under a shared lock. Versioned records are always written in place, because they
+	 * are never updated atomically.
+	 */
+	private void updateLong(long indexPos, long prevPos, long pos, byte[] key, long value) {
+		final long valuePos = data.longValuePos(pos);
+		if (data.versioned() || data.isAligned(valuePos)) {
+			if (listener != null) {
+				listener.changed(key, data.readValue(pos), BytesSupport.longToBytes(value));
+			}
+			data.putLong(valuePos, value);
+			stampVersion(pos);
+			return;
+		}
+		relocateLong(indexPos, prevPos, pos, key, value, data.expires() ? data.readExpiresAt(pos) : NO_EXPIRY);
+	}
+
+	/**
+	 * Replaces the record at pos by an appended record with an aligned long value, keeping its chain position.
+	 */
+	private void relocateLong(long indexPos, long prevPos, long pos, byte[] key, long value, long expiresAt) {
+		if (listener != null) {
+			listener.changed(key, data.readValue(pos), BytesSupport.longToBytes(value));
+		}
+		final long insertPos = appendLong(key, value, data.readNextRecordPos(pos), expiresAt);
+		link(indexPos, prevPos, insertPos);
+		touch(insertPos);
+		wastedBytes += data.recordLength(pos);
+	}
+
+	/**
+	 * Appends a record with a long value placed at an 8 byte aligned position, so it could later be
+	 * updated atomically. Alignment is done by writing a filler record before the new record.
+	 * @return position of the appended record
+	 */
+	private long appendLong(byte[] key, long value, long nextRecordPos, long expiresAt) {
+		final long valueOffset = (long) data.headerSize() + key.length;
+		final long padding = alignmentPadding(dataWritePos.get(), valueOffset);
+		final long pos = allocateData(padding + valueOffset + Long.BYTES);
+		if (padding != 0L) {
+			data.writeFiller(pos, (int) padding);
+		}
+		final long insertPos = pos + padding;
+		writeRecord(key, BytesSupport.longToBytes(value), insertPos, nextRecordPos, expiresAt);
+		return insertPos;
+	}
+
 	public byte[] putIfAbsent(byte[] key, byte[] value) {
 		requireNonNull(key, KEY_NOT_NULL);
 		requireNonNull(value, VALUE_NOT_NULL);
-		rehash();
 		final long hash = Hash.hashBytes(key);
 		return putIfAbsent(key, value, hash);
 	}
 
 	public byte[] putIfAbsent(byte[] key, byte[] value, long hash) {
-		final long indexPos = indexPos(hash);
+		rehash();
+		requireIndexable(key);
+		final long indexPos = writeIndexPos(hash);
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) {
 			insertNewRecord(indexPos, key, value);
 			return null;
 		}
 		var bucket = readDataRecord(adr);
+		RecordNode prev = null;
 		while (true) {
 			if (bucket.keyEquals(key)) {
-				return bucket.val;
+				if (isLive(bucket.pos)) {
+					touch(bucket.pos);
+					return bucket.val;
+				}
+				updateRecord(indexPos, bucket, key, value, prev);
+				return null;
 			} else if (bucket.getNextRecordPos() != 0L) {
+				prev = bucket;
 				bucket = readDataRecord(bucket.getNextRecordPos());
 			} else {
 				insertNewRecordInChain(0L, bucket.pos, key, value);
@@ -99,15 +760,26 @@ public class Lasher extends BaseLinearHashMap {
 	}
 
 	public byte[] put(byte[] key, byte[] value, long hash) {
+		return put(key, value, hash, NO_EXPIRY);
+	}
+
+	/**
+	 * @param expiresAt epoch millis after which the entry is treated as absent, or {@link #NO_EXPIRY}
+	 */
+	public byte[] put(byte[] key, byte[] value, long hash, long expiresAt) {
+		if (expiresAt != NO_EXPIRY) {
+			requireExpiry();
+		}
 		rehash();
+		requireIndexable(key);
 
-		final long indexPos = indexPos(hash);
+		final long indexPos = writeIndexPos(hash);
 		if (indexPos >= index.size()) {
 			throw new IndexOutOfBoundsException("Pos: " + indexPos + " index size: " + index.size());
 		}
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) {
-			insertNewRecord(indexPos, key, value);
+			insertNewRecord(indexPos, key, value, expiresAt);
 			return null;
 		}
 		var bucket = readDataRecord(adr);
@@ -115,18 +787,64 @@ public class Lasher extends BaseLinearHashMap {
 		while (true) {
 			long nextPos = bucket.getNextRecordPos();
 			if (bucket.keyEquals(key)) {
-				updateRecord(indexPos, nextPos, key, value, prev);
-				return bucket.val;
+				final boolean live = isLive(bucket.pos);
+				updateRecord(indexPos, bucket, key, value, prev, expiresAt);
+				return live ? bucket.val : null;
 			} else if (nextPos != 0L) {
 				prev = bucket;
 				bucket = readDataRecord(nextPos);
 			} else {
-				insertNewRecordInChain(nextPos, bucket.pos, key, value);
+				insertNewRecordInChain(nextPos, bucket.pos, key, value, expiresAt);
 				return null;
 			}
 		}
 	}
 
+	/**
+	 * Atomically computes a new value for the key with a single chain walk and at most a single write.
+	 * The remapping function receives the current value, or null if absent, and must not access this map.
+	 * Returning null removes the mapping and returning the very same array it received leaves it untouched.
+	 * @return the new value or null if there is no mapping after the call
+	 */
+	public byte[] compute(byte[] key, UnaryOperator<byte[]> remapping, long hash) {
+		rehash();
+		requireIndexable(key);
+
+		final long indexPos = writeIndexPos(hash);
+		final long adr = index.getDataAddress(indexPos);
+		if (adr == 0L) {
+			final byte[] newValue = remapping.apply(null);
+			if (newValue != null) {
+				insertNewRecord(indexPos, key, newValue);
+			}
+			return newValue;
+		}
+		var bucket = readDataRecord(adr);
+		RecordNode prev = null;
+		while (true) {
+			long nextPos = bucket.getNextRecordPos();
+			if (bucket.keyEquals(key)) {
+				final byte[] current = isLive(bucket.pos) ? bucket.val : null;
+				final byte[] newValue = remapping.apply(current);
+				if (newValue == null) {
+					removeRecord(indexPos, bucket, prev);
+				} else if (newValue != current) {
+					updateRecord(indexPos, bucket, key, newValue, prev);
+				}
+				return newValue;
+			} else if (nextPos != 0L) {
+				prev = bucket;
+				bucket = readDataRecord(nextPos);
+			} else {
+				final byte[] newValue = remapping.apply(null);
+				if (newValue != null) {
+					insertNewRecordInChain(0L, bucket.pos, key, newValue);
+				}
+				return newValue;
+			}
+		}
+	}
+
 	public byte[] remove(byte[] key) {
 		requireNonNull(key, KEY_NOT_NULL);
 		final long hash = Hash.hashBytes(key);
@@ -134,15 +852,15 @@ public class Lasher extends BaseLinearHashMap {
 	}
 
 	public byte[] remove(byte[] key, long hash) {
-		final long indexPos = indexPos(hash);
+		final long indexPos = writeIndexPos(hash);
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) return null;
 
 		var bucket = readDataRecord(adr);
 		RecordNode prev = null;
 		while (true) {
-			if (bucket.keyEquals(key)) {
-				removeRecord(indexPos, bucket.getNextRecordPos(), prev);
+			if (matches(bucket, key)) {
+				removeRecord(indexPos, bucket, prev);
 				return bucket.val;
 			} else if (bucket.getNextRecordPos() != 0L) {
 				prev = bucket;
@@ -161,15 +879,15 @@ public class Lasher extends BaseLinearHashMap {
 	}
 
 	public boolean remove(byte[] key, byte[] value, long hash) {
-		final long indexPos = indexPos(hash);
+		final long indexPos = writeIndexPos(hash);
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) return false;
 
 		var bucket = readDataRecord(adr);
 		RecordNode prev = null;
 		while (true) {
-			if (bucket.keyValueEquals(key, value)) {
-				removeRecord(indexPos, bucket.getNextRecordPos(), prev);
+			if (matches(bucket, key) && Arrays.equals(value, bucket.val)) {
+				removeRecord(indexPos, bucket, prev);
 				return true;
 			} else if (bucket.getNextRecordPos() != 0L) {
 				prev = bucket;
@@ -188,15 +906,15 @@ public class Lasher extends BaseLinearHashMap {
 	}
 
 	public boolean replace(byte[] key, long hash, byte[] prevVal, byte[] newVal) {
-		final long indexPos = indexPos(hash);
+		final long indexPos = writeIndexPos(hash);
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) return false;
 
 		var bucket = readDataRecord(adr);
 		RecordNode prev = null;
 		while (true) {
-			if (bucket.keyValueEquals(key, prevVal)) {
-				updateRecord(indexPos, bucket.getNextRecordPos(), key, newVal, prev);
+			if (matches(bucket, key) && Arrays.equals(prevVal, bucket.val)) {
+				updateRecord(indexPos, bucket, key, newVal, prev);
 				return true;
 			} else if (bucket.getNextRecordPos() != 0L) {
 				prev = bucket;
@@ -211,15 +929,15 @@ public class Lasher extends BaseLinearHashMap {
 		requireNonNull(key, KEY_NOT_NULL);
 		requireNonNull(value, VALUE_NOT_NULL);
 		final long hash = Hash.hashBytes(key);
-		final long indexPos = indexPos(hash);
+		final long indexPos = writeIndexPos(hash);
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) return null;
 
 		var bucket = readDataRecord(adr);
 		RecordNode prev = null;
 		while (true) {
-			if (bucket.keyEquals(key)) {
-				updateRecord(indexPos, bucket.getNextRecordPos(), key, value, prev);
+			if (matches(bucket, key)) {
+				updateRecord(indexPos, bucket, key, value, prev);
 				return bucket.val;
 			} else if (bucket.getNextRecordPos() != 0L) {
 				prev = bucket;
@@ -231,15 +949,15 @@ public class Lasher extends BaseLinearHashMap {
 	}
 
 	public byte[] replace(byte[] key, byte[] value, long hash) {
-		final long indexPos = indexPos(hash);
+		final long indexPos = writeIndexPos(hash);
 		final long adr = index.getDataAddress(indexPos);
 		if (adr == 0L) return null;
 
 		var bucket = readDataRecord(adr);
 		RecordNode prev = null;
 		while (true) {
-			if (bucket.keyEquals(key)) {
-				updateRecord(indexPos, bucket.getNextRecordPos(), key, value, prev);
+			if (matches(bucket, key)) {
+				updateRecord(indexPos, bucket, key, value, prev);
 				return bucket.val;
 			} else if (bucket.getNextRecordPos() != 0L) {
 				prev = bucket;
@@ -260,6 +978,7 @@ public class Lasher extends BaseLinearHashMap {
 			final int rehashComplete = data.getInt(24L);
 			this.size.set(size);
 			this.tableLength = bucketsInMap == 0L ? (index.size() / INDEX_REC_SIZE) : bucketsInMap;
+			readFeatures(lastSecondaryPos == 0L);
 			this.dataWritePos.set(lastSecondaryPos == 0L ? getHeaderSize() : lastSecondaryPos);
 			this.rehashIndex.set(rehashComplete);
 		} finally {
@@ -268,36 +987,172 @@ public class Lasher extends BaseLinearHashMap {
 	}
 
 	private void insertNewRecord(long indexPos, byte[] key, byte[] value) {
+		insertNewRecord(indexPos, key, value, NO_EXPIRY);
+	}
+
+	private void insertNewRecord(long indexPos, byte[] key, byte[] value, long expiresAt) {
 		final long insertPos = allocateNewRecord(key, value);
-		data.writeRecord(key, value, insertPos, 0L);
+		writeRecord(key, value, insertPos, 0L, expiresAt);
 		index.putDataAddress(indexPos, insertPos);
 		size.incrementAndGet();
+		afterInsert(insertPos);
 	}
 
 	private void insertNewRecordInChain(long nextRecordPos, long prevPos, byte[] key, byte[] value) {
+		insertNewRecordInChain(nextRecordPos, prevPos, key, value, NO_EXPIRY);
+	}
+
+	private void insertNewRecordInChain(long nextRecordPos, long prevPos, byte[] key, byte[] value, long expiresAt) {
 		final long insertPos = allocateNewRecord(key, value);
-		data.writeRecord(key, value, insertPos, nextRecordPos);
+		writeRecord(key, value, insertPos, nextRecordPos, expiresAt);
 		data.writeNextRecordPos(prevPos, insertPos);
 		size.incrementAndGet();
+		afterInsert(insertPos);
+	}
+
+	private void updateRecord(long indexPos, RecordNode record, byte[] key, byte[] value, RecordNode prevRecordNode) {
+		updateRecord(indexPos, record, key, value, prevRecordNode, NO_EXPIRY);
+	}
+
+	private void updateRecord(long indexPos, RecordNode record, byte[] key, byte[] value, RecordNode prevRecordNode,
+							  long expiresAt) {
+		updateRecord(indexPos, record.pos, record.getNextRecordPos(), key, value,
+				prevRecordNode == null ? 0L : prevRecordNode.pos, expiresAt);
 	}
 
-	private void updateRecord(long indexPos, long nextRecordPos, byte[] key, byte[] value, RecordNode prevRecordNode) {
+	/**
+	 * Overwrites the value in place if it fits the existing record, otherwise writes a new record and relinks the chain.
+	 */
+	private void updateRecord(long indexPos, long pos, long nextRecordPos, byte[] key, byte[] value, long prevPos,
+							  long expiresAt) {
+		if (listener != null) {
+			listener.changed(key, data.readValue(pos), value);
+		}
+		if (data.updateValue(pos, value)) {
+			stamp(pos, expiresAt);
+			return;
+		}
 		final long insertPos = allocateNewRecord(key, value);
-		data.writeRecord(key, value, insertPos, nextRecordPos);
-		if (prevRecordNode == null) {
-			index.putDataAddress(indexPos, insertPos);
-		} else {
-			data.writeNextRecordPos(prevRecordNode.pos, insertPos);
+		writeRecord(key, value, insertPos, nextRecordPos, expiresAt);
+		link(indexPos, prevPos, insertPos);
+		wastedBytes += data.recordLength(pos);
+	}
+
+	private void writeRecord(byte[] key, byte[] value, long pos, long nextRecordPos) {
+		writeRecord(key, value, pos, nextRecordPos, NO_EXPIRY);
+	}
+
+	private void writeRecord(byte[] key, byte[] value, long pos, long nextRecordPos, long expiresAt) {
+		data.writeRecord(key, value, pos, nextRecordPos);
+		stamp(pos, expiresAt);
+	}
+
+	private void writeRecord(ByteBuffer key, ByteBuffer value, long pos, long nextRecordPos) {
+		data.writeRecord(key, value, pos, nextRecordPos);
+		stamp(pos, NO_EXPIRY);
+	}
+
+	/**
+	 * Writes optional header fields of a written record: a new version and the expiration time.
+	 */
+	private void stamp(long pos, long expiresAt) {
+		stampVersion(pos);
+		if (data.expires()) {
+			data.writeExpiresAt(pos, expiresAt);
 		}
 	}
 
-	private void removeRecord(long indexPos, long nextRecordPos, RecordNode prevRecordNode) {
-		if (prevRecordNode == null) {
-			index.putDataAddress(indexPos, nextRecordPos);
-		} else {
-			data.writeNextRecordPos(prevRecordNode.pos, nextRecordPos);
+	/**
+	 * A record matches a key if the keys are equal and the record is not expired.
+	 * Writes which may insert the key look for equal keys instead and reuse the record of an expired entry,
+	 * because a chain must never hold two records of the same key.
+	 */
+	private boolean matches(RecordNode record, byte[] key) {
+		return record.keyEquals(key) && isLive(record.pos);
+	}
+
+	private boolean matches(long pos, ByteBuffer key) {
+		return data.keyEquals(pos, key) && isLive(pos);
+	}
+
+	private boolean isLive(long pos) {
+		if (!data.expires() || !data.isExpired(pos, System.currentTimeMillis())) {
+			return true;
 		}
+		metrics.expiredReads().increment();
+		return false;
+	}
+
+	private void removeRecord(long indexPos, RecordNode record, RecordNode prevRecordNode) {
+		unlink(indexPos, prevRecordNode == null ? 0L : prevRecordNode.pos, record.pos, record.getNextRecordPos());
+	}
+
+	/**
+	 * Removes the record at the given position from its chain. Its space is wasted until the store is compacted.
+	 */
+	private void unlink(long indexPos, long prevPos, long pos, long nextPos) {
+		link(indexPos, prevPos, nextPos);
 		size.decrementAndGet();
+		wastedBytes += data.recordLength(pos);
+		if (listener != null) {
+			listener.changed(data.readKey(pos), data.readValue(pos), null);
+		}
+		if (ordered != null) {
+			final byte[] entry = OrderedIndex.entryOf(orderedBy, data.readKey(pos));
+			if (entry != null) {
+				ordered.remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Fails before anything is written if the key is too long for the ordered index.
+	 */
+	void requireIndexable(byte[] key) {
+		if (ordered != null) {
+			final byte[] entry = OrderedIndex.entryOf(orderedBy, key);
+			if (entry != null) {
+				OrderedIndex.requireFits(entry);
+			}
+		}
+	}
+
+	private void requireIndexable(ByteBuffer key) {
+		if (ordered != null) {
+			requireIndexable(bytesOf(key));
+		}
+	}
+
+	private static byte[] bytesOf(ByteBuffer buffer) {
+		final var bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private void rebuildOrderedIndex() {
+		ordered.clear();
+		final long length = rehashIndex.get() == 0L ? tableLength : tableLength * 2L;
+		for (long idx = 0L; idx < length; idx++) {
+			for (long adr = index.getDataAddress(idxToPos(idx)); adr != 0L; adr = data.readNextRecordPos(adr)) {
+				final byte[] entry = OrderedIndex.entryOf(orderedBy, data.readKey(adr));
+				if (entry != null) {
+					ordered.add(entry);
+				}
+			}
+		}
+		ordered.markSynced(size(), dataWritePos.get());
+	}
+
+	/**
+	 * Points the chain link preceding a record to the given position. The link is either the index slot,
+	 * when there is no previous record (prevPos is 0), or the next record pointer of the previous record.
+	 */
+	private void link(long indexPos, long prevPos, long pos) {
+		if (prevPos == 0L) {
+			index.putDataAddress(indexPos, pos);
+		} else {
+			data.writeNextRecordPos(prevPos, pos);
+		}
 	}
 
 	protected long idxToPos(long idx) {
@@ -378,71 +1233,387 @@ public class Lasher extends BaseLinearHashMap {
 		return buckets.get(0).pos;
 	}
 
+	@Override
+	public void clear() {
+		abortCompaction();
+		super.clear();
+		if (ordered != null) {
+			ordered.clear();
+		}
+	}
+
+	@Override
+	public void flush() {
+		super.flush();
+		if (ordered != null) {
+			ordered.markSynced(size(), dataWritePos.get());
+			ordered.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		abortCompaction();
+		super.close();
+		if (ordered != null) {
+			ordered.markSynced(size(), dataWritePos.get());
+			ordered.close();
+		}
+	}
+
 	public Iterator<Map.Entry<byte[], byte[]>> iterator() {
-		return new LashIterator(dataLock);
+		return iterator(dataLock);
+	}
+
+	/**
+	 * Iterates over entries in the range [lower, upper) of the ordered index, reading only records of matching keys.
+	 * @param lower inclusive lower bound encoded by {@link OrderedIndex#boundOf(UnaryOperator, byte[])}, or null
+	 * @param upper exclusive upper bound encoded by {@link OrderedIndex#boundOf(UnaryOperator, byte[])}, or null
+	 * @throws IllegalStateException if the store has no ordered index
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> orderedIterator(Locker locker, byte[] lower, byte[] upper,
+															  boolean descending) {
+		if (ordered == null) {
+			throw new IllegalStateException("Store at " + baseDir + " has no ordered index");
+		}
+		return new OrderedIterator(locker, lower, upper, descending);
 	}
 
 	public Iterator<Map.Entry<byte[], byte[]>> iterator(Locker locker) {
-		return new LashIterator(locker);
+		return new LashIterator<>(locker, pos -> {
+			var node = data.readRecord(pos);
+			return new AbstractMap.SimpleEntry<>(node.key, node.val);
+		});
 	}
 
-	public final class LashIterator implements Iterator<Map.Entry<byte[], byte[]>> {
-		private long nextIdx = 0L;
-		private long nextAddr = 0L;
-		private boolean finished = true;
-		private final long length;
+	/**
+	 * Iterates over entries in the order of their records in the data file, reading it sequentially from the header
+	 * up to the write position instead of following index chains, so a scan of a store larger than memory runs
+	 * at sequential read speed. Records which are no longer linked to the index are skipped.
+	 * @throws ConcurrentModificationException from next() if the store was compacted or cleared during the scan
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> sequentialIterator(Locker locker) {
+		return new SequentialIterator(locker);
+	}
+
+	/**
+	 * Passes read-only views of keys and values of live records to the consumer in the order of the data file,
+	 * like {@link #sequentialIterator(Locker)} does, but without copying records out of the mapped file.
+	 * The views are only valid during the consumer call. The lock is held while records of a window are consumed.
+	 * @throws ConcurrentModificationException if the store was compacted or cleared during the scan
+	 */
+	public void scan(Locker locker, BiConsumer<ByteBuffer, ByteBuffer> consumer) {
+		scans.incrementAndGet();
+		try {
+			final int compaction = compactions;
+			long pos = headerSize;
+			while (true) {
+				locker.readLock();
+				try {
+					final long end = dataWritePos.get();
+					pos = visitRecords(compaction, pos, end, adr -> consumer.accept(data.keyView(adr), data.valueView(adr)));
+					if (pos >= end) return;
+				} finally {
+					locker.readUnlock();
+				}
+			}
+		} finally {
+			scans.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts the iterator as a running scan until the returned cleanable is cleaned or the iterator becomes unreachable.
+	 */
+	private Cleaner.Cleanable registerScan(Object iterator) {
+		final var counter = scans;
+		counter.incrementAndGet();
+		return SCANS.register(iterator, counter::decrementAndGet);
+	}
+
+	/**
+	 * Visits positions of live records in a window of the data file starting at the given position.
+	 * A record is live if it is still linked to the chain of its key's index slot, which is found by comparing
+	 * positions only, mostly without reading other records. Keys are hashed from an array reused within the window.
+	 * Fillers, replaced, removed and expired records are skipped.
+	 * Must be called under the read lock.
+	 * @return position following the window
+	 */
+	private long visitRecords(int compaction, long pos, long end, LongConsumer visitor) {
+		if (compaction != compactions) {
+			throw new ConcurrentModificationException("Store at " + baseDir + " was compacted or cleared during the scan");
+		}
+		final long windowEnd = Math.min(end, pos + SCAN_WINDOW_BYTES);
+		final long now = System.currentTimeMillis();
+		var key = new byte[64];
+		while (pos < windowEnd) {
+			final var header = data.readHeader(pos);
+			if (header.keyLength() < 0) {
+				pos += data.headerSize() + header.valueLength();
+				continue;
+			}
+			if (key.length < header.keyLength()) {
+				key = new byte[Math.max(header.keyLength(), key.length * 2)];
+			}
+			data.getBytes(pos + data.headerSize(), key, header.keyLength());
+			final long hash = Hash.hashBytes(key, 0, header.keyLength());
+			if (isLinked(pos, hash) && !(data.expires() && data.isExpired(pos, now))) {
+				visitor.accept(pos);
+			}
+			pos += data.recordLength(pos);
+		}
+		return pos;
+	}
+
+	private boolean isLinked(long pos, long hash) {
+		long adr = index.getDataAddress(indexPos(hash));
+		while (adr != 0L && adr != pos) {
+			adr = data.readNextRecordPos(adr);
+		}
+		return adr == pos;
+	}
+
+	/**
+	 * Iterates over keys only, value bytes are never read.
+	 */
+	public Iterator<byte[]> keyIterator(Locker locker) {
+		return new LashIterator<>(locker, data::readKey);
+	}
+
+	/**
+	 * Iterates over values only, key bytes are never read.
+	 */
+	public Iterator<byte[]> valueIterator(Locker locker) {
+		return new LashIterator<>(locker, data::readValue);
+	}
+
+	/**
+	 * Iterates over record headers only, neither key nor value bytes are read.
+	 */
+	public Iterator<RecordHeader> headerIterator(Locker locker) {
+		return new LashIterator<>(locker, data::readHeader);
+	}
+
+	/**
+	 * Reads the ordered index in batches, each under a single read lock acquisition, and looks records of the read
+	 * keys up in the hash table. Keys whose records are gone or expired meanwhile are skipped.
+	 */
+	private final class OrderedIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		private static final int BATCH_SIZE = 128;
+
 		private final Locker locker;
+		private final byte[] lower;
+		private final byte[] upper;
+		private final boolean descending;
+		private final Deque<Map.Entry<byte[], byte[]>> batch = new ArrayDeque<>();
+		private byte[] after;
+		private boolean exhausted;
 
-		public LashIterator(Locker locker) {
+		OrderedIterator(Locker locker, byte[] lower, byte[] upper, boolean descending) {
 			this.locker = locker;
-			this.length = rehashIndex.get() == 0L ? tableLength : tableLength * 2L;
+			this.lower = lower;
+			this.upper = upper;
+			this.descending = descending;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (batch.isEmpty() && !exhausted) {
+				fetch();
+			}
+			return !batch.isEmpty();
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return batch.poll();
+		}
+
+		private void fetch() {
 			locker.readLock();
 			try {
-				for (nextIdx = 0L; nextIdx < length; nextIdx++) {
-					nextAddr = index.getDataAddress(idxToPos(nextIdx));
-					if (nextAddr != 0L) {
-						finished = false;
-						break;
+				final var entries = ordered.scan(lower, upper, after, descending, BATCH_SIZE);
+				exhausted = entries.size() < BATCH_SIZE;
+				for (var entry : entries) {
+					final byte[] key = OrderedIndex.keyOf(orderedBy, entry);
+					final long adr = findRecord(ByteBuffer.wrap(key), index.getDataAddress(indexPos(Hash.hashBytes(key))));
+					if (adr != 0L) {
+						batch.add(new AbstractMap.SimpleEntry<>(key, data.readValue(adr)));
 					}
 				}
+				if (!entries.isEmpty()) {
+					after = entries.get(entries.size() - 1);
+				}
 			} finally {
 				locker.readUnlock();
 			}
 		}
+	}
+
+	/**
+	 * Parses the data file record by record in windows of {@link #SCAN_WINDOW_BYTES}, each under a single read lock
+	 * acquisition, and copies live records of a window before returning them. The iterator counts as a running scan
+	 * until it is exhausted, fails or becomes unreachable.
+	 */
+	private final class SequentialIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		private final Locker locker;
+		private final Deque<Map.Entry<byte[], byte[]>> batch = new ArrayDeque<>();
+		private final Cleaner.Cleanable running = registerScan(this);
+		private final int compaction = compactions;
+		private long pos = headerSize;
+		private boolean exhausted;
+
+		SequentialIterator(Locker locker) {
+			this.locker = locker;
+		}
 
 		@Override
 		public boolean hasNext() {
-			return !finished;
+			while (batch.isEmpty() && !exhausted) {
+				fetch();
+			}
+			return !batch.isEmpty();
 		}
 
 		@Override
 		public Map.Entry<byte[], byte[]> next() {
-			if (finished) throw new NoSuchElementException();
-			final var node = readDataRecord(nextAddr);
-			advance(node);
-			return new AbstractMap.SimpleEntry<>(node.key, node.val);
+			if (!hasNext()) throw new NoSuchElementException();
+			return batch.poll();
 		}
 
-		private void advance(RecordNode bucket) {
-			if (bucket.getNextRecordPos() != 0L) {
-				nextAddr = bucket.getNextRecordPos();
-				finished = false;
+		private void fetch() {
+			locker.readLock();
+			try {
+				final long end = dataWritePos.get();
+				pos = visitRecords(compaction, pos, end, adr -> {
+					var record = data.readRecord(adr);
+					batch.add(new AbstractMap.SimpleEntry<>(record.key, record.val));
+				});
+				exhausted = pos >= end;
+			} catch (RuntimeException e) {
+				exhausted = true;
+				throw e;
+			} finally {
+				locker.readUnlock();
+				if (exhausted) {
+					running.clean();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks the index slot by slot and follows record chains,
+	 * reading only the bytes of each record required by the given projection.
+	 * If the store is compacted meanwhile, the walk continues from the same place of the current slot's chain.
+	 */
+	public final class LashIterator<T> implements Iterator<T> {
+		private long nextIdx = -1L;
+		private long nextAddr = 0L;
+		private int returnedFromSlot = 0;
+		private int compaction = compactions;
+		private boolean finished = true;
+		private T lookahead;
+		private boolean hasLookahead;
+		private final long length;
+		private final Locker locker;
+		private final LongFunction<T> projection;
+
+		public LashIterator(Locker locker, LongFunction<T> projection) {
+			this.locker = locker;
+			this.projection = projection;
+			this.length = rehashIndex.get() == 0L ? tableLength : tableLength * 2L;
+			advance(0L);
+		}
+
+		/**
+		 * Reads the next record ahead, so a record relocated or removed by compaction after this call
+		 * is still returned by {@link #next()}.
+		 */
+		@Override
+		public boolean hasNext() {
+			while (!hasLookahead && !finished) {
+				readAhead();
+			}
+			return hasLookahead;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			final T result = lookahead;
+			lookahead = null;
+			hasLookahead = false;
+			return result;
+		}
+
+		/**
+		 * Reads the record the walk stopped at, or moves to the next slot if compaction left no such record.
+		 */
+		private void readAhead() {
+			long nextRecordPos = 0L;
+			locker.readLock();
+			try {
+				if (compaction != compactions) {
+					nextAddr = relocate();
+				}
+				if (nextAddr != 0L) {
+					lookahead = projection.apply(nextAddr);
+					hasLookahead = true;
+					nextRecordPos = data.readNextRecordPos(nextAddr);
+				}
+			} finally {
+				locker.readUnlock();
+			}
+			if (!hasLookahead) {
+				advance(0L);
 				return;
 			}
-			for (nextIdx = nextIdx + 1L; nextIdx < length; nextIdx++) {
-				final long pos = idxToPos(nextIdx);
+			returnedFromSlot++;
+			advance(nextRecordPos);
+		}
+
+		/**
+		 * Finds the record following those already returned from the current slot in the compacted files.
+		 */
+		private long relocate() {
+			compaction = compactions;
+			long addr = index.getDataAddress(idxToPos(nextIdx));
+			for (int i = 0; i < returnedFromSlot && addr != 0L; i++) {
+				addr = data.readNextRecordPos(addr);
+			}
+			return addr;
+		}
+
+		/**
+		 * Moves to the next live record, which is either the given one or follows it.
+		 * The lock is released between index slots, so writers are not blocked for the whole scan.
+		 */
+		private void advance(long nextRecordPos) {
+			long addr = nextRecordPos;
+			while (true) {
 				locker.readLock();
 				try {
-					nextAddr = index.getDataAddress(pos);
+					if (compaction != compactions) {
+						addr = relocate();
+					}
+					while (addr != 0L && data.expires() && data.isExpired(addr, System.currentTimeMillis())) {
+						addr = data.readNextRecordPos(addr);
+					}
+					if (addr == 0L && nextIdx + 1L < length) {
+						nextIdx++;
+						returnedFromSlot = 0;
+						addr = index.getDataAddress(idxToPos(nextIdx));
+						continue;
+					}
 				} finally {
 					locker.readUnlock();
 				}
-				if (nextAddr != 0L) {
-					finished = false;
-					return;
-				}
+				nextAddr = addr;
+				finished = addr == 0L;
+				return;
 			}
-			finished = true;
 		}
 	}
 
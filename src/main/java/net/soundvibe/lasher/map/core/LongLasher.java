@@ -0,0 +1,484 @@
+package net.soundvibe.lasher.map.core;
+
+import io.micrometer.core.instrument.*;
+import net.soundvibe.lasher.map.model.FileType;
+import net.soundvibe.lasher.map.sync.*;
+import net.soundvibe.lasher.mmap.*;
+import net.soundvibe.lasher.util.Hash;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static net.soundvibe.lasher.util.FileSupport.deleteDirectory;
+
+/**
+ * Memory mapped hash map specialized for long keys and fixed width values, either longs or byte arrays of
+ * a width given at creation time. Entries are kept in an open addressing table of fixed width slots with
+ * linear probing, so there are no per-record headers, no chains and no allocations on reads or writes.
+ * Key 0 marks empty slots, so its value is kept in the file header.
+ * When the table gets full it is rebuilt into a twice larger file which atomically replaces the old one.
+ */
+public final class LongLasher implements AutoCloseable {
+
+	public static final long DEFAULT_CAPACITY = 1L << 20;
+
+	private static final long MIN_CAPACITY = 16L;
+
+	private static final long SIZE_POS = 0L;
+	private static final long CAPACITY_POS = 8L;
+	private static final long VALUE_WIDTH_POS = 16L;
+	private static final long HAS_ZERO_KEY_POS = 20L;
+	private static final long ZERO_VALUE_POS = 24L;
+	private static final int KEY_SIZE = Long.BYTES;
+	private static final String RESIZE_DIR = "resize";
+
+	private final Path baseDir;
+	private final int valueWidth;
+	private final int slotWidth;
+	private final long headerSize;
+	private final Locker rwLock = new RWLocker(new ReentrantReadWriteLock());
+	private final byte[] moveBuffer;
+
+	private SlotNode slots;
+	private long capacity;
+	private long size;
+	private boolean hasZeroKey;
+
+	/**
+	 * Creates a long to long map.
+	 */
+	public LongLasher(Path baseDir) {
+		this(baseDir, Long.BYTES);
+	}
+
+	/**
+	 * Creates a map from long keys to byte values of a fixed width.
+	 */
+	public LongLasher(Path baseDir, int valueWidth) {
+		this(baseDir, valueWidth, DEFAULT_CAPACITY, Tags.empty());
+	}
+
+	/**
+	 * @param valueWidth width of every value in bytes, must match the width the store was created with
+	 * @param initialCapacity initial number of slots, rounded up to a power of 2. Ignored for existing stores.
+	 */
+	public LongLasher(Path baseDir, int valueWidth, long initialCapacity, Tags tags) {
+		if (valueWidth < 1) {
+			throw new IllegalArgumentException("valueWidth must be positive: " + valueWidth);
+		}
+		if (initialCapacity < 1L) {
+			throw new IllegalArgumentException("initialCapacity must be positive: " + initialCapacity);
+		}
+		this.baseDir = baseDir;
+		this.valueWidth = valueWidth;
+		final int valueStride = (valueWidth + 7) & ~7;
+		this.slotWidth = KEY_SIZE + valueStride;
+		this.headerSize = ZERO_VALUE_POS + valueStride;
+		this.moveBuffer = new byte[valueWidth];
+		baseDir.toFile().mkdirs();
+		// resize directory is only left behind by an interrupted resize, the old slots file is still intact then
+		deleteDirectory(baseDir.resolve(RESIZE_DIR));
+
+		final long requestedCapacity = Math.max(MIN_CAPACITY, Long.highestOneBit(initialCapacity - 1L) << 1);
+		this.slots = new SlotNode(baseDir, fileLength(requestedCapacity));
+		try {
+			readHeader(requestedCapacity);
+		} catch (RuntimeException e) {
+			slots.close();
+			throw e;
+		}
+		Metrics.gauge("slots-size-bytes", tags, this, longLasher -> longLasher.slots.size());
+	}
+
+	@FunctionalInterface
+	public interface LongLongConsumer {
+		void accept(long key, long value);
+	}
+
+	private void readHeader(long requestedCapacity) {
+		this.capacity = slots.getLong(CAPACITY_POS);
+		if (capacity == 0L) {
+			this.capacity = requestedCapacity;
+			this.size = 0L;
+			this.hasZeroKey = false;
+			writeHeader(slots, capacity);
+			return;
+		}
+		final int storedWidth = slots.getInt(VALUE_WIDTH_POS);
+		if (storedWidth != valueWidth) {
+			throw new IllegalArgumentException(String.format("Store at %s has value width %d, but %d was requested",
+					baseDir, storedWidth, valueWidth));
+		}
+		this.size = slots.getLong(SIZE_POS);
+		this.hasZeroKey = slots.getInt(HAS_ZERO_KEY_POS) != 0;
+	}
+
+	private void writeHeader(SlotNode node, long nodeCapacity) {
+		node.putLong(SIZE_POS, size);
+		node.putLong(CAPACITY_POS, nodeCapacity);
+		node.putInt(VALUE_WIDTH_POS, valueWidth);
+		node.putInt(HAS_ZERO_KEY_POS, hasZeroKey ? 1 : 0);
+	}
+
+	public long getOrDefault(long key, long defaultValue) {
+		requireLongValues();
+		rwLock.readLock();
+		try {
+			final long pos = valuePos(key);
+			return pos == -1L ? defaultValue : slots.getLong(pos);
+		} finally {
+			rwLock.readUnlock();
+		}
+	}
+
+	/**
+	 * Copies the value of the key into the destination array.
+	 * @return true if the key is present
+	 */
+	public boolean get(long key, byte[] dst) {
+		requireWidth(dst);
+		rwLock.readLock();
+		try {
+			final long pos = valuePos(key);
+			if (pos == -1L) return false;
+			slots.getBytes(pos, dst, valueWidth);
+			return true;
+		} finally {
+			rwLock.readUnlock();
+		}
+	}
+
+	public boolean containsKey(long key) {
+		rwLock.readLock();
+		try {
+			return valuePos(key) != -1L;
+		} finally {
+			rwLock.readUnlock();
+		}
+	}
+
+	/**
+	 * @return previous value of the key or 0 if it was absent
+	 */
+	public long put(long key, long value) {
+		requireLongValues();
+		rwLock.writeLock();
+		try {
+			final long pos = insert(key);
+			final long previous = slots.getLong(pos);
+			slots.putLong(pos, value);
+			return previous;
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	/**
+	 * @return true if the key was absent
+	 */
+	public boolean put(long key, byte[] value) {
+		requireWidth(value);
+		rwLock.writeLock();
+		try {
+			final long sizeBefore = size;
+			slots.putBytes(insert(key), value, valueWidth);
+			return size != sizeBefore;
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	/**
+	 * Adds delta to the value of the key, treating an absent key as 0.
+	 * @return the new value
+	 */
+	public long increment(long key, long delta) {
+		requireLongValues();
+		rwLock.writeLock();
+		try {
+			final long pos = insert(key);
+			final long value = slots.getLong(pos) + delta;
+			slots.putLong(pos, value);
+			return value;
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	/**
+	 * @return true if the key was present
+	 */
+	public boolean remove(long key) {
+		rwLock.writeLock();
+		try {
+			if (key == 0L) {
+				if (!hasZeroKey) return false;
+				hasZeroKey = false;
+				size--;
+				writeCounts();
+				return true;
+			}
+			final long idx = slotOf(key);
+			if (idx == -1L) return false;
+			shiftBack(idx);
+			size--;
+			writeCounts();
+			return true;
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	/**
+	 * Iterates over all entries of a long to long map under a read lock.
+	 */
+	public void forEach(LongLongConsumer action) {
+		requireLongValues();
+		rwLock.readLock();
+		try {
+			if (hasZeroKey) {
+				action.accept(0L, slots.getLong(ZERO_VALUE_POS));
+			}
+			for (long idx = 0L; idx < capacity; idx++) {
+				final long pos = slotPos(idx);
+				final long key = slots.getLong(pos);
+				if (key != 0L) {
+					action.accept(key, slots.getLong(pos + KEY_SIZE));
+				}
+			}
+		} finally {
+			rwLock.readUnlock();
+		}
+	}
+
+	public long size() {
+		rwLock.readLock();
+		try {
+			return size;
+		} finally {
+			rwLock.readUnlock();
+		}
+	}
+
+	public int valueWidth() {
+		return valueWidth;
+	}
+
+	public void clear() {
+		rwLock.writeLock();
+		try {
+			slots.clear();
+			size = 0L;
+			hasZeroKey = false;
+			writeHeader(slots, capacity);
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	/**
+	 * Writes the header and forces the slots file to the storage device.
+	 */
+	public void flush() {
+		rwLock.writeLock();
+		try {
+			writeHeader(slots, capacity);
+			slots.flush();
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		rwLock.writeLock();
+		try {
+			writeHeader(slots, capacity);
+			slots.close();
+		} finally {
+			rwLock.writeUnlock();
+		}
+	}
+
+	public void delete() {
+		close();
+		deleteDirectory(baseDir);
+	}
+
+	private long valuePos(long key) {
+		if (key == 0L) {
+			return hasZeroKey ? ZERO_VALUE_POS : -1L;
+		}
+		final long idx = slotOf(key);
+		return idx == -1L ? -1L : slotPos(idx) + KEY_SIZE;
+	}
+
+	/**
+	 * @return index of the slot holding the key, or -1 if it is absent
+	 */
+	private long slotOf(long key) {
+		final long mask = capacity - 1L;
+		long idx = slotIndex(key);
+		for (long probes = 0L; probes < capacity; probes++) {
+			final long k = slots.getLong(slotPos(idx));
+			if (k == key) return idx;
+			if (k == 0L) return -1L;
+			idx = (idx + 1L) & mask;
+		}
+		return -1L;
+	}
+
+	/**
+	 * Finds the value position of the key, inserting the key with a zeroed value if it is absent.
+	 * Should be called under the write lock.
+	 */
+	private long insert(long key) {
+		if (key == 0L) {
+			if (!hasZeroKey) {
+				hasZeroKey = true;
+				size++;
+				zeroValue(ZERO_VALUE_POS);
+				writeCounts();
+			}
+			return ZERO_VALUE_POS;
+		}
+		long pos = probe(key);
+		if (pos != -1L && slots.getLong(pos) == key) {
+			return pos + KEY_SIZE;
+		}
+		if (pos == -1L || size + 1L > capacity * BaseLinearHashMap.LOAD_FACTOR) {
+			resize(capacity * 2L);
+			pos = probe(key);
+		}
+		slots.putLong(pos, key);
+		zeroValue(pos + KEY_SIZE);
+		size++;
+		writeCounts();
+		return pos + KEY_SIZE;
+	}
+
+	/**
+	 * @return position of the slot holding the key or of the first empty slot in its probe sequence,
+	 * or -1 if the table is full
+	 */
+	private long probe(long key) {
+		final long mask = capacity - 1L;
+		long idx = slotIndex(key);
+		for (long probes = 0L; probes < capacity; probes++) {
+			final long pos = slotPos(idx);
+			final long k = slots.getLong(pos);
+			if (k == key || k == 0L) return pos;
+			idx = (idx + 1L) & mask;
+		}
+		return -1L;
+	}
+
+	/**
+	 * Keeps the header counts current after every change, so they survive an unclean shutdown.
+	 */
+	private void writeCounts() {
+		slots.putLong(SIZE_POS, size);
+		slots.putInt(HAS_ZERO_KEY_POS, hasZeroKey ? 1 : 0);
+	}
+
+	/**
+	 * Empties the slot by moving back following entries of its cluster which would otherwise become unreachable,
+	 * so removals leave no tombstones behind.
+	 */
+	private void shiftBack(long gap) {
+		final long mask = capacity - 1L;
+		long idx = (gap + 1L) & mask;
+		for (long steps = 1L; steps < capacity; steps++) {
+			final long pos = slotPos(idx);
+			final long key = slots.getLong(pos);
+			if (key == 0L) break;
+			final long home = slotIndex(key);
+			if (((idx - home) & mask) >= ((idx - gap) & mask)) {
+				final long gapPos = slotPos(gap);
+				slots.putLong(gapPos, key);
+				slots.getBytes(pos + KEY_SIZE, moveBuffer, valueWidth);
+				slots.putBytes(gapPos + KEY_SIZE, moveBuffer, valueWidth);
+				gap = idx;
+			}
+			idx = (idx + 1L) & mask;
+		}
+		slots.putLong(slotPos(gap), 0L);
+	}
+
+	/**
+	 * Rebuilds all entries into a new slots file in the resize directory and then atomically moves it over
+	 * the current one, so the store is never left half resized.
+	 */
+	private void resize(long newCapacity) {
+		final var resizeDir = baseDir.resolve(RESIZE_DIR);
+		deleteDirectory(resizeDir);
+		resizeDir.toFile().mkdirs();
+		final var target = new SlotNode(resizeDir, fileLength(newCapacity));
+		try {
+			final long mask = newCapacity - 1L;
+			for (long idx = 0L; idx < capacity; idx++) {
+				final long pos = slotPos(idx);
+				final long key = slots.getLong(pos);
+				if (key == 0L) continue;
+				long targetIdx = Hash.hashLong(key) & mask;
+				while (target.getLong(headerSize + targetIdx * slotWidth) != 0L) {
+					targetIdx = (targetIdx + 1L) & mask;
+				}
+				final long targetPos = headerSize + targetIdx * slotWidth;
+				target.putLong(targetPos, key);
+				slots.getBytes(pos + KEY_SIZE, moveBuffer, valueWidth);
+				target.putBytes(targetPos + KEY_SIZE, moveBuffer, valueWidth);
+			}
+			if (hasZeroKey) {
+				slots.getBytes(ZERO_VALUE_POS, moveBuffer, valueWidth);
+				target.putBytes(ZERO_VALUE_POS, moveBuffer, valueWidth);
+			}
+			writeHeader(target, newCapacity);
+		} finally {
+			target.close();
+		}
+
+		slots.close();
+		try {
+			Files.move(resizeDir.resolve(FileType.SLOTS.filename), baseDir.resolve(FileType.SLOTS.filename),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		deleteDirectory(resizeDir);
+		this.slots = new SlotNode(baseDir, fileLength(newCapacity));
+		this.capacity = newCapacity;
+	}
+
+	private void zeroValue(long pos) {
+		for (int i = 0; i < slotWidth - KEY_SIZE; i += Long.BYTES) {
+			slots.putLong(pos + i, 0L);
+		}
+	}
+
+	private long slotIndex(long key) {
+		return Hash.hashLong(key) & (capacity - 1L);
+	}
+
+	private long slotPos(long idx) {
+		return headerSize + idx * slotWidth;
+	}
+
+	private long fileLength(long slotCapacity) {
+		return headerSize + slotCapacity * slotWidth;
+	}
+
+	private void requireLongValues() {
+		if (valueWidth != Long.BYTES) {
+			throw new IllegalStateException("Long values require value width of 8 bytes, but it is " + valueWidth);
+		}
+	}
+
+	private void requireWidth(byte[] value) {
+		if (value.length != valueWidth) {
+			throw new IllegalArgumentException(String.format("Value length must be %d, but it is %d",
+					valueWidth, value.length));
+		}
+	}
+}
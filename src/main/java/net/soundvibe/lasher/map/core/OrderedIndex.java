@@ -0,0 +1,430 @@
+package net.soundvibe.lasher.map.core;
+
+import net.soundvibe.lasher.mmap.PageNode;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+import static net.soundvibe.lasher.mmap.PageNode.PAGE_SIZE;
+import static net.soundvibe.lasher.util.BytesSupport.BYTE_ORDER;
+
+/**
+ * Ordered set of byte arrays, compared as unsigned bytes, kept in a memory mapped B+tree.
+ * Leaves are linked in both directions, so ranges are scanned either way without touching inner pages.
+ * Removals don't merge pages: emptied leaves stay linked and are skipped by scans.
+ * It is not thread safe, callers hold the lock of the owning shard.
+ */
+public final class OrderedIndex implements AutoCloseable {
+
+	/**
+	 * Orders entries by the key bytes themselves.
+	 */
+	public static final UnaryOperator<byte[]> BY_KEY = key -> key;
+	public static final int MAX_ENTRY_LENGTH = 1024;
+
+	private static final long ROOT_POS = 0L;
+	private static final long PAGES_POS = 8L;
+	private static final long ENTRIES_POS = 16L;
+	private static final long SYNCED_SIZE_POS = 24L;
+	private static final long SYNCED_WRITE_POS = 32L;
+
+	private static final byte LEAF = 1;
+	private static final byte INNER = 2;
+	private static final int PAGE_HEADER_SIZE = 24;
+	private static final Comparator<byte[]> ORDER = Arrays::compareUnsigned;
+
+	private final PageNode pages;
+	private final byte[] buffer = new byte[PAGE_SIZE];
+	private boolean dirty;
+
+	public OrderedIndex(Path baseDir) {
+		this.pages = new PageNode(baseDir, PAGE_SIZE * 256L);
+		if (root() == 0L) {
+			init();
+		}
+	}
+
+	/**
+	 * Encodes the entry of a key, so that entries are ordered by sort keys first and by keys second.
+	 * Zero bytes of the sort key are escaped and the sort key is terminated by two zero bytes,
+	 * which keeps the order of sort keys and lets the key be decoded back.
+	 * @return the entry or null if the sort key extractor returns null, so the key is not indexed
+	 */
+	public static byte[] entryOf(UnaryOperator<byte[]> sortKey, byte[] key) {
+		if (sortKey == BY_KEY) return key;
+		final byte[] extracted = sortKey.apply(key);
+		if (extracted == null) return null;
+		final byte[] escaped = escape(extracted);
+		final var entry = Arrays.copyOf(escaped, escaped.length + 2 + key.length);
+		System.arraycopy(key, 0, entry, escaped.length + 2, key.length);
+		return entry;
+	}
+
+	public static byte[] keyOf(UnaryOperator<byte[]> sortKey, byte[] entry) {
+		if (sortKey == BY_KEY) return entry;
+		int i = 0;
+		while (entry[i] != 0 || entry[i + 1] != 0) {
+			i += entry[i] == 0 ? 2 : 1;
+		}
+		return Arrays.copyOfRange(entry, i + 2, entry.length);
+	}
+
+	/**
+	 * Encodes a bound of sort keys, which could be compared with entries.
+	 */
+	public static byte[] boundOf(UnaryOperator<byte[]> sortKey, byte[] bound) {
+		if (bound == null || sortKey == BY_KEY) return bound;
+		return escape(bound);
+	}
+
+	/**
+	 * @return the least array greater than all arrays starting with the prefix, or null if there is none
+	 */
+	public static byte[] prefixEnd(byte[] prefix) {
+		int end = prefix.length;
+		while (end > 0 && prefix[end - 1] == (byte) 0xFF) {
+			end--;
+		}
+		if (end == 0) return null;
+		final var result = Arrays.copyOf(prefix, end);
+		result[end - 1]++;
+		return result;
+	}
+
+	private static byte[] escape(byte[] sortKey) {
+		final var out = new byte[sortKey.length * 2];
+		int length = 0;
+		for (byte b : sortKey) {
+			out[length++] = b;
+			if (b == 0) {
+				out[length++] = (byte) 0xFF;
+			}
+		}
+		return Arrays.copyOf(out, length);
+	}
+
+	/**
+	 * @return false if the entry is already present
+	 * @throws IllegalArgumentException if the entry is longer than {@link #MAX_ENTRY_LENGTH}
+	 */
+	public boolean add(byte[] entry) {
+		requireFits(entry);
+		markDirty();
+		final var path = new ArrayDeque<Page>();
+		final var childIndexes = new ArrayDeque<Integer>();
+		var page = readPage(root());
+		while (!page.leaf) {
+			final int childIndex = childIndex(page, entry);
+			path.push(page);
+			childIndexes.push(childIndex);
+			page = readPage(page.children.get(childIndex));
+		}
+		final int pos = Collections.binarySearch(page.keys, entry, ORDER);
+		if (pos >= 0) return false;
+		page.keys.add(-pos - 1, entry);
+
+		var split = page.fits() ? null : splitLeaf(page);
+		writePage(page);
+		while (split != null) {
+			if (path.isEmpty()) {
+				final var newRoot = new Page(allocatePage(), false);
+				newRoot.children.add(page.id);
+				newRoot.keys.add(split.separator);
+				newRoot.children.add(split.right);
+				writePage(newRoot);
+				pages.putLong(ROOT_POS, newRoot.id);
+				break;
+			}
+			page = path.pop();
+			final int childIndex = childIndexes.pop();
+			page.keys.add(childIndex, split.separator);
+			page.children.add(childIndex + 1, split.right);
+			split = page.fits() ? null : splitInner(page);
+			writePage(page);
+		}
+		pages.putLong(ENTRIES_POS, size() + 1L);
+		return true;
+	}
+
+	public boolean remove(byte[] entry) {
+		var page = readPage(root());
+		while (!page.leaf) {
+			page = readPage(page.children.get(childIndex(page, entry)));
+		}
+		final int pos = Collections.binarySearch(page.keys, entry, ORDER);
+		if (pos < 0) return false;
+		markDirty();
+		page.keys.remove(pos);
+		writePage(page);
+		pages.putLong(ENTRIES_POS, size() - 1L);
+		return true;
+	}
+
+	/**
+	 * Reads entries of the range [lower, upper) in the given direction. Scans are resumed after the last read entry,
+	 * so the tree may change between calls.
+	 * @param lower inclusive lower bound or null if unbounded
+	 * @param upper exclusive upper bound or null if unbounded
+	 * @param after the last entry of the previous call or null to start from the first entry in the given direction
+	 * @param max maximum number of entries to read
+	 */
+	public List<byte[]> scan(byte[] lower, byte[] upper, byte[] after, boolean descending, int max) {
+		final var result = new ArrayList<byte[]>(Math.min(max, 64));
+		final byte[] start = after != null ? after : descending ? upper : lower;
+		var page = start == null ? edgeLeaf(descending) : findLeaf(start);
+		int i;
+		if (start == null) {
+			i = descending ? page.keys.size() - 1 : 0;
+		} else {
+			final int pos = Collections.binarySearch(page.keys, start, ORDER);
+			if (descending) {
+				i = (pos >= 0 ? pos : -pos - 1) - 1;
+			} else {
+				i = pos >= 0 ? (after != null ? pos + 1 : pos) : -pos - 1;
+			}
+		}
+		while (result.size() < max) {
+			if (i < 0 || i >= page.keys.size()) {
+				final long nextPage = descending ? page.prev : page.next;
+				if (nextPage == 0L) break;
+				page = readPage(nextPage);
+				i = descending ? page.keys.size() - 1 : 0;
+				continue;
+			}
+			final byte[] entry = page.keys.get(i);
+			if (descending ? lower != null && ORDER.compare(entry, lower) < 0 : upper != null && ORDER.compare(entry, upper) >= 0) {
+				break;
+			}
+			result.add(entry);
+			i += descending ? -1 : 1;
+		}
+		return result;
+	}
+
+	public long size() {
+		return pages.getLong(ENTRIES_POS);
+	}
+
+	/**
+	 * Records the state of the store the index was last written with, see {@link #isSynced(long, long)}.
+	 */
+	public void markSynced(long storeSize, long storeWritePos) {
+		pages.putLong(SYNCED_SIZE_POS, storeSize);
+		pages.putLong(SYNCED_WRITE_POS, storeWritePos);
+		dirty = false;
+	}
+
+	/**
+	 * Invalidates the recorded store state before the first change after it was recorded,
+	 * so the index is rebuilt if the process dies before the next {@link #markSynced(long, long)}.
+	 */
+	private void markDirty() {
+		if (!dirty) {
+			pages.putLong(SYNCED_SIZE_POS, -1L);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Tells whether the index was last written with a store in the given state. It is not, if the store was
+	 * modified without the index or the process died before the index was flushed, and then it has to be rebuilt.
+	 */
+	public boolean isSynced(long storeSize, long storeWritePos) {
+		return pages.getLong(SYNCED_SIZE_POS) == storeSize && pages.getLong(SYNCED_WRITE_POS) == storeWritePos;
+	}
+
+	public void clear() {
+		pages.clear();
+		init();
+	}
+
+	public void flush() {
+		pages.flush();
+	}
+
+	@Override
+	public void close() {
+		pages.close();
+	}
+
+	private void init() {
+		pages.putLong(PAGES_POS, 1L);
+		final var root = new Page(allocatePage(), true);
+		writePage(root);
+		pages.putLong(ROOT_POS, root.id);
+		pages.putLong(ENTRIES_POS, 0L);
+	}
+
+	private long root() {
+		return pages.getLong(ROOT_POS);
+	}
+
+	private long allocatePage() {
+		final long page = pages.getLong(PAGES_POS);
+		pages.putLong(PAGES_POS, page + 1L);
+		return page;
+	}
+
+	static void requireFits(byte[] entry) {
+		if (entry.length > MAX_ENTRY_LENGTH) {
+			throw new IllegalArgumentException("Ordered index entry is too long: " + entry.length + " > " + MAX_ENTRY_LENGTH);
+		}
+	}
+
+	/**
+	 * Entries of the subtree at child i+1 are greater than or equal to the separator i,
+	 * so the child for an entry follows the last separator not greater than it.
+	 */
+	private static int childIndex(Page page, byte[] entry) {
+		final int pos = Collections.binarySearch(page.keys, entry, ORDER);
+		return pos >= 0 ? pos + 1 : -pos - 1;
+	}
+
+	private Page findLeaf(byte[] entry) {
+		var page = readPage(root());
+		while (!page.leaf) {
+			page = readPage(page.children.get(childIndex(page, entry)));
+		}
+		return page;
+	}
+
+	private Page edgeLeaf(boolean last) {
+		var page = readPage(root());
+		while (!page.leaf) {
+			page = readPage(page.children.get(last ? page.children.size() - 1 : 0));
+		}
+		return page;
+	}
+
+	private record Split(byte[] separator, long right) {}
+
+	/**
+	 * Moves the upper half of the leaf into a new right sibling.
+	 */
+	private Split splitLeaf(Page page) {
+		final int at = splitIndex(page);
+		final var right = new Page(allocatePage(), true);
+		final var moved = page.keys.subList(at, page.keys.size());
+		right.keys.addAll(moved);
+		moved.clear();
+		right.prev = page.id;
+		right.next = page.next;
+		if (page.next != 0L) {
+			final var next = readPage(page.next);
+			next.prev = right.id;
+			writePage(next);
+		}
+		page.next = right.id;
+		writePage(right);
+		return new Split(right.keys.get(0), right.id);
+	}
+
+	/**
+	 * Moves the upper half of the inner page into a new right sibling, the middle separator moves up.
+	 */
+	private Split splitInner(Page page) {
+		final int at = splitIndex(page);
+		final byte[] separator = page.keys.get(at);
+		final var right = new Page(allocatePage(), false);
+		final var movedKeys = page.keys.subList(at + 1, page.keys.size());
+		final var movedChildren = page.children.subList(at + 1, page.children.size());
+		right.keys.addAll(movedKeys);
+		right.children.addAll(movedChildren);
+		movedKeys.clear();
+		movedChildren.clear();
+		page.keys.remove(at);
+		writePage(right);
+		return new Split(separator, right.id);
+	}
+
+	/**
+	 * Splits by bytes rather than by count, so both halves fit even with entries of very different lengths.
+	 */
+	private static int splitIndex(Page page) {
+		final int half = page.length() / 2;
+		int length = PAGE_HEADER_SIZE;
+		for (int i = 0; i < page.keys.size() - 1; i++) {
+			length += page.cellLength(i);
+			if (length >= half) return Math.max(1, i);
+		}
+		return page.keys.size() - 1;
+	}
+
+	private Page readPage(long id) {
+		pages.readPage(id, buffer);
+		final var in = ByteBuffer.wrap(buffer).order(BYTE_ORDER);
+		final var page = new Page(id, in.get(0) == LEAF);
+		final int count = in.getShort(2);
+		page.next = in.getLong(8);
+		page.prev = in.getLong(16);
+		in.position(PAGE_HEADER_SIZE);
+		if (!page.leaf) {
+			page.children.add(in.getLong());
+		}
+		for (int i = 0; i < count; i++) {
+			final var key = new byte[in.getShort()];
+			in.get(key);
+			page.keys.add(key);
+			if (!page.leaf) {
+				page.children.add(in.getLong());
+			}
+		}
+		return page;
+	}
+
+	private void writePage(Page page) {
+		final var out = ByteBuffer.allocate(PAGE_SIZE).order(BYTE_ORDER);
+		out.put(0, page.leaf ? LEAF : INNER);
+		out.putShort(2, (short) page.keys.size());
+		out.putLong(8, page.next);
+		out.putLong(16, page.prev);
+		out.position(PAGE_HEADER_SIZE);
+		if (!page.leaf) {
+			out.putLong(page.children.get(0));
+		}
+		for (int i = 0; i < page.keys.size(); i++) {
+			final byte[] key = page.keys.get(i);
+			out.putShort((short) key.length);
+			out.put(key);
+			if (!page.leaf) {
+				out.putLong(page.children.get(i + 1));
+			}
+		}
+		pages.writePage(page.id, out.array());
+	}
+
+	/**
+	 * Decoded page. Leaf pages are linked to siblings, inner pages have one child more than separators.
+	 */
+	private static final class Page {
+		final long id;
+		final boolean leaf;
+		final List<byte[]> keys = new ArrayList<>();
+		final List<Long> children = new ArrayList<>();
+		long next;
+		long prev;
+
+		Page(long id, boolean leaf) {
+			this.id = id;
+			this.leaf = leaf;
+		}
+
+		int cellLength(int i) {
+			return Short.BYTES + keys.get(i).length + (leaf ? 0 : Long.BYTES);
+		}
+
+		int length() {
+			int length = PAGE_HEADER_SIZE + (leaf ? 0 : Long.BYTES);
+			for (int i = 0; i < keys.size(); i++) {
+				length += cellLength(i);
+			}
+			return length;
+		}
+
+		boolean fits() {
+			return length() <= PAGE_SIZE;
+		}
+	}
+}
@@ -2,11 +2,16 @@ package net.soundvibe.lasher.map.core;
 
 import io.micrometer.core.instrument.Timer;
 import io.micrometer.core.instrument.*;
+import net.soundvibe.lasher.map.model.*;
 import net.soundvibe.lasher.map.sync.*;
+import net.soundvibe.lasher.util.Hash;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.*;
 
 public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], byte[]>> {
 
@@ -14,14 +19,43 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
     private final Lasher lasher;
     private final Locker rwLock;
     private final ShardMetrics metrics;
+    private final Map<String, ValueIndex> valueIndexes;
 
 	record ShardMetrics(Timer getLatency, Timer putLatency) {}
 
+	private static final String INDEX_DIR = "index";
+
     public Shard(int id, Path path, long indexFileLength, long dataFileLength, Tags tags) {
+		this(id, path, indexFileLength, dataFileLength, tags, false, StoreOptions.NONE, Map.of());
+	}
+
+	/**
+	 * @param lockMetrics if true, shard lock wait times, hold times and queue length are recorded
+	 * @param options features, entry limit and ordered index of the shard's store
+	 * @param secondaryIndexes value extractors of secondary indexes by index names, each kept in the index directory
+	 *                         of the shard and rebuilt from the shard data when it is new or out of sync
+	 */
+    public Shard(int id, Path path, long indexFileLength, long dataFileLength, Tags tags, boolean lockMetrics,
+				 StoreOptions options, Map<String, UnaryOperator<byte[]>> secondaryIndexes) {
 		this.id = id;
 		var shardTags = tags.and(Tag.of("shard", String.valueOf(id)));
-		this.lasher = Lasher.forShard(path, indexFileLength, dataFileLength, shardTags);
-		this.rwLock = new RWLocker(new ReentrantReadWriteLock());
+		this.lasher = Lasher.forShard(path, indexFileLength, dataFileLength, shardTags, options);
+		this.valueIndexes = new HashMap<>(secondaryIndexes.size());
+		try {
+			secondaryIndexes.forEach((name, extractor) -> valueIndexes.put(name, openValueIndex(
+					path.resolve(INDEX_DIR).resolve(name), indexFileLength, dataFileLength,
+					shardTags.and(Tag.of("index", name)), extractor)));
+		} catch (RuntimeException e) {
+			valueIndexes.values().forEach(ValueIndex::close);
+			lasher.close();
+			throw e;
+		}
+		if (!valueIndexes.isEmpty()) {
+			lasher.setListener(this::reindex);
+		}
+		this.rwLock = lockMetrics ?
+				new InstrumentedLocker(new ReentrantReadWriteLock(), shardTags) :
+				new RWLocker(new ReentrantReadWriteLock());
 		Metrics.gauge("shard-size", shardTags, this, Shard::size);
 		this.metrics = new ShardMetrics(
 				Metrics.timer("shard-get-latency", shardTags),
@@ -29,6 +63,27 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
 		);
 	}
 
+    private ValueIndex openValueIndex(Path path, long indexFileLength, long dataFileLength, Tags tags,
+                                      UnaryOperator<byte[]> extractor) {
+        var index = new ValueIndex(path, indexFileLength, dataFileLength, tags, extractor);
+        if (!index.isSynced(lasher.size(), lasher.dataWritePos.get())) {
+            index.clear();
+            lasher.iterator().forEachRemaining(entry -> index.update(entry.getKey(), null, entry.getValue()));
+            index.markSynced(lasher.size(), lasher.dataWritePos.get());
+        }
+        return index;
+    }
+
+    /**
+     * Moves the key between secondary index entries by its values before and after a change made by the store,
+     * which includes evictions and expirations.
+     */
+    private void reindex(byte[] key, byte[] before, byte[] after) {
+        for (var index : valueIndexes.values()) {
+            index.update(key, before, after);
+        }
+    }
+
     public byte[] get(byte[] key, long hash) {
     	return metrics.getLatency.record(() -> {
             rwLock.readLock();
@@ -51,6 +106,146 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
 		});
     }
 
+    public <T> T get(ByteBuffer key, long hash, Function<ByteBuffer, T> reader) {
+        return metrics.getLatency.record(() -> {
+            rwLock.readLock();
+            try {
+                return lasher.get(key, hash, reader);
+            } finally {
+                rwLock.readUnlock();
+            }
+        });
+    }
+
+    public <T> T put(ByteBuffer key, long hash, ByteBuffer value, Function<ByteBuffer, T> previousReader) {
+        return metrics.putLatency.record(() -> {
+            rwLock.writeLock();
+            try {
+                return lasher.put(key, value, hash, previousReader);
+            } finally {
+                rwLock.writeUnlock();
+            }
+        });
+    }
+
+    /**
+     * Adds delta to the long value of the key. Aligned values of existing keys are updated atomically
+     * under the read lock, so concurrent updates of different keys don't block each other.
+     * Otherwise, or if the shard has secondary indexes, the value is updated or inserted under the write lock.
+     * @return the previous value, 0 if the key was absent
+     */
+    public long getAndAdd(byte[] key, long hash, long delta) {
+        final long started = System.nanoTime();
+        try {
+            if (valueIndexes.isEmpty()) {
+                rwLock.readLock();
+                try {
+                    final long valuePos = lasher.alignedLongPos(key, hash);
+                    if (valuePos != -1L) {
+                        return lasher.getAndAddAligned(valuePos, delta);
+                    }
+                } finally {
+                    rwLock.readUnlock();
+                }
+            }
+            rwLock.writeLock();
+            try {
+                return lasher.getAndAdd(key, delta, hash);
+            } finally {
+                rwLock.writeUnlock();
+            }
+        } finally {
+            metrics.putLatency.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Sets the long value of the key if it equals the expected value, treating an absent key as 0.
+     * @see #getAndAdd(byte[], long, long)
+     */
+    public boolean compareAndSet(byte[] key, long hash, long expected, long newValue) {
+        final long started = System.nanoTime();
+        try {
+            if (valueIndexes.isEmpty()) {
+                rwLock.readLock();
+                try {
+                    final long valuePos = lasher.alignedLongPos(key, hash);
+                    if (valuePos != -1L) {
+                        return lasher.compareAndSetAligned(valuePos, expected, newValue);
+                    }
+                } finally {
+                    rwLock.readUnlock();
+                }
+            }
+            rwLock.writeLock();
+            try {
+                return lasher.compareAndSet(key, expected, newValue, hash);
+            } finally {
+                rwLock.writeUnlock();
+            }
+        } finally {
+            metrics.putLatency.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Reads all given keys under a single read lock acquisition.
+     */
+    public byte[][] getAll(byte[][] keys, long[] hashes) {
+        return metrics.getLatency.record(() -> {
+            rwLock.readLock();
+            try {
+                var result = new byte[keys.length][];
+                for (int i = 0; i < keys.length; i++) {
+                    result[i] = lasher.get(keys[i], hashes[i]);
+                }
+                return result;
+            } finally {
+                rwLock.readUnlock();
+            }
+        });
+    }
+
+    /**
+     * Writes all given key value pairs under a single write lock acquisition.
+     * A null value removes the key.
+     * @return previous values in the same order as keys, with null for absent keys
+     */
+    public byte[][] writeAll(byte[][] keys, long[] hashes, byte[][] values) {
+        return metrics.putLatency.record(() -> {
+            rwLock.writeLock();
+            try {
+                requireWritable(keys, values);
+                var previous = new byte[keys.length][];
+                for (int i = 0; i < keys.length; i++) {
+                    final byte[] key = keys[i];
+                    final long hash = hashes[i];
+                    final byte[] value = values[i];
+                    previous[i] = value == null ? lasher.remove(key, hash) : lasher.put(key, value, hash);
+                }
+                return previous;
+            } finally {
+                rwLock.writeUnlock();
+            }
+        });
+    }
+
+    /**
+     * Runs the checks and index extractors a write of each key value pair would run, so a batch can be rejected
+     * before any of its writes is applied. A null value removes the key.
+     * @throws IllegalArgumentException if a key does not fit the ordered index
+     */
+    public void requireWritable(byte[][] keys, byte[][] values) {
+        for (int i = 0; i < keys.length; i++) {
+            lasher.requireIndexable(keys[i]);
+            if (values[i] != null) {
+                for (var index : valueIndexes.values()) {
+                    index.extract(values[i]);
+                }
+            }
+        }
+    }
+
     public byte[] putIfAbsent(byte[] key, long hash, byte[] value) {
         rwLock.writeLock();
         try {
@@ -60,6 +255,21 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
         }
     }
 
+    /**
+     * Atomically computes a new value for the key under a single write lock acquisition.
+     * @see Lasher#compute(byte[], UnaryOperator, long)
+     */
+    public byte[] compute(byte[] key, long hash, UnaryOperator<byte[]> remapping) {
+        return metrics.putLatency.record(() -> {
+            rwLock.writeLock();
+            try {
+                return lasher.compute(key, remapping, hash);
+            } finally {
+                rwLock.writeUnlock();
+            }
+        });
+    }
+
     public byte[] remove(byte[] key, long hash) {
         rwLock.writeLock();
         try {
@@ -78,6 +288,93 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
         }
     }
 
+    /**
+     * @param expiresAt epoch millis after which the entry is treated as absent
+     */
+    public byte[] put(byte[] key, long hash, byte[] value, long expiresAt) {
+        return metrics.putLatency.record(() -> {
+            rwLock.writeLock();
+            try {
+                return lasher.put(key, value, hash, expiresAt);
+            } finally {
+                rwLock.writeUnlock();
+            }
+        });
+    }
+
+    /**
+     * Sweeps expired entries of a range of index slots under the write lock.
+     * @see Lasher#sweepExpired(long, int)
+     */
+    public long sweepExpired(long fromIdx, int maxSlots) {
+        rwLock.writeLock();
+        try {
+            return lasher.sweepExpired(fromIdx, maxSlots);
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
+    public boolean expires() {
+        return lasher.expires();
+    }
+
+    /**
+     * Runs a step of a background compaction under the write lock.
+     * @see Lasher#compactStep(int)
+     */
+    public boolean compactStep(int maxSlots) {
+        rwLock.writeLock();
+        try {
+            return lasher.compactStep(maxSlots);
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
+    /**
+     * Compacts shard files under the write lock.
+     * @see Lasher#compact()
+     */
+    public void compact() {
+        rwLock.writeLock();
+        try {
+            lasher.compact();
+            valueIndexes.values().forEach(ValueIndex::compact);
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
+    public VersionedValue getWithVersion(byte[] key, long hash) {
+        return metrics.getLatency.record(() -> {
+            rwLock.readLock();
+            try {
+                return lasher.getWithVersion(key, hash);
+            } finally {
+                rwLock.readUnlock();
+            }
+        });
+    }
+
+    public boolean replaceIfVersion(byte[] key, long hash, long version, byte[] newValue) {
+        rwLock.writeLock();
+        try {
+            return lasher.replaceIfVersion(key, version, newValue, hash);
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
+    public boolean removeIfVersion(byte[] key, long hash, long version) {
+        rwLock.writeLock();
+        try {
+            return lasher.removeIfVersion(key, version, hash);
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
     public boolean replace(byte[] key, long hash, byte[] prevVal, byte[] newVal) {
         rwLock.writeLock();
         try {
@@ -100,15 +397,128 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
         return lasher.size();
     }
 
+    /**
+     * Finds entries whose values are indexed under the given value by the named secondary index.
+     * Index entries of records which expired but were not swept yet are skipped and then pruned under the write lock.
+     * @throws IllegalArgumentException if the shard has no such index
+     */
+    public List<Map.Entry<byte[], byte[]>> getBy(String indexName, byte[] indexed) {
+        final var index = valueIndexes.get(indexName);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown secondary index: " + indexName);
+        }
+        final var result = new ArrayList<Map.Entry<byte[], byte[]>>();
+        final var stale = new ArrayList<byte[]>();
+        metrics.getLatency.record(() -> {
+            rwLock.readLock();
+            try {
+                for (var key : index.keys(indexed)) {
+                    final byte[] value = lasher.get(key, Hash.hashBytes(key));
+                    if (Arrays.equals(indexed, index.extract(value))) {
+                        result.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+                    } else {
+                        stale.add(key);
+                    }
+                }
+            } finally {
+                rwLock.readUnlock();
+            }
+        });
+        if (!stale.isEmpty()) {
+            writeLocked(() -> {
+                for (var key : stale) {
+                    if (!Arrays.equals(indexed, index.extract(lasher.get(key, Hash.hashBytes(key))))) {
+                        index.remove(indexed, key);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Runs given action while holding this shard's read lock.
+     */
+    public <T> T readLocked(Supplier<T> action) {
+        rwLock.readLock();
+        try {
+            return action.get();
+        } finally {
+            rwLock.readUnlock();
+        }
+    }
+
+    /**
+     * Runs given action while holding this shard's write lock.
+     */
+    public void writeLocked(Runnable action) {
+        rwLock.writeLock();
+        try {
+            action.run();
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
+    /**
+     * Forces all changes of this shard to the storage device.
+     */
+    public void flush() {
+        rwLock.writeLock();
+        try {
+            lasher.flush();
+            for (var index : valueIndexes.values()) {
+                index.markSynced(lasher.size(), lasher.dataWritePos.get());
+                index.flush();
+            }
+        } finally {
+            rwLock.writeUnlock();
+        }
+    }
+
     @Override
     public Iterator<Map.Entry<byte[], byte[]>> iterator() {
         return lasher.iterator(rwLock);
     }
 
+    /**
+     * @see Lasher#orderedIterator(Locker, byte[], byte[], boolean)
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> orderedIterator(byte[] lower, byte[] upper, boolean descending) {
+        return lasher.orderedIterator(rwLock, lower, upper, descending);
+    }
+
+    /**
+     * @see Lasher#sequentialIterator(Locker)
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> sequentialIterator() {
+        return lasher.sequentialIterator(rwLock);
+    }
+
+    /**
+     * @see Lasher#scan(Locker, BiConsumer)
+     */
+    public void scan(BiConsumer<ByteBuffer, ByteBuffer> consumer) {
+        lasher.scan(rwLock, consumer);
+    }
+
+    public Iterator<byte[]> keyIterator() {
+        return lasher.keyIterator(rwLock);
+    }
+
+    public Iterator<byte[]> valueIterator() {
+        return lasher.valueIterator(rwLock);
+    }
+
+    public Iterator<RecordHeader> headerIterator() {
+        return lasher.headerIterator(rwLock);
+    }
+
     public void clear() {
         rwLock.writeLock();
         try {
             lasher.clear();
+            valueIndexes.values().forEach(ValueIndex::clear);
         } finally {
             rwLock.writeUnlock();
         }
@@ -117,6 +527,7 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
 	public void delete() {
         rwLock.writeLock();
 		try {
+			valueIndexes.values().forEach(ValueIndex::close);
 			lasher.delete();
 		} finally {
             rwLock.writeUnlock();
@@ -127,6 +538,10 @@ public final class Shard implements AutoCloseable, Iterable<Map.Entry<byte[], by
     public void close() {
         rwLock.writeLock();
         try {
+            for (var index : valueIndexes.values()) {
+                index.markSynced(lasher.size(), lasher.dataWritePos.get());
+                index.close();
+            }
             lasher.close();
         } finally {
             rwLock.writeUnlock();
@@ -0,0 +1,36 @@
+package net.soundvibe.lasher.map.core;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * Optional features of a {@link Lasher} store.
+ * @param features optional record header fields of a new store, a combination of {@link Lasher#FEATURE_VERSIONS}
+ *                 and {@link Lasher#FEATURE_EXPIRY}. Existing stores keep the layout they were created with.
+ * @param maxEntries maximum number of entries, or 0 if the store is unbounded.
+ *                   Inserts into a full store evict entries which were not read recently.
+ * @param orderedBy extracts sort keys of an ordered index maintained beside the hash table,
+ *                  {@link OrderedIndex#BY_KEY} to order by keys, or null if the store has no ordered index.
+ *                  The extractor returns null for keys which should not be indexed.
+ */
+public record StoreOptions(int features, long maxEntries, UnaryOperator<byte[]> orderedBy) {
+
+	public static final StoreOptions NONE = new StoreOptions(0, 0L, null);
+
+	public StoreOptions {
+		if (maxEntries < 0L) {
+			throw new IllegalArgumentException("maxEntries must not be negative: " + maxEntries);
+		}
+	}
+
+	public StoreOptions withFeatures(int features) {
+		return new StoreOptions(features, maxEntries, orderedBy);
+	}
+
+	public StoreOptions withMaxEntries(long maxEntries) {
+		return new StoreOptions(features, maxEntries, orderedBy);
+	}
+
+	public StoreOptions withOrderedBy(UnaryOperator<byte[]> orderedBy) {
+		return new StoreOptions(features, maxEntries, orderedBy);
+	}
+}
@@ -0,0 +1,268 @@
+package net.soundvibe.lasher.map.core;
+
+import io.micrometer.core.instrument.Tags;
+import net.soundvibe.lasher.util.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * Secondary index of a shard: a hash table from values extracted from record values to keys of the records,
+ * kept in its own {@link Lasher} beside the shard data. Keys with the same indexed value are stored in chunks of up to
+ * {@value #CHUNK_KEYS} length prefixed keys, counted by a head record of the value, and each key records the chunk
+ * it is in, so a write reads and rewrites a bounded amount of data however many keys share the value.
+ * It is not thread safe, callers hold the lock of the owning shard.
+ */
+final class ValueIndex implements AutoCloseable {
+
+	private static final byte[] SYNC_KEY = {0};
+	private static final byte HEAD_PREFIX = 1;
+	private static final byte CHUNK_PREFIX = 2;
+	private static final byte KEY_PREFIX = 3;
+	private static final int CHUNK_KEYS = 64;
+	private static final long NOT_SYNCED = -1L;
+
+	private final Lasher lasher;
+	private final UnaryOperator<byte[]> extractor;
+	private boolean dirty;
+
+	ValueIndex(Path baseDir, long indexFileLength, long dataFileLength, Tags tags, UnaryOperator<byte[]> extractor) {
+		this.lasher = Lasher.forShard(baseDir, indexFileLength, dataFileLength, tags);
+		this.extractor = extractor;
+	}
+
+	/**
+	 * @return the indexed value of the record value, or null if the value is not indexed
+	 */
+	byte[] extract(byte[] value) {
+		return value == null ? null : extractor.apply(value);
+	}
+
+	/**
+	 * Moves the key from the list of its previous indexed value to the list of its new one.
+	 * @param oldValue record value before the write, or null if the key was absent
+	 * @param newValue record value after the write, or null if the key is absent
+	 */
+	void update(byte[] key, byte[] oldValue, byte[] newValue) {
+		final byte[] oldIndexed = extract(oldValue);
+		final byte[] newIndexed = extract(newValue);
+		if (Arrays.equals(oldIndexed, newIndexed)) return;
+		if (oldIndexed != null) {
+			remove(oldIndexed, key);
+		}
+		if (newIndexed != null) {
+			add(newIndexed, key);
+		}
+	}
+
+	void add(byte[] indexed, byte[] key) {
+		markDirty();
+		final byte[] chunkOfKey = lasher.get(keyEntry(key));
+		if (chunkOfKey != null && indexOf(chunk(indexed, toInt(chunkOfKey)), key) != -1) return;
+		final int chunks = chunks(indexed);
+		final byte[] last = chunks == 0 ? null : chunk(indexed, chunks - 1);
+		if (last != null && count(last) < CHUNK_KEYS) {
+			lasher.put(chunkEntry(indexed, chunks - 1), append(last, key));
+			lasher.put(keyEntry(key), toBytes(chunks - 1));
+		} else {
+			lasher.put(chunkEntry(indexed, chunks), append(null, key));
+			lasher.put(keyEntry(key), toBytes(chunks));
+			lasher.put(headEntry(indexed), toBytes(chunks + 1));
+		}
+	}
+
+	/**
+	 * Removes the key from its chunk and fills the gap with the last key of the last chunk,
+	 * so chunks stay full and a removal rewrites at most two of them.
+	 */
+	void remove(byte[] indexed, byte[] key) {
+		markDirty();
+		final byte[] chunkOfKey = lasher.get(keyEntry(key));
+		if (chunkOfKey == null) return;
+		final int chunkNo = toInt(chunkOfKey);
+		byte[] chunk = chunk(indexed, chunkNo);
+		final int pos = indexOf(chunk, key);
+		if (pos == -1) return;
+		lasher.remove(keyEntry(key));
+		chunk = cut(chunk, pos);
+		final int lastNo = chunks(indexed) - 1;
+		if (chunkNo != lastNo) {
+			final byte[] last = chunk(indexed, lastNo);
+			final int lastPos = lastKeyPos(last);
+			final byte[] moved = keyAt(last, lastPos);
+			chunk = append(chunk, moved);
+			lasher.put(keyEntry(moved), toBytes(chunkNo));
+			lasher.put(chunkEntry(indexed, chunkNo), chunk);
+			chunk = cut(last, lastPos);
+		}
+		if (chunk.length > 0) {
+			lasher.put(chunkEntry(indexed, lastNo), chunk);
+		} else {
+			lasher.remove(chunkEntry(indexed, lastNo));
+			if (lastNo == 0) {
+				lasher.remove(headEntry(indexed));
+			} else {
+				lasher.put(headEntry(indexed), toBytes(lastNo));
+			}
+		}
+	}
+
+	/**
+	 * @return keys of records indexed under the value, which may include keys of records that expired but were not swept yet
+	 */
+	List<byte[]> keys(byte[] indexed) {
+		final int chunks = chunks(indexed);
+		final var result = new ArrayList<byte[]>();
+		for (int chunkNo = 0; chunkNo < chunks; chunkNo++) {
+			final byte[] chunk = chunk(indexed, chunkNo);
+			for (int pos = 0; pos < chunk.length; pos += Integer.BYTES + keyLength(chunk, pos)) {
+				result.add(keyAt(chunk, pos));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records the state of the store the index was last written with, see {@link #isSynced(long, long)}.
+	 */
+	void markSynced(long storeSize, long storeWritePos) {
+		final var state = ByteBuffer.allocate(Long.BYTES * 2);
+		BytesSupport.putLong(state, storeSize);
+		BytesSupport.putLong(state, storeWritePos);
+		lasher.put(SYNC_KEY, state.array());
+		dirty = false;
+	}
+
+	/**
+	 * Tells whether the index was last written with a store in the given state.
+	 * It is not, if the index is new, the store was modified without the index or the process died before
+	 * the index was flushed, and then it has to be rebuilt.
+	 */
+	boolean isSynced(long storeSize, long storeWritePos) {
+		final byte[] state = lasher.get(SYNC_KEY);
+		if (state == null) return false;
+		final var buffer = ByteBuffer.wrap(state);
+		return BytesSupport.getLong(buffer, 0) == storeSize && BytesSupport.getLong(buffer, Long.BYTES) == storeWritePos;
+	}
+
+	private void markDirty() {
+		if (!dirty) {
+			lasher.put(SYNC_KEY, BytesSupport.toBytes(NOT_SYNCED));
+			dirty = true;
+		}
+	}
+
+	void clear() {
+		lasher.clear();
+		dirty = false;
+	}
+
+	void compact() {
+		lasher.compact();
+	}
+
+	void flush() {
+		lasher.flush();
+	}
+
+	@Override
+	public void close() {
+		lasher.close();
+	}
+
+	private int chunks(byte[] indexed) {
+		final byte[] head = lasher.get(headEntry(indexed));
+		return head == null ? 0 : toInt(head);
+	}
+
+	private byte[] chunk(byte[] indexed, int chunkNo) {
+		final byte[] chunk = lasher.get(chunkEntry(indexed, chunkNo));
+		return chunk == null ? new byte[0] : chunk;
+	}
+
+	private static byte[] headEntry(byte[] indexed) {
+		final var entry = new byte[indexed.length + 1];
+		entry[0] = HEAD_PREFIX;
+		System.arraycopy(indexed, 0, entry, 1, indexed.length);
+		return entry;
+	}
+
+	private static byte[] chunkEntry(byte[] indexed, int chunkNo) {
+		final var entry = ByteBuffer.allocate(indexed.length + 1 + Integer.BYTES);
+		entry.put(CHUNK_PREFIX).put(indexed).putInt(chunkNo);
+		return entry.array();
+	}
+
+	private static byte[] keyEntry(byte[] key) {
+		final var entry = new byte[key.length + 1];
+		entry[0] = KEY_PREFIX;
+		System.arraycopy(key, 0, entry, 1, key.length);
+		return entry;
+	}
+
+	private static byte[] toBytes(int value) {
+		return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+	}
+
+	private static int toInt(byte[] bytes) {
+		return ByteBuffer.wrap(bytes).getInt();
+	}
+
+	private static int keyLength(byte[] chunk, int pos) {
+		return BytesSupport.getInt(ByteBuffer.wrap(chunk), pos);
+	}
+
+	private static byte[] keyAt(byte[] chunk, int pos) {
+		final int from = pos + Integer.BYTES;
+		return Arrays.copyOfRange(chunk, from, from + keyLength(chunk, pos));
+	}
+
+	private static int count(byte[] chunk) {
+		int count = 0;
+		for (int pos = 0; pos < chunk.length; pos += Integer.BYTES + keyLength(chunk, pos)) {
+			count++;
+		}
+		return count;
+	}
+
+	private static int lastKeyPos(byte[] chunk) {
+		int last = 0;
+		for (int pos = 0; pos < chunk.length; pos += Integer.BYTES + keyLength(chunk, pos)) {
+			last = pos;
+		}
+		return last;
+	}
+
+	private static byte[] append(byte[] chunk, byte[] key) {
+		final int length = chunk == null ? 0 : chunk.length;
+		final var result = ByteBuffer.wrap(Arrays.copyOf(chunk == null ? new byte[0] : chunk, length + Integer.BYTES + key.length));
+		result.position(length);
+		BytesSupport.putInt(result, key.length);
+		result.put(key);
+		return result.array();
+	}
+
+	/**
+	 * @return the chunk without the key at the given position
+	 */
+	private static byte[] cut(byte[] chunk, int pos) {
+		final int to = pos + Integer.BYTES + keyLength(chunk, pos);
+		final var result = new byte[chunk.length - (to - pos)];
+		System.arraycopy(chunk, 0, result, 0, pos);
+		System.arraycopy(chunk, to, result, pos, chunk.length - to);
+		return result;
+	}
+
+	private static int indexOf(byte[] chunk, byte[] key) {
+		for (int pos = 0; pos < chunk.length; pos += Integer.BYTES + keyLength(chunk, pos)) {
+			final int length = keyLength(chunk, pos);
+			final int from = pos + Integer.BYTES;
+			if (length == key.length && Arrays.equals(chunk, from, from + length, key, 0, length)) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+}
@@ -2,7 +2,7 @@ package net.soundvibe.lasher.map.model;
 
 public enum FileType {
 
-    INDEX("index.lasher"), DATA("data.lasher");
+    INDEX("index.lasher"), DATA("data.lasher"), SLOTS("slots.lasher"), TREE("tree.lasher"), BLOOM("bloom.lasher"), FROZEN("frozen.lasher"), SKETCH("sketch.lasher");
 
     public final String filename;
 
@@ -0,0 +1,9 @@
+package net.soundvibe.lasher.map.model;
+
+/**
+ * Record metadata which can be read without touching key and value bytes.
+ * @param pos position of the record in the data file
+ * @param keyLength key length in bytes
+ * @param valueLength value length in bytes
+ */
+public record RecordHeader(long pos, int keyLength, int valueLength) {}
@@ -0,0 +1,6 @@
+package net.soundvibe.lasher.map.model;
+
+/**
+ * Value of a record together with its version, which changes on every write of the record.
+ */
+public record VersionedValue(byte[] value, long version) {}
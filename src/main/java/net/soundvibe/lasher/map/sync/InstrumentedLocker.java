@@ -0,0 +1,75 @@
+package net.soundvibe.lasher.map.sync;
+
+import io.micrometer.core.instrument.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locker which records lock acquire wait times, lock hold times and lock queue length.
+ * Only the outermost acquisition of a reentrant lock is measured for hold time.
+ */
+public final class InstrumentedLocker implements Locker {
+
+	private final ReentrantReadWriteLock rwLock;
+	private final Timer readWait;
+	private final Timer writeWait;
+	private final Timer readHold;
+	private final Timer writeHold;
+	private final ThreadLocal<long[]> readLockedAt = ThreadLocal.withInitial(() -> new long[1]);
+	private long writeLockedAt;
+
+	public InstrumentedLocker(ReentrantReadWriteLock rwLock, Tags tags) {
+		this.rwLock = rwLock;
+		this.readWait = timer("lock-wait", tags.and("mode", "read"));
+		this.writeWait = timer("lock-wait", tags.and("mode", "write"));
+		this.readHold = timer("lock-hold", tags.and("mode", "read"));
+		this.writeHold = timer("lock-hold", tags.and("mode", "write"));
+		Metrics.gauge("lock-queue-length", tags, rwLock, ReentrantReadWriteLock::getQueueLength);
+	}
+
+	private static Timer timer(String name, Tags tags) {
+		return Timer.builder(name)
+				.tags(tags)
+				.publishPercentileHistogram()
+				.register(Metrics.globalRegistry);
+	}
+
+	@Override
+	public void readLock() {
+		final long started = System.nanoTime();
+		rwLock.readLock().lock();
+		final long acquired = System.nanoTime();
+		readWait.record(acquired - started, TimeUnit.NANOSECONDS);
+		if (rwLock.getReadHoldCount() == 1) {
+			readLockedAt.get()[0] = acquired;
+		}
+	}
+
+	@Override
+	public void readUnlock() {
+		if (rwLock.getReadHoldCount() == 1) {
+			readHold.record(System.nanoTime() - readLockedAt.get()[0], TimeUnit.NANOSECONDS);
+		}
+		rwLock.readLock().unlock();
+	}
+
+	@Override
+	public void writeLock() {
+		final long started = System.nanoTime();
+		rwLock.writeLock().lock();
+		final long acquired = System.nanoTime();
+		writeWait.record(acquired - started, TimeUnit.NANOSECONDS);
+		if (rwLock.getWriteHoldCount() == 1) {
+			writeLockedAt = acquired;
+		}
+	}
+
+	@Override
+	public void writeUnlock() {
+		if (rwLock.getWriteHoldCount() == 1) {
+			writeHold.record(System.nanoTime() - writeLockedAt, TimeUnit.NANOSECONDS);
+		}
+		rwLock.writeLock().unlock();
+	}
+}
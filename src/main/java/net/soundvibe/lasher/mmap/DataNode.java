@@ -3,8 +3,10 @@ package net.soundvibe.lasher.mmap;
 import net.soundvibe.lasher.map.model.*;
 import net.soundvibe.lasher.util.BytesSupport;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.function.Function;
 
 import static net.soundvibe.lasher.util.BytesSupport.*;
 
@@ -15,9 +17,70 @@ public final class DataNode extends MemoryMapped {
     }
 
     private static final int DATA_HEADER_SIZE = 16;
+    private static final int VERSION_SIZE = Long.BYTES;
+    private static final int EXPIRES_AT_SIZE = Long.BYTES;
+    private static final int FILLER_KEY_LENGTH = -1;
+    /**
+     * The highest bit of the next record pointer is the record's access bit, used by eviction.
+     */
+    private static final long ACCESSED = Long.MIN_VALUE;
+
+    private int recordHeaderSize = DATA_HEADER_SIZE;
+    private boolean versioned;
+    private int expiresAtOffset = -1;
 
     public int headerSize() {
-        return DATA_HEADER_SIZE;
+        return recordHeaderSize;
+    }
+
+    /**
+     * Selects optional record header fields. A version, when enabled, follows the fixed part of the header
+     * and is followed by an expiration time, when enabled.
+     * Should be called before any record is read or written.
+     */
+    public void useLayout(boolean versions, boolean expiry) {
+        this.versioned = versions;
+        int headerSize = DATA_HEADER_SIZE;
+        if (versions) {
+            headerSize += VERSION_SIZE;
+        }
+        this.expiresAtOffset = expiry ? headerSize : -1;
+        if (expiry) {
+            headerSize += EXPIRES_AT_SIZE;
+        }
+        this.recordHeaderSize = headerSize;
+    }
+
+    public boolean versioned() {
+        return versioned;
+    }
+
+    public boolean expires() {
+        return expiresAtOffset != -1;
+    }
+
+    /**
+     * @return epoch millis when the record expires or 0 if it never expires
+     */
+    public long readExpiresAt(long pos) {
+        return getLong(pos + expiresAtOffset);
+    }
+
+    public void writeExpiresAt(long pos, long expiresAt) {
+        putLong(pos + expiresAtOffset, expiresAt);
+    }
+
+    public boolean isExpired(long pos, long now) {
+        final long expiresAt = readExpiresAt(pos);
+        return expiresAt != 0L && expiresAt <= now;
+    }
+
+    public long readVersion(long pos) {
+        return getLong(pos + DATA_HEADER_SIZE);
+    }
+
+    public void writeVersion(long pos, long version) {
+        putLong(pos + DATA_HEADER_SIZE, version);
     }
 
     public RecordNode readRecord(long pos) {
@@ -27,7 +90,7 @@ public final class DataNode extends MemoryMapped {
         var header = new byte[DATA_HEADER_SIZE];
         getBytes(pos, header);
 
-        var nextRecordPos = longFromBytes(header);
+        var nextRecordPos = longFromBytes(header) & ~ACCESSED;
         final int keyLen = intFromBytes(header,8);
         final int valLen = intFromBytes(header, 12);
 
@@ -37,7 +100,7 @@ public final class DataNode extends MemoryMapped {
 
         var dataLen = keyLen + Math.max(0, valLen);
         var data = new byte[dataLen];
-        getBytes(pos + DATA_HEADER_SIZE, data);
+        getBytes(pos + recordHeaderSize, data);
 
         var key = Arrays.copyOfRange(data, 0, keyLen);
         byte[] val = null;
@@ -47,6 +110,150 @@ public final class DataNode extends MemoryMapped {
         return new RecordNode(pos, nextRecordPos, key, val);
     }
 
+    public long readNextRecordPos(long pos) {
+        return getLong(pos) & ~ACCESSED;
+    }
+
+    public boolean isAccessed(long pos) {
+        return (getLong(pos) & ACCESSED) != 0L;
+    }
+
+    /**
+     * Sets the access bit of the record. Concurrent readers may mark the same record,
+     * they all write the same pointer, so it is safe under a shared lock.
+     */
+    public void markAccessed(long pos) {
+        final long next = getLong(pos);
+        if ((next & ACCESSED) == 0L) {
+            putLong(pos, next | ACCESSED);
+        }
+    }
+
+    public void clearAccessed(long pos) {
+        putLong(pos, getLong(pos) & ~ACCESSED);
+    }
+
+    /**
+     * @return total length of the record at the given position, including its header
+     */
+    public long recordLength(long pos) {
+        return (long) recordHeaderSize + getInt(pos + 8) + Math.max(0, getInt(pos + 12));
+    }
+
+    /**
+     * Reads only the key of the record at the given position.
+     */
+    public byte[] readKey(long pos) {
+        var key = new byte[getInt(pos + 8)];
+        getBytes(pos + recordHeaderSize, key);
+        return key;
+    }
+
+    /**
+     * Reads only the value of the record at the given position, skipping its key bytes.
+     */
+    public byte[] readValue(long pos) {
+        final int keyLen = getInt(pos + 8);
+        final int valLen = getInt(pos + 12);
+        if (valLen == -1) return null;
+        var val = new byte[valLen];
+        getBytes(pos + recordHeaderSize + keyLen, val);
+        return val;
+    }
+
+    /**
+     * Compares the key of the record at the given position with the remaining bytes of the key buffer,
+     * without copying the stored key.
+     */
+    public boolean keyEquals(long pos, ByteBuffer key) {
+        final int keyLen = getInt(pos + 8);
+        return keyLen == key.remaining() && view(pos + recordHeaderSize, keyLen).equals(key);
+    }
+
+    /**
+     * @return read-only view of the key of the record at the given position, valid while the record is not overwritten
+     */
+    public ByteBuffer keyView(long pos) {
+        return view(pos + recordHeaderSize, getInt(pos + 8));
+    }
+
+    /**
+     * @return read-only view of the value of the record at the given position, valid while the record is not overwritten,
+     * or null if the record has no value
+     */
+    public ByteBuffer valueView(long pos) {
+        final int valLen = getInt(pos + 12);
+        if (valLen == -1) return null;
+        return view(pos + recordHeaderSize + getInt(pos + 8), valLen);
+    }
+
+    /**
+     * Reads the value of the record at the given position from a read-only view of the mapped record.
+     * The view is only valid during the reader call.
+     */
+    public <T> T readValue(long pos, Function<ByteBuffer, T> reader) {
+        final int keyLen = getInt(pos + 8);
+        final int valLen = getInt(pos + 12);
+        if (valLen == -1) return null;
+        return reader.apply(view(pos + recordHeaderSize + keyLen, valLen));
+    }
+
+    /**
+     * Returns a read-only view of the given region, or a copy of it if the region spans two mapped buffers.
+     */
+    private ByteBuffer view(long pos, int length) {
+        var bufferIndex = resolveBufferIndex(pos);
+        var buffer = buffers[bufferIndex];
+        var posBuffer = convertPos(pos, bufferIndex);
+        if (posBuffer + length <= buffer.capacity()) {
+            return buffer.view(posBuffer, length);
+        }
+        var copy = new byte[length];
+        getBytes(pos, copy);
+        return ByteBuffer.wrap(copy).order(BYTE_ORDER);
+    }
+
+    /**
+     * @return position of the value of the record at the given position
+     * @throws IllegalStateException if the value is not a long
+     */
+    public long longValuePos(long pos) {
+        final int keyLen = getInt(pos + 8);
+        final int valLen = getInt(pos + 12);
+        if (valLen != Long.BYTES) {
+            throw new IllegalStateException("Value is not a long, its length is " + valLen);
+        }
+        return pos + recordHeaderSize + keyLen;
+    }
+
+    /**
+     * Longs at 8 byte aligned positions never span mapped buffers and could be updated atomically.
+     */
+    public boolean isAligned(long pos) {
+        return (pos & (Long.BYTES - 1)) == 0L;
+    }
+
+    /**
+     * Atomically adds delta to the long at the given 8 byte aligned position.
+     * @return the previous value
+     */
+    public long getAndAddLong(long pos, long delta) {
+        var bufferIndex = resolveBufferIndex(pos);
+        return buffers[bufferIndex].getAndAddLong(convertPos(pos, bufferIndex), delta);
+    }
+
+    /**
+     * Atomically sets the long at the given 8 byte aligned position if it equals the expected value.
+     */
+    public boolean compareAndSetLong(long pos, long expected, long newValue) {
+        var bufferIndex = resolveBufferIndex(pos);
+        return buffers[bufferIndex].compareAndSetLong(convertPos(pos, bufferIndex), expected, newValue);
+    }
+
+    public RecordHeader readHeader(long pos) {
+        return new RecordHeader(pos, getInt(pos + 8), getInt(pos + 12));
+    }
+
 /*    public void writeRecord(byte[] key, byte[] value, long pos, long nextRecPos) {
         int valueLength = value == null ? 0 : value.length;
         var buffer = ByteBuffer.allocate(DATA_HEADER_SIZE + key.length + valueLength);
@@ -64,17 +271,77 @@ public final class DataNode extends MemoryMapped {
     }*/
 
     public void writeRecord(byte[] key, byte[] value, long pos, long nextRecPos) {
-        writeNextRecordPos(pos, nextRecPos);
+        putLong(pos, nextRecPos);
         putInt(pos + 8, key.length);
         putInt(pos + 12, value == null ? -1 : value.length);
-        putBytes(pos + 16, key);
+        putBytes(pos + recordHeaderSize, key);
         if (value != null) {
-            putBytes(pos + 16 + key.length, value);
+            putBytes(pos + recordHeaderSize + key.length, value);
         }
     }
 
+    /**
+     * Writes the record taking remaining bytes of key and value buffers, without changing their positions.
+     */
+    public void writeRecord(ByteBuffer key, ByteBuffer value, long pos, long nextRecPos) {
+        putLong(pos, nextRecPos);
+        putInt(pos + 8, key.remaining());
+        putInt(pos + 12, value.remaining());
+        putBytes(pos + recordHeaderSize, key);
+        putBytes(pos + recordHeaderSize + key.remaining(), value);
+    }
+
+    /**
+     * Overwrites the value of the record at the given position in place, if the new value fits.
+     * @return false if the value does not fit and a new record should be written instead
+     */
+    public boolean updateValue(long pos, byte[] value) {
+        final long valuePos = pos + recordHeaderSize + getInt(pos + 8);
+        if (!resizeValue(pos, valuePos, value.length)) return false;
+        putBytes(valuePos, value);
+        return true;
+    }
+
+    /**
+     * Overwrites the value of the record at the given position in place with remaining bytes of the buffer, if they fit.
+     * @return false if the value does not fit and a new record should be written instead
+     */
+    public boolean updateValue(long pos, ByteBuffer value) {
+        final long valuePos = pos + recordHeaderSize + getInt(pos + 8);
+        if (!resizeValue(pos, valuePos, value.remaining())) return false;
+        putBytes(valuePos, value);
+        return true;
+    }
+
+    /**
+     * A value fits if it has the same length or leaves a tail large enough to be marked as a filler record,
+     * so the data file can still be parsed record by record.
+     */
+    private boolean resizeValue(long pos, long valuePos, int newLength) {
+        final int valLen = getInt(pos + 12);
+        if (valLen == newLength) return true;
+        final int tail = valLen - newLength;
+        if (tail < recordHeaderSize) return false;
+        writeFiller(valuePos + newLength, tail);
+        putInt(pos + 12, newLength);
+        return true;
+    }
+
+    /**
+     * Marks unused space of the given length as a record without a key, which is never linked to any chain.
+     * The length must be at least {@link #headerSize()}.
+     */
+    public void writeFiller(long pos, int length) {
+        putLong(pos, 0L);
+        putInt(pos + 8, FILLER_KEY_LENGTH);
+        putInt(pos + 12, length - recordHeaderSize);
+    }
+
+    /**
+     * Relinks the record, keeping its access bit.
+     */
     public void writeNextRecordPos(long pos, long nextRecordPos) {
-        putLong(pos, nextRecordPos);
+        putLong(pos, nextRecordPos | (getLong(pos) & ACCESSED));
     }
 
     public int getInt(long pos) {
@@ -111,13 +378,20 @@ public final class DataNode extends MemoryMapped {
     }
 
     public void getBytes(long pos, byte[] data) {
-        if (pos + data.length > size) return;
+        getBytes(pos, data, data.length);
+    }
+
+    /**
+     * Reads the given number of bytes into the start of the array, which may be longer.
+     */
+    public void getBytes(long pos, byte[] data, int len) {
+        if (pos + len > size) return;
 
         var bufferIndex = resolveBufferIndex(pos);
         var buffer = buffers[bufferIndex];
         var posBuffer = convertPos(pos, bufferIndex);
         var offset = 0;
-        var length = data.length;
+        var length = len;
 
         while (posBuffer + length > buffer.capacity()) {
             var remaining = buffer.capacity() - posBuffer;
@@ -161,6 +435,34 @@ public final class DataNode extends MemoryMapped {
         buffer.put(posBuffer, data, offset, length);
     }
 
+    /**
+     * Copies remaining bytes of the source buffer without changing its position.
+     */
+    public void putBytes(long pos, ByteBuffer src) {
+        final int len = src.remaining();
+        if ((pos + len) > size) {
+            throw new IllegalStateException(String.format("pos [%d] larger than total size [%d]", pos + len, size));
+        }
+
+        var bufferIndex = resolveBufferIndex(pos);
+        var buffer = buffers[bufferIndex];
+        var posBuffer = convertPos(pos, bufferIndex);
+        var offset = src.position();
+        var length = len;
+
+        while (posBuffer + length > buffer.capacity()) {
+            var remaining = buffer.capacity() - posBuffer;
+            buffer.put(posBuffer, src, offset, remaining);
+            bufferIndex++;
+            buffer = buffers[bufferIndex];
+            posBuffer = 0;
+            offset += remaining;
+            length -= remaining;
+        }
+
+        buffer.put(posBuffer, src, offset, length);
+    }
+
     @Override
     public long getLong(long pos) {
         var bufferIndex = resolveBufferIndex(pos);
@@ -4,13 +4,16 @@ import net.soundvibe.lasher.map.model.UnsafeAccess;
 import net.soundvibe.lasher.util.BytesSupport;
 import sun.misc.Unsafe;
 
+import java.lang.invoke.*;
 import java.lang.reflect.Field;
-import java.nio.MappedByteBuffer;
+import java.nio.*;
 
 import static java.util.Objects.requireNonNull;
 
 public final class MappedBuffer implements AutoCloseable {
 
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteBufferViewVarHandle(long[].class, BytesSupport.BYTE_ORDER);
+
     private final MappedByteBuffer buffer;
     private final Unsafe unsafe;
     private final Field addressField;
@@ -47,6 +50,20 @@ public final class MappedBuffer implements AutoCloseable {
 		buffer.putLong(pos, value);
     }
 
+    /**
+     * Atomically adds delta to the long at the given position, which must be 8 byte aligned.
+     */
+    public long getAndAddLong(int pos, long delta) {
+		return (long) LONG_HANDLE.getAndAdd(buffer, pos, delta);
+    }
+
+    /**
+     * Atomically sets the long at the given position, which must be 8 byte aligned.
+     */
+    public boolean compareAndSetLong(int pos, long expected, long newValue) {
+		return LONG_HANDLE.compareAndSet(buffer, pos, expected, newValue);
+    }
+
     public void get(int pos, byte[] dst, int offset, int length) {
 		buffer.get(pos, dst, offset, length);
     }
@@ -55,6 +72,19 @@ public final class MappedBuffer implements AutoCloseable {
 		buffer.put(pos, dst, offset, length);
     }
 
+    public void put(int pos, ByteBuffer src, int offset, int length) {
+		buffer.put(pos, src, offset, length);
+    }
+
+    /**
+     * Returns a read-only view of the given region which shares memory with this buffer.
+     */
+    public ByteBuffer view(int pos, int length) {
+		return buffer.slice(pos, length)
+				.asReadOnlyBuffer()
+				.order(BytesSupport.BYTE_ORDER);
+    }
+
     @Override
     public void close() {
         if (buffer == null || !buffer.isDirect()) return;
@@ -102,6 +102,14 @@ public abstract class MemoryMapped implements Closeable {
         remap(this.size * 2);
     }
 
+    public void flush() {
+        for (var buffer : buffers) {
+            if (buffer != null) {
+                buffer.flush();
+            }
+        }
+    }
+
     @Override
     public void close() {
         for (var buffer : buffers) {
@@ -0,0 +1,44 @@
+package net.soundvibe.lasher.mmap;
+
+import net.soundvibe.lasher.map.model.FileType;
+
+import java.nio.file.Path;
+
+/**
+ * Memory mapped file of fixed size pages. Page size divides the mapped buffer size, so a page never spans buffers.
+ */
+public final class PageNode extends MemoryMapped {
+
+    public static final int PAGE_SIZE = 4096;
+
+    public PageNode(Path baseDir, long len) {
+        super(baseDir, FileType.TREE, len);
+    }
+
+    public void readPage(long page, byte[] dst) {
+        final long pos = page * PAGE_SIZE;
+        var bufferIndex = resolveBufferIndex(pos);
+        buffers[bufferIndex].get(convertPos(pos, bufferIndex), dst, 0, PAGE_SIZE);
+    }
+
+    public void writePage(long page, byte[] src) {
+        final long pos = page * PAGE_SIZE;
+        while (pos + PAGE_SIZE > size) {
+            doubleGrow();
+        }
+        var bufferIndex = resolveBufferIndex(pos);
+        buffers[bufferIndex].put(convertPos(pos, bufferIndex), src, 0, PAGE_SIZE);
+    }
+
+    @Override
+    public long getLong(long pos) {
+        var bufferIndex = resolveBufferIndex(pos);
+        return buffers[bufferIndex].getLong(convertPos(pos, bufferIndex));
+    }
+
+    @Override
+    public void putLong(long pos, long val) {
+        var bufferIndex = resolveBufferIndex(pos);
+        buffers[bufferIndex].putLong(convertPos(pos, bufferIndex), val);
+    }
+}
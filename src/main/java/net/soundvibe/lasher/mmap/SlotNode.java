@@ -0,0 +1,84 @@
+package net.soundvibe.lasher.mmap;
+
+import net.soundvibe.lasher.map.model.FileType;
+
+import java.nio.file.Path;
+
+/**
+ * Memory mapped file of fixed width slots. Longs must be 8 byte aligned, while byte ranges may span mapped buffers.
+ */
+public final class SlotNode extends MemoryMapped {
+
+    public SlotNode(Path baseDir, long len) {
+        super(baseDir, FileType.SLOTS, len);
+    }
+
+    @Override
+    public long getLong(long pos) {
+        var bufferIndex = resolveBufferIndex(pos);
+        return buffers[bufferIndex].getLong(convertPos(pos, bufferIndex));
+    }
+
+    @Override
+    public void putLong(long pos, long val) {
+        if ((pos + Long.BYTES) > size) {
+            throw new IllegalStateException(String.format("pos [%d] larger than total size [%d]", pos + Long.BYTES, size));
+        }
+        var bufferIndex = resolveBufferIndex(pos);
+        buffers[bufferIndex].putLong(convertPos(pos, bufferIndex), val);
+    }
+
+    public int getInt(long pos) {
+        var bufferIndex = resolveBufferIndex(pos);
+        return buffers[bufferIndex].getInt(convertPos(pos, bufferIndex));
+    }
+
+    public void putInt(long pos, int val) {
+        var bufferIndex = resolveBufferIndex(pos);
+        buffers[bufferIndex].putInt(convertPos(pos, bufferIndex), val);
+    }
+
+    public void getBytes(long pos, byte[] data, int len) {
+        var bufferIndex = resolveBufferIndex(pos);
+        var buffer = buffers[bufferIndex];
+        var posBuffer = convertPos(pos, bufferIndex);
+        var offset = 0;
+        var length = len;
+
+        while (posBuffer + length > buffer.capacity()) {
+            var remaining = buffer.capacity() - posBuffer;
+            buffer.get(posBuffer, data, offset, remaining);
+            bufferIndex++;
+            buffer = buffers[bufferIndex];
+            posBuffer = 0;
+            offset += remaining;
+            length -= remaining;
+        }
+
+        buffer.get(posBuffer, data, offset, length);
+    }
+
+    public void putBytes(long pos, byte[] data, int len) {
+        if ((pos + len) > size) {
+            throw new IllegalStateException(String.format("pos [%d] larger than total size [%d]", pos + len, size));
+        }
+
+        var bufferIndex = resolveBufferIndex(pos);
+        var buffer = buffers[bufferIndex];
+        var posBuffer = convertPos(pos, bufferIndex);
+        var offset = 0;
+        var length = len;
+
+        while (posBuffer + length > buffer.capacity()) {
+            var remaining = buffer.capacity() - posBuffer;
+            buffer.put(posBuffer, data, offset, remaining);
+            bufferIndex++;
+            buffer = buffers[bufferIndex];
+            posBuffer = 0;
+            offset += remaining;
+            length -= remaining;
+        }
+
+        buffer.put(posBuffer, data, offset, length);
+    }
+}
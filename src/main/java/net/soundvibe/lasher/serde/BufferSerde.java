@@ -0,0 +1,27 @@
+package net.soundvibe.lasher.serde;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serde which can encode directly into and decode directly from a {@link ByteBuffer},
+ * allowing stores to skip intermediate byte arrays.
+ * Encoded bytes must be identical to the ones produced by {@link #toBytes(Object)}.
+ */
+public interface BufferSerde<T> extends Serde<T> {
+
+    /**
+     * @return number of bytes the value occupies when written
+     */
+    int sizeOf(T value);
+
+    /**
+     * Writes the value at the target's position, advancing the position by {@link #sizeOf(Object)} bytes.
+     */
+    void write(T value, ByteBuffer target);
+
+    /**
+     * Reads the value from all remaining bytes of the source.
+     * The source may be a read-only view of mapped memory and must not be retained after the call.
+     */
+    T read(ByteBuffer source);
+}
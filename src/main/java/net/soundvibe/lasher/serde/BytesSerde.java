@@ -1,6 +1,8 @@
 package net.soundvibe.lasher.serde;
 
-public final class BytesSerde implements Serde<byte[]> {
+import java.nio.ByteBuffer;
+
+public final class BytesSerde implements BufferSerde<byte[]> {
     @Override
     public byte[] toBytes(byte[] value) {
         return value;
@@ -10,4 +12,21 @@ public final class BytesSerde implements Serde<byte[]> {
     public byte[] fromBytes(byte[] bytes) {
         return bytes;
     }
+
+    @Override
+    public int sizeOf(byte[] value) {
+        return value.length;
+    }
+
+    @Override
+    public void write(byte[] value, ByteBuffer target) {
+        target.put(value);
+    }
+
+    @Override
+    public byte[] read(ByteBuffer source) {
+        var bytes = new byte[source.remaining()];
+        source.get(source.position(), bytes);
+        return bytes;
+    }
 }
@@ -1,8 +1,10 @@
 package net.soundvibe.lasher.serde;
 
+import java.nio.ByteBuffer;
+
 import static net.soundvibe.lasher.util.BytesSupport.*;
 
-public final class IntegerSerde implements Serde<Integer> {
+public final class IntegerSerde implements BufferSerde<Integer> {
     @Override
     public byte[] toBytes(Integer value) {
         if (value == null) return null;
@@ -14,4 +16,20 @@ public final class IntegerSerde implements Serde<Integer> {
         if (bytes == null || bytes.length == 0) return null;
         return bytesToInt(bytes);
     }
+
+    @Override
+    public int sizeOf(Integer value) {
+        return Integer.BYTES;
+    }
+
+    @Override
+    public void write(Integer value, ByteBuffer target) {
+        putInt(target, value);
+    }
+
+    @Override
+    public Integer read(ByteBuffer source) {
+        if (!source.hasRemaining()) return null;
+        return getInt(source, source.position());
+    }
 }
@@ -2,7 +2,9 @@ package net.soundvibe.lasher.serde;
 
 import net.soundvibe.lasher.util.BytesSupport;
 
-public final class LongSerde implements Serde<Long> {
+import java.nio.ByteBuffer;
+
+public final class LongSerde implements BufferSerde<Long> {
 
     @Override
     public byte[] toBytes(Long value) {
@@ -15,4 +17,20 @@ public final class LongSerde implements Serde<Long> {
         if (bytes == null || bytes.length == 0) return null;
         return BytesSupport.bytesToLong(bytes);
     }
+
+    @Override
+    public int sizeOf(Long value) {
+        return Long.BYTES;
+    }
+
+    @Override
+    public void write(Long value, ByteBuffer target) {
+        BytesSupport.putLong(target, value);
+    }
+
+    @Override
+    public Long read(ByteBuffer source) {
+        if (!source.hasRemaining()) return null;
+        return BytesSupport.getLong(source, source.position());
+    }
 }
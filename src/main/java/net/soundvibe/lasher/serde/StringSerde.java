@@ -1,8 +1,9 @@
 package net.soundvibe.lasher.serde;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
-public final class StringSerde implements Serde<String> {
+public final class StringSerde implements BufferSerde<String> {
     @Override
     public byte[] toBytes(String value) {
         if (value == null) return null;
@@ -14,4 +15,69 @@ public final class StringSerde implements Serde<String> {
         if (bytes == null) return null;
         return new String(bytes, StandardCharsets.UTF_8);
     }
+
+    @Override
+    public int sizeOf(String value) {
+        int size = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    size += 4;
+                    i++;
+                } else {
+                    size++;
+                }
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the value as UTF-8 without intermediate arrays. Unpaired surrogates are written as '?',
+     * the same way {@link String#getBytes(java.nio.charset.Charset)} replaces them.
+     */
+    @Override
+    public void write(String value, ByteBuffer target) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                target.put((byte) c);
+            } else if (c < 0x800) {
+                target.put((byte) (0xC0 | (c >> 6)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    target.put((byte) (0xF0 | (codePoint >> 18)));
+                    target.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    target.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    target.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    target.put((byte) '?');
+                }
+            } else {
+                target.put((byte) (0xE0 | (c >> 12)));
+                target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    @Override
+    public String read(ByteBuffer source) {
+        if (source.hasArray()) {
+            return new String(source.array(), source.arrayOffset() + source.position(), source.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+        var bytes = new byte[source.remaining()];
+        source.get(source.position(), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
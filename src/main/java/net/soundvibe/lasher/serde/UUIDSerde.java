@@ -1,9 +1,13 @@
 package net.soundvibe.lasher.serde;
 
-import java.nio.ByteBuffer;
+import java.lang.invoke.*;
+import java.nio.*;
 import java.util.UUID;
 
-public final class UUIDSerde implements Serde<UUID> {
+public final class UUIDSerde implements BufferSerde<UUID> {
+
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     @Override
     public byte[] toBytes(UUID value) {
         if (value == null) return null;
@@ -21,4 +25,25 @@ public final class UUIDSerde implements Serde<UUID> {
         var mostBits = byteBuffer.getLong();
         return new UUID(mostBits, leastBits);
     }
+
+    @Override
+    public int sizeOf(UUID value) {
+        return 16;
+    }
+
+    @Override
+    public void write(UUID value, ByteBuffer target) {
+        final int pos = target.position();
+        LONG_HANDLE.set(target, pos, value.getLeastSignificantBits());
+        LONG_HANDLE.set(target, pos + Long.BYTES, value.getMostSignificantBits());
+        target.position(pos + 16);
+    }
+
+    @Override
+    public UUID read(ByteBuffer source) {
+        if (!source.hasRemaining()) return null;
+        var leastBits = (long) LONG_HANDLE.get(source, source.position());
+        var mostBits = (long) LONG_HANDLE.get(source, source.position() + Long.BYTES);
+        return new UUID(mostBits, leastBits);
+    }
 }
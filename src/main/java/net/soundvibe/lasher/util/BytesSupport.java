@@ -11,6 +11,32 @@ public final class BytesSupport {
 
 	private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, BYTE_ORDER);
 	private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, BYTE_ORDER);
+	private static final VarHandle BUFFER_LONG_HANDLE = MethodHandles.byteBufferViewVarHandle(long[].class, BYTE_ORDER);
+	private static final VarHandle BUFFER_INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, BYTE_ORDER);
+
+	/**
+	 * Writes the long in {@link #BYTE_ORDER} at the target's position regardless of the target's own byte order.
+	 */
+	public static void putLong(ByteBuffer target, long value) {
+		BUFFER_LONG_HANDLE.set(target, target.position(), value);
+		target.position(target.position() + Long.BYTES);
+	}
+
+	/**
+	 * Reads the long in {@link #BYTE_ORDER} at the given index regardless of the source's own byte order.
+	 */
+	public static long getLong(ByteBuffer source, int index) {
+		return (long) BUFFER_LONG_HANDLE.get(source, index);
+	}
+
+	public static void putInt(ByteBuffer target, int value) {
+		BUFFER_INT_HANDLE.set(target, target.position(), value);
+		target.position(target.position() + Integer.BYTES);
+	}
+
+	public static int getInt(ByteBuffer source, int index) {
+		return (int) BUFFER_INT_HANDLE.get(source, index);
+	}
 
 	public static byte[] toBytes(long i) {
 		var result = new byte[8];
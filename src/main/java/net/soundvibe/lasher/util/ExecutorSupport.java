@@ -0,0 +1,31 @@
+package net.soundvibe.lasher.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ExecutorSupport {
+
+    private ExecutorSupport() {}
+
+    /**
+     * Creates an executor for blocking store operations. Uses virtual threads when the running JVM
+     * supports them and falls back to a cached pool of daemon threads otherwise.
+     */
+    public static ExecutorService newAsyncExecutor(String name) {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(daemonThreadFactory(name));
+        }
+    }
+
+    public static ThreadFactory daemonThreadFactory(String name) {
+        var counter = new AtomicInteger();
+        return runnable -> {
+            var thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
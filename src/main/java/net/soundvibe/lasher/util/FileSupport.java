@@ -1,6 +1,7 @@
 package net.soundvibe.lasher.util;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 
@@ -8,6 +9,30 @@ public final class FileSupport {
 
     private FileSupport() {}
 
+    /**
+     * Forces a fully written temporary file to the storage device and atomically moves it over the target file,
+     * so after a crash the target is either the previous file or the complete new one.
+     */
+    public static void replaceDurably(Path tmp, Path file) {
+        try {
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(file.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void forceDirectory(Path dir) {
+        try (var channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open or force directories, the move is still atomic then
+        }
+    }
+
     public static void deleteDirectory(Path dir) {
         if (Files.exists(dir)) {
             try {
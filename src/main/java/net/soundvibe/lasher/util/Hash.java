@@ -2,6 +2,8 @@ package net.soundvibe.lasher.util;
 
 import net.openhft.hashing.LongHashFunction;
 
+import java.nio.ByteBuffer;
+
 public final class Hash {
 
     private Hash() {
@@ -36,4 +38,19 @@ public final class Hash {
     public static long hashBytes(byte[] data) {
         return XX_HASH.hashBytes(data);
     }
+
+    /**
+     * Hashes the given region of the array, producing the same hash as {@link #hashBytes(byte[])} for the same bytes.
+     */
+    public static long hashBytes(byte[] data, int off, int len) {
+        return XX_HASH.hashBytes(data, off, len);
+    }
+
+    /**
+     * Hashes remaining bytes of the buffer without changing its position.
+     * Produces the same hash as {@link #hashBytes(byte[])} for the same bytes.
+     */
+    public static long hashBytes(ByteBuffer data) {
+        return XX_HASH.hashBytes(data);
+    }
 }
@@ -0,0 +1,48 @@
+package net.soundvibe.lasher.util;
+
+import java.util.*;
+
+/**
+ * Merges iterators, each already ordered by the comparator, into a single ordered iterator.
+ * Only the head of each source iterator is held in memory.
+ */
+public final class MergingIterator<T> implements Iterator<T> {
+
+    private final PriorityQueue<Head<T>> heads;
+
+    public MergingIterator(List<? extends Iterator<T>> sources, Comparator<? super T> comparator) {
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> comparator.compare(a.value, b.value));
+        for (var source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head<>(source.next(), source));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        final var head = heads.poll();
+        if (head == null) throw new NoSuchElementException();
+        final T value = head.value;
+        if (head.source.hasNext()) {
+            head.value = head.source.next();
+            heads.add(head);
+        }
+        return value;
+    }
+
+    private static final class Head<T> {
+        private T value;
+        private final Iterator<T> source;
+
+        private Head(T value, Iterator<T> source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package net.soundvibe.lasher.map;
 
-import net.soundvibe.lasher.db.LasherDB;
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.soundvibe.lasher.db.*;
+import net.soundvibe.lasher.serde.Serdes;
 import net.soundvibe.lasher.util.BytesSupport;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
 
-import java.nio.file.Path;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -92,6 +98,74 @@ class LasherDBTest {
         }
     }
 
+    @Test
+    void should_push_predicates_and_aggregations_down_to_shard_scans(@TempDir Path tmpPath) {
+        try (var sut = new LasherDB(tmpPath, LasherConfig.defaults().withShards(4))) {
+            for (long k = 0; k < 10_000; k++) {
+                sut.put(((k % 2 == 0 ? "even:" : "odd:") + k).getBytes(), BytesSupport.longToBytes(k));
+            }
+            sut.remove("even:0".getBytes());
+            sut.put("odd:1".getBytes(), BytesSupport.longToBytes(20_000L));
+
+            assertEquals(4999L, sut.count(BytesPredicate.keyPrefix("even:".getBytes())));
+            assertEquals(9999L, sut.count(BytesPredicate.all()));
+            assertEquals(100L, sut.count(BytesPredicate.longValueBetween(0, 100L, 200L)));
+            assertEquals(50L, sut.count(BytesPredicate.keyPrefix("odd:".getBytes())
+                    .and(BytesPredicate.longValueBetween(0, 100L, 200L))));
+            assertEquals(9999L - 4999L, sut.count(BytesPredicate.keyPrefix("even:".getBytes()).negate()));
+
+            var matches = sut.scan(BytesPredicate.valueMatches(0, BytesSupport.longToBytes(20_000L)));
+            assertEquals(1, matches.size());
+            assertArrayEquals("odd:1".getBytes(), matches.get(0).getKey());
+
+            long sum = sut.aggregate(BytesPredicate.keyPrefix("odd:".getBytes()), () -> new long[1],
+                    (partial, key, value) -> partial[0] += BytesSupport.getLong(value, value.position()),
+                    (left, right) -> {
+                        left[0] += right[0];
+                        return left;
+                    })[0];
+            assertEquals(25_000_000L - 1L + 20_000L, sum);
+        }
+    }
+
+    @Test
+    void should_iterate_in_data_file_order(@TempDir Path tmpPath) {
+        try (var sut = new LasherDB(tmpPath, LasherConfig.defaults().withShards(2))) {
+            var expected = new HashMap<Long, String>();
+            for (long k = 0; k < 20_000; k++) {
+                var value = "value" + k + "-".repeat(100);
+                expected.put(k, value);
+                sut.put(BytesSupport.longToBytes(k), value.getBytes());
+            }
+            for (long k = 0; k < 20_000; k += 3) {
+                expected.remove(k);
+                sut.remove(BytesSupport.longToBytes(k));
+            }
+            for (long k = 1; k < 20_000; k += 3) {
+                var value = k % 2 == 0 ? "short" + k : "longer" + k + "-".repeat(200);
+                expected.put(k, value);
+                sut.put(BytesSupport.longToBytes(k), value.getBytes());
+            }
+
+            var actual = new HashMap<Long, String>();
+            var it = sut.sequentialIterator();
+            while (it.hasNext()) {
+                var entry = it.next();
+                assertNull(actual.put(BytesSupport.bytesToLong(entry.getKey()), new String(entry.getValue())));
+            }
+            assertEquals(expected, actual);
+
+            var shardIterator = sut.sequentialShardIterator(0);
+            assertTrue(shardIterator.hasNext());
+            sut.compact();
+            assertThrows(ConcurrentModificationException.class, () -> {
+                while (shardIterator.hasNext()) {
+                    shardIterator.next();
+                }
+            });
+        }
+    }
+
     @Test
     void should_allow_concurrent_inserts(@TempDir Path tmpPath) throws Exception {
         try (var sut = new LasherDB(tmpPath, 4)) {
@@ -140,4 +214,474 @@ class LasherDBTest {
             }
         }
     }
+
+    @Test
+    void should_do_async_operations(@TempDir Path tmpPath) throws Exception {
+        var executor = Executors.newFixedThreadPool(2);
+        try (var sut = new LasherDB(tmpPath, LasherConfig.defaults().withShards(4).withAsyncExecutor(executor))) {
+            assertNull(sut.putAsync("foo".getBytes(), "bar".getBytes()).get(5, TimeUnit.SECONDS));
+            assertArrayEquals("bar".getBytes(), sut.getAsync("foo".getBytes()).get(5, TimeUnit.SECONDS));
+            assertArrayEquals("bar".getBytes(), sut.removeAsync("foo".getBytes()).get(5, TimeUnit.SECONDS));
+            assertNull(sut.getAsync("foo".getBytes()).get(5, TimeUnit.SECONDS));
+
+            var entries = new IdentityHashMap<byte[], byte[]>();
+            var keys = new ArrayList<byte[]>();
+            for (long i = 0; i < 1000; i++) {
+                var key = BytesSupport.longToBytes(i);
+                keys.add(key);
+                entries.put(key, BytesSupport.longToBytes(i + 1));
+            }
+            sut.putAllAsync(entries).get(5, TimeUnit.SECONDS);
+            assertEquals(1000L, sut.size());
+
+            keys.add("missing".getBytes());
+            var values = sut.getAllAsync(keys).get(5, TimeUnit.SECONDS);
+            assertEquals(keys.size(), values.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i + 1L, BytesSupport.bytesToLong(values.get(i)));
+            }
+            assertNull(values.get(1000));
+            assertArrayEquals(values.toArray(), sut.getAll(keys).toArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void should_coalesce_single_key_async_operations_in_order(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new LasherDB(tmpPath, LasherConfig.defaults().withShards(2))) {
+            var key = "counter".getBytes();
+            var puts = new ArrayList<CompletableFuture<byte[]>>();
+            var gets = new ArrayList<CompletableFuture<byte[]>>();
+            for (long i = 0; i < 1000; i++) {
+                puts.add(sut.putAsync(key, BytesSupport.longToBytes(i)));
+                gets.add(sut.getAsync(key));
+            }
+            CompletableFuture.allOf(gets.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+            assertNull(puts.get(0).get());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, BytesSupport.bytesToLong(gets.get(i).get()));
+                if (i > 0) {
+                    assertEquals(i - 1, BytesSupport.bytesToLong(puts.get(i).get()));
+                }
+            }
+            assertEquals(999L, BytesSupport.bytesToLong(sut.removeAsync(key).get(5, TimeUnit.SECONDS)));
+            assertEquals(0L, sut.size());
+        }
+    }
+
+    @Test
+    void should_read_and_write_using_buffers(@TempDir Path tmpPath) {
+        try (var sut = new LasherDB(tmpPath)) {
+            var key = ByteBuffer.wrap("prefix-foo".getBytes()).position(7);
+            assertNull(sut.put(key, ByteBuffer.wrap("value".getBytes()), LasherDBTest::string));
+            assertEquals(7, key.position());
+
+            assertArrayEquals("value".getBytes(), sut.get("foo".getBytes()));
+            assertEquals("value", sut.get(ByteBuffer.wrap("foo".getBytes()), LasherDBTest::string));
+            assertNull(sut.get(ByteBuffer.wrap("bar".getBytes()), LasherDBTest::string));
+
+            assertEquals("value", sut.put(ByteBuffer.wrap("foo".getBytes()),
+                    ByteBuffer.wrap("updated".getBytes()), LasherDBTest::string));
+            assertArrayEquals("updated".getBytes(), sut.get("foo".getBytes()));
+            assertEquals(1L, sut.size());
+
+            sut.put("bar".getBytes(), "barValue".getBytes());
+            assertEquals("barValue", sut.get(ByteBuffer.wrap("bar".getBytes()), LasherDBTest::string));
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        var bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+
+    @Test
+    void should_update_counters(@TempDir Path tmpPath) {
+        try (var sut = new LasherDB(tmpPath)) {
+            var key = "counter".getBytes();
+            assertEquals(5L, sut.increment(key, 5L));
+            assertEquals(5L, sut.getAndAdd(key, -2L));
+            assertEquals(3L, Serdes.LONG.fromBytes(sut.get(key)));
+
+            assertFalse(sut.compareAndSet(key, 4L, 10L));
+            assertTrue(sut.compareAndSet(key, 3L, 10L));
+            assertEquals(10L, sut.increment(key, 0L));
+
+            assertFalse(sut.compareAndSet("absent".getBytes(), 1L, 10L));
+            assertTrue(sut.compareAndSet("absent".getBytes(), 0L, 10L));
+            assertEquals(10L, Serdes.LONG.fromBytes(sut.get("absent".getBytes())));
+
+            sut.put("long".getBytes(), Serdes.LONG.toBytes(40L));
+            assertEquals(42L, sut.increment("long".getBytes(), 2L));
+
+            sut.put("string".getBytes(), "foo".getBytes());
+            assertThrows(IllegalStateException.class, () -> sut.increment("string".getBytes(), 1L));
+        }
+    }
+
+    @Test
+    void should_increment_counters_concurrently(@TempDir Path tmpPath) throws Exception {
+        final int threads = 8;
+        final int increments = 10_000;
+        try (var sut = new LasherDB(tmpPath, 2)) {
+            // even counters are created by put and may start misaligned, odd ones are created by increments
+            for (int i = 0; i < 10; i += 2) {
+                sut.put(("padding" + i).getBytes(), "x".repeat(i + 1).getBytes());
+                sut.put(("counter" + i).getBytes(), Serdes.LONG.toBytes(0L));
+            }
+            var executor = Executors.newFixedThreadPool(threads);
+            try {
+                var futures = new ArrayList<Future<?>>();
+                for (int t = 0; t < threads; t++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < increments; i++) {
+                            sut.increment(("counter" + (i % 10)).getBytes(), 1L);
+                        }
+                    }));
+                }
+                for (var future : futures) {
+                    future.get(1, TimeUnit.MINUTES);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals((long) threads * increments / 10, sut.increment(("counter" + i).getBytes(), 0L));
+            }
+        }
+    }
+
+    @Test
+    void should_do_version_based_conditional_writes(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(2).withVersioning(true);
+        var key = "foo".getBytes();
+        long version;
+        try (var sut = new LasherDB(tmpPath, config)) {
+            assertNull(sut.getWithVersion(key));
+            sut.put(key, "value".getBytes());
+            var versioned = sut.getWithVersion(key);
+            assertArrayEquals("value".getBytes(), versioned.value());
+
+            assertFalse(sut.replaceIfVersion(key, versioned.version() + 1, "other".getBytes()));
+            assertTrue(sut.replaceIfVersion(key, versioned.version(), "updated".getBytes()));
+            assertFalse(sut.replaceIfVersion(key, versioned.version(), "stale".getBytes()));
+
+            var updated = sut.getWithVersion(key);
+            assertArrayEquals("updated".getBytes(), updated.value());
+            assertTrue(updated.version() > versioned.version());
+
+            sut.put(key, "longer value than before".getBytes());
+            assertTrue(sut.getWithVersion(key).version() > updated.version());
+            assertFalse(sut.removeIfVersion(key, updated.version()));
+            version = sut.getWithVersion(key).version();
+        }
+
+        try (var sut = new LasherDB(tmpPath, config.withVersioning(false))) {
+            assertEquals(version, sut.getWithVersion(key).version());
+            assertTrue(sut.removeIfVersion(key, version));
+            assertNull(sut.get(key));
+            sut.put(key, "again".getBytes());
+            assertTrue(sut.getWithVersion(key).version() > version);
+        }
+    }
+
+    @Test
+    void should_not_enable_versions_for_existing_store(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(2);
+        try (var sut = new LasherDB(tmpPath, config)) {
+            sut.put("foo".getBytes(), "value".getBytes());
+            assertThrows(IllegalStateException.class, () -> sut.getWithVersion("foo".getBytes()));
+        }
+        assertThrows(IllegalStateException.class, () -> new LasherDB(tmpPath, config.withVersioning(true)));
+        try (var sut = new LasherDB(tmpPath, config)) {
+            assertArrayEquals("value".getBytes(), sut.get("foo".getBytes()));
+        }
+    }
+
+    @Test
+    void should_expire_entries(@TempDir Path tmpPath) throws Exception {
+        var registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        var config = LasherConfig.defaults().withShards(2)
+                .withExpiry(true)
+                .withSweepInterval(Duration.ofMillis(20));
+        try (var sut = new LasherDB(tmpPath, config)) {
+            sut.put("expiring".getBytes(), "value".getBytes(), Duration.ofMillis(10));
+            sut.put("persistent".getBytes(), "value".getBytes());
+            sut.put("long-lived".getBytes(), "value".getBytes(), Duration.ofHours(1));
+            sut.put("renewed".getBytes(), "value".getBytes(), Duration.ofMillis(200));
+            sut.put("renewed".getBytes(), "renewed".getBytes());
+
+            Thread.sleep(250L);
+            assertNull(sut.get("expiring".getBytes()));
+            assertNull(sut.remove("expiring".getBytes()));
+            assertArrayEquals("value".getBytes(), sut.get("persistent".getBytes()));
+            assertArrayEquals("value".getBytes(), sut.get("long-lived".getBytes()));
+            assertArrayEquals("renewed".getBytes(), sut.get("renewed".getBytes()));
+
+            var keys = new ArrayList<String>();
+            sut.keyIterator().forEachRemaining(key -> keys.add(new String(key)));
+            keys.sort(Comparator.naturalOrder());
+            assertEquals(List.of("long-lived", "persistent", "renewed"), keys);
+
+            final long deadline = System.currentTimeMillis() + 10_000L;
+            while (sut.size() != 3L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(3L, sut.size());
+            assertEquals(1.0, registry.find("expired-swept").counters().stream()
+                    .mapToDouble(Counter::count)
+                    .sum());
+
+            assertNull(sut.put("expiring".getBytes(), "again".getBytes()));
+            assertArrayEquals("again".getBytes(), sut.get("expiring".getBytes()));
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+
+        try (var sut = new LasherDB(tmpPath, config.withExpiry(false))) {
+            assertTrue(sut.expires());
+            assertEquals(4L, sut.size());
+        }
+        try (var sut = new LasherDB(tmpPath.resolve("plain"), LasherConfig.defaults().withShards(2))) {
+            assertThrows(IllegalStateException.class,
+                    () -> sut.put("foo".getBytes(), "bar".getBytes(), Duration.ofMinutes(1)));
+        }
+    }
+
+    @Test
+    void should_evict_entries_when_bounded(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(4).withMaxEntries(1000L);
+        try (var sut = new LasherDB(tmpPath, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                sut.put(("key" + i).getBytes(), ("value" + i).getBytes());
+                assertArrayEquals("value0".getBytes(), sut.get("key0".getBytes()));
+            }
+            assertTrue(sut.size() <= 1000L);
+            assertTrue(sut.size() > 900L);
+            assertArrayEquals("value9999".getBytes(), sut.get("key9999".getBytes()));
+
+            sut.compact();
+            assertArrayEquals("value0".getBytes(), sut.get("key0".getBytes()));
+            var keys = new ArrayList<byte[]>();
+            sut.keyIterator().forEachRemaining(keys::add);
+            assertEquals(sut.size(), keys.size());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> LasherConfig.defaults().withMaxEntries(-1L));
+    }
+
+    @Test
+    void should_scan_ranges_and_prefixes_in_key_order(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(4).withOrderedIndex();
+        try (var sut = new LasherDB(tmpPath, config)) {
+            for (int i = 0; i < 5000; i++) {
+                sut.put(String.format("key%05d", i).getBytes(), String.valueOf(i).getBytes());
+            }
+            sut.put("other".getBytes(), "value".getBytes());
+            sut.remove("key00100".getBytes());
+
+            var range = toList(sut.range("key00090".getBytes(), "key00110".getBytes()));
+            assertEquals(19, range.size());
+            assertArrayEquals("key00090".getBytes(), range.get(0).getKey());
+            assertArrayEquals("90".getBytes(), range.get(0).getValue());
+            assertArrayEquals("key00109".getBytes(), range.get(18).getKey());
+
+            var prefix = toList(sut.prefix("key012".getBytes(), true));
+            assertEquals(100, prefix.size());
+            assertArrayEquals("key01299".getBytes(), prefix.get(0).getKey());
+            assertArrayEquals("key01200".getBytes(), prefix.get(99).getKey());
+
+            var all = toList(sut.range(null, null));
+            assertEquals(sut.size(), all.size());
+            assertArrayEquals("other".getBytes(), all.get(all.size() - 1).getKey());
+        }
+
+        try (var sut = new LasherDB(tmpPath, config)) {
+            assertEquals(10, toList(sut.prefix("key0450".getBytes())).size());
+        }
+
+        try (var sut = new LasherDB(tmpPath.resolve("unordered"), LasherConfig.defaults())) {
+            assertThrows(IllegalStateException.class, () -> sut.range(null, null));
+        }
+    }
+
+    @Test
+    void should_scan_by_extracted_sort_keys(@TempDir Path tmpPath) throws IOException {
+        //keys are "user:<id>:<group>" and are ordered by group
+        var config = LasherConfig.defaults().withShards(2)
+                .withOrderedIndex(key -> {
+                    var parts = new String(key).split(":");
+                    return parts.length == 3 ? parts[2].getBytes() : null;
+                });
+        try (var sut = new LasherDB(tmpPath, config)) {
+            for (int i = 0; i < 1000; i++) {
+                sut.put(("user:" + i + ":group" + (i % 10)).getBytes(), String.valueOf(i).getBytes());
+            }
+            sut.put("unindexed".getBytes(), "value".getBytes());
+
+            var group = toList(sut.prefix("group3".getBytes()));
+            assertEquals(100, group.size());
+            group.forEach(entry -> assertTrue(new String(entry.getKey()).endsWith(":group3")));
+
+            var groups = toList(sut.range("group2".getBytes(), "group4".getBytes()));
+            assertEquals(200, groups.size());
+            assertTrue(new String(groups.get(0).getKey()).endsWith(":group2"));
+            assertTrue(new String(groups.get(199).getKey()).endsWith(":group3"));
+        }
+
+        //the index file is rebuilt when it is out of sync with the data
+        try (var files = Files.walk(tmpPath)) {
+            for (var file : files.filter(path -> path.endsWith("tree.lasher")).toList()) {
+                Files.delete(file);
+            }
+        }
+        try (var sut = new LasherDB(tmpPath, config)) {
+            assertEquals(100, toList(sut.prefix("group7".getBytes())).size());
+        }
+    }
+
+    @Test
+    void should_skip_secondary_index_entries_of_evicted_records(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(2).withMaxEntries(100L)
+                .withSecondaryIndex("parity", value -> new byte[] {(byte) (value[value.length - 1] % 2)});
+        try (var sut = new LasherDB(tmpPath, config)) {
+            for (int i = 0; i < 1000; i++) {
+                sut.put(("key" + i).getBytes(), ("value" + i).getBytes());
+            }
+            var even = sut.getBy("parity", new byte[] {0});
+            var odd = sut.getBy("parity", new byte[] {1});
+            assertEquals(sut.size(), even.size() + odd.size());
+            even.forEach(entry -> assertArrayEquals(sut.get(entry.getKey()), entry.getValue()));
+
+            assertThrows(IllegalArgumentException.class, () -> sut.getBy("unknown", new byte[] {0}));
+        }
+    }
+
+    @Test
+    void should_index_many_keys_under_one_value(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(1)
+                .withSecondaryIndex("status", value -> new byte[] {value[0]});
+        var active = new HashSet<String>();
+        var inactive = new HashSet<String>();
+        try (var sut = new LasherDB(tmpPath, config)) {
+            for (int i = 0; i < 5000; i++) {
+                sut.put(("key" + i).getBytes(), ("a" + i).getBytes());
+                active.add("key" + i);
+            }
+            for (int i = 0; i < 5000; i += 3) {
+                sut.remove(("key" + i).getBytes());
+                active.remove("key" + i);
+            }
+            for (int i = 1; i < 5000; i += 5) {
+                sut.put(("key" + i).getBytes(), ("i" + i).getBytes());
+                active.remove("key" + i);
+                inactive.add("key" + i);
+            }
+            assertEquals(active, keysOf(sut.getBy("status", "a".getBytes())));
+            assertEquals(inactive, keysOf(sut.getBy("status", "i".getBytes())));
+        }
+        try (var sut = new LasherDB(tmpPath, config)) {
+            assertEquals(active, keysOf(sut.getBy("status", "a".getBytes())));
+            assertEquals(inactive, keysOf(sut.getBy("status", "i".getBytes())));
+        }
+    }
+
+    private static Set<String> keysOf(List<Map.Entry<byte[], byte[]>> entries) {
+        var keys = new HashSet<String>();
+        entries.forEach(entry -> assertTrue(keys.add(new String(entry.getKey()))));
+        return keys;
+    }
+
+    private static List<Map.Entry<byte[], byte[]>> toList(Iterator<Map.Entry<byte[], byte[]>> iterator) {
+        var result = new ArrayList<Map.Entry<byte[], byte[]>>();
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+
+    @Test
+    void should_write_batch_atomically(@TempDir Path tmpPath) {
+        try (var sut = new LasherDB(tmpPath, 4)) {
+            sut.put("removed".getBytes(), "value".getBytes());
+            var batch = new WriteBatch();
+            for (long i = 0; i < 100; i++) {
+                batch.put(BytesSupport.longToBytes(i), BytesSupport.longToBytes(i));
+            }
+            batch.remove("removed".getBytes())
+                    .put("foo".getBytes(), "first".getBytes())
+                    .put("foo".getBytes(), "second".getBytes());
+            assertEquals(103, batch.size());
+
+            sut.write(batch, true);
+
+            assertEquals(101L, sut.size());
+            assertNull(sut.get("removed".getBytes()));
+            assertArrayEquals("second".getBytes(), sut.get("foo".getBytes()));
+            for (long i = 0; i < 100; i++) {
+                assertEquals(i, BytesSupport.bytesToLong(sut.get(BytesSupport.longToBytes(i))));
+            }
+        }
+    }
+
+    @Test
+    void should_reject_write_batch_without_applying_any_of_it(@TempDir Path tmpPath) {
+        var config = LasherConfig.defaults().withShards(4).withOrderedIndex()
+                .withSecondaryIndex("first", value -> new byte[] {value[0]});
+        try (var sut = new LasherDB(tmpPath, config)) {
+            sut.put("removed".getBytes(), "value".getBytes());
+            var batch = new WriteBatch();
+            for (long i = 0; i < 50; i++) {
+                batch.put(BytesSupport.longToBytes(i), BytesSupport.longToBytes(i));
+            }
+            batch.put(new byte[2048], "too long".getBytes()).remove("removed".getBytes());
+            for (long i = 50; i < 100; i++) {
+                batch.put(BytesSupport.longToBytes(i), BytesSupport.longToBytes(i));
+            }
+
+            assertThrows(IllegalArgumentException.class, () -> sut.write(batch));
+            assertEquals(1L, sut.size());
+            assertArrayEquals("value".getBytes(), sut.get("removed".getBytes()));
+            for (long i = 0; i < 100; i++) {
+                assertNull(sut.get(BytesSupport.longToBytes(i)));
+            }
+
+            var failing = new WriteBatch()
+                    .put("a".getBytes(), "value".getBytes())
+                    .put("b".getBytes(), new byte[0]);
+            assertThrows(ArrayIndexOutOfBoundsException.class, () -> sut.write(failing));
+            assertNull(sut.get("a".getBytes()));
+            assertEquals(1, sut.getBy("first", "v".getBytes()).size());
+        }
+    }
+
+    @Test
+    void should_never_observe_partial_write_batch(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new LasherDB(tmpPath, 4)) {
+            var keys = new ArrayList<byte[]>();
+            for (long i = 0; i < 16; i++) {
+                keys.add(BytesSupport.longToBytes(i));
+            }
+            var writer = new Thread(() -> {
+                for (long round = 0; round < 2000; round++) {
+                    var batch = new WriteBatch();
+                    for (var key : keys) {
+                        batch.put(key, BytesSupport.longToBytes(round));
+                    }
+                    sut.write(batch);
+                }
+            });
+            writer.start();
+            while (writer.isAlive()) {
+                var values = sut.getAll(keys);
+                var distinct = values.stream()
+                        .map(v -> v == null ? null : BytesSupport.bytesToLong(v))
+                        .distinct()
+                        .count();
+                assertEquals(1L, distinct);
+            }
+            writer.join();
+        }
+    }
 }
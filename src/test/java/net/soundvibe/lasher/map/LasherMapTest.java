@@ -1,13 +1,15 @@
 package net.soundvibe.lasher.map;
 
-import net.soundvibe.lasher.db.LasherDB;
+import io.micrometer.core.instrument.Tags;
+import net.soundvibe.lasher.db.*;
 import net.soundvibe.lasher.serde.Serdes;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -85,4 +87,162 @@ class LasherMapTest {
             }
         }
     }
+
+    @Test
+    void should_do_async_operations(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath), Serdes.STRING, Serdes.LONG)) {
+            assertNull(sut.putAsync("foo", 1L).get(5, TimeUnit.SECONDS));
+            assertEquals(1L, sut.getAsync("foo").get(5, TimeUnit.SECONDS));
+            assertEquals(1L, sut.removeAsync("foo").get(5, TimeUnit.SECONDS));
+
+            sut.putAllAsync(Map.of("a", 1L, "b", 2L, "c", 3L)).get(5, TimeUnit.SECONDS);
+            assertEquals(Map.of("a", 1L, "c", 3L), sut.getAllAsync(List.of("a", "c", "missing")).get(5, TimeUnit.SECONDS));
+            assertEquals(3, sut.size());
+        }
+    }
+
+    @Test
+    void should_compute_and_merge(@TempDir Path tmpPath) {
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath), Serdes.STRING, Serdes.LONG)) {
+            assertEquals(1L, sut.merge("counter", 1L, Long::sum));
+            assertEquals(3L, sut.merge("counter", 2L, Long::sum));
+            assertNull(sut.merge("counter", 0L, (a, b) -> null));
+            assertFalse(sut.containsKey("counter"));
+
+            assertEquals(5L, sut.computeIfAbsent("foo", k -> 5L));
+            assertEquals(5L, sut.computeIfAbsent("foo", k -> 6L));
+            assertNull(sut.computeIfAbsent("bar", k -> null));
+            assertFalse(sut.containsKey("bar"));
+
+            assertNull(sut.computeIfPresent("bar", (k, v) -> v + 1));
+            assertEquals(6L, sut.computeIfPresent("foo", (k, v) -> v + 1));
+
+            assertEquals(7L, sut.compute("foo", (k, v) -> v == null ? 0L : v + 1));
+            assertEquals(0L, sut.compute("baz", (k, v) -> v == null ? 0L : v + 1));
+            assertNull(sut.compute("baz", (k, v) -> null));
+            assertEquals(1, sut.size());
+        }
+    }
+
+    @Test
+    void should_merge_atomically(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath, 2), Serdes.STRING, Serdes.LONG)) {
+            int threads = 4;
+            int increments = 10_000;
+            var workers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                var worker = new Thread(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        sut.merge("counter" + (i % 3), 1L, Long::sum);
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            for (var worker : workers) {
+                worker.join();
+            }
+            long total = sut.get("counter0") + sut.get("counter1") + sut.get("counter2");
+            assertEquals((long) threads * increments, total);
+        }
+    }
+
+    @Test
+    void should_invalidate_near_cache_on_writes(@TempDir Path tmpPath) {
+        var nearCache = new NearCache<ByteBuffer, Long>(1000, Tags.of("cache", "map-test"));
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath), Serdes.STRING, Serdes.LONG, nearCache)) {
+            assertNull(sut.get("foo"));
+            sut.put("foo", 1L);
+            assertEquals(1L, sut.get("foo"));
+            assertEquals(1L, nearCache.get(ByteBuffer.wrap("foo".getBytes())));
+
+            sut.put("foo", 2L);
+            assertEquals(2L, sut.get("foo"));
+            sut.merge("foo", 1L, Long::sum);
+            assertEquals(3L, sut.get("foo"));
+            assertTrue(sut.replace("foo", 3L, 4L));
+            assertEquals(4L, sut.get("foo"));
+            sut.remove("foo");
+            assertNull(sut.get("foo"));
+            assertNull(nearCache.get(ByteBuffer.wrap("foo".getBytes())));
+
+            sut.put("bar", 1L);
+            assertEquals(1L, sut.get("bar"));
+            sut.clear();
+            assertNull(sut.get("bar"));
+        }
+    }
+
+    @Test
+    void should_cache_values_of_byte_array_keys(@TempDir Path tmpPath) {
+        var nearCache = new NearCache<ByteBuffer, String>(1000, Tags.of("cache", "bytes-test"));
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath), Serdes.BYTES, Serdes.STRING, nearCache)) {
+            sut.put("foo".getBytes(), "bar");
+            assertEquals("bar", sut.get("foo".getBytes()));
+            assertEquals("bar", sut.get("foo".getBytes()));
+            assertEquals(1L, nearCache.size());
+            assertEquals("bar", nearCache.get(ByteBuffer.wrap("foo".getBytes())));
+
+            sut.put("foo".getBytes(), "baz");
+            assertEquals(0L, nearCache.size());
+            assertEquals("baz", sut.get("foo".getBytes()));
+        }
+    }
+
+    @Test
+    void should_iterate_keys_and_values_only(@TempDir Path tmpPath) {
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath), Serdes.LONG, Serdes.STRING)) {
+            for (long k = 0; k < 100; k++) {
+                sut.put(k, "value" + k);
+            }
+            var keys = new HashSet<>(sut.keySet());
+            assertEquals(100, keys.size());
+            assertTrue(sut.keySet().contains(5L));
+
+            var values = new HashSet<>(sut.values());
+            assertEquals(100, values.size());
+            assertTrue(values.contains("value99"));
+
+            assertTrue(sut.keySet().remove(5L));
+            assertFalse(sut.containsKey(5L));
+            assertEquals(99, sut.keySet().size());
+        }
+    }
+
+    @Test
+    void should_find_values_by_secondary_index(@TempDir Path tmpPath) {
+        //values are "<name>,<city>" and are indexed by city
+        var byCity = new SecondaryIndex<String, String>("city", value -> value.split(",")[1], Serdes.STRING);
+        var config = byCity.register(LasherConfig.defaults().withShards(4), Serdes.STRING);
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath, config), Serdes.LONG, Serdes.STRING)) {
+            for (long k = 0; k < 1000; k++) {
+                sut.put(k, "user" + k + ",city" + (k % 10));
+            }
+            var inCity = sut.getBy(byCity, "city3");
+            assertEquals(100, inCity.size());
+            assertEquals("user13,city3", inCity.get(13L));
+
+            sut.put(13L, "user13,city4");
+            sut.remove(23L);
+            sut.compute(33L, (k, v) -> "user33,city5");
+            assertEquals(97, sut.getBy(byCity, "city3").size());
+            assertEquals(101, sut.getBy(byCity, "city4").size());
+            assertTrue(sut.getBy(byCity, "nowhere").isEmpty());
+        }
+
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath, config), Serdes.LONG, Serdes.STRING)) {
+            assertEquals(97, sut.getBy(byCity, "city3").size());
+            assertEquals("user33,city5", sut.getBy(byCity, "city5").get(33L));
+        }
+
+        //an index added to an existing store is built from its records
+        var byName = new SecondaryIndex<String, String>("name", value -> value.split(",")[0], Serdes.STRING);
+        try (var sut = new LasherMap<>(new LasherDB(tmpPath, byName.register(config, Serdes.STRING)), Serdes.LONG, Serdes.STRING)) {
+            assertEquals(Map.of(42L, "user42,city2"), sut.getBy(byName, "user42"));
+            assertEquals(97, sut.getBy(byCity, "city3").size());
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> LasherConfig.defaults().withSecondaryIndex("../escape", value -> value));
+    }
 }
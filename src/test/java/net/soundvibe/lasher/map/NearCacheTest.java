@@ -0,0 +1,71 @@
+package net.soundvibe.lasher.map;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+class NearCacheTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() {
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    void should_cache_and_evict_by_size() {
+        var sut = new NearCache<Long, String>(100, Tags.of("cache", "size-test"));
+        for (long i = 0; i < 1000; i++) {
+            sut.put(i, "value" + i, sut.stamp(i));
+        }
+        assertTrue(sut.size() <= 100, "size: " + sut.size());
+        assertTrue(sut.size() > 0);
+        assertTrue(registry.get("near-cache-evictions").tag("cache", "size-test").counter().count() >= 900d);
+    }
+
+    @Test
+    void should_evict_by_weight() {
+        var sut = new NearCache<Long, String>(64, String::length, Tags.of("cache", "weight-test"));
+        for (long i = 0; i < 100; i++) {
+            sut.put(i, "0123456789", sut.stamp(i));
+        }
+        assertTrue(sut.size() * 10 <= 64, "size: " + sut.size());
+    }
+
+    @Test
+    void should_keep_referenced_entries() {
+        var sut = new NearCache<Long, String>(16, Tags.of("cache", "clock-test"));
+        sut.put(-1L, "hot", sut.stamp(-1L));
+        for (long i = 0; i < 1000; i++) {
+            assertEquals("hot", sut.get(-1L));
+            sut.put(i, "cold", sut.stamp(i));
+        }
+        assertEquals("hot", sut.get(-1L));
+        assertTrue(registry.get("near-cache-hits").tag("cache", "clock-test").counter().count() > 1000d);
+    }
+
+    @Test
+    void should_not_cache_value_read_before_invalidation() {
+        var sut = new NearCache<String, String>(100, Tags.of("cache", "stamp-test"));
+        var stamp = sut.stamp("foo");
+        sut.invalidate("foo");
+        sut.put("foo", "stale", stamp);
+        assertNull(sut.get("foo"));
+
+        sut.put("foo", "fresh", sut.stamp("foo"));
+        assertEquals("fresh", sut.get("foo"));
+        sut.invalidateAll();
+        assertNull(sut.get("foo"));
+        assertEquals(0L, sut.size());
+    }
+}
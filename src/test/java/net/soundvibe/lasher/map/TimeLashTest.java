@@ -1,14 +1,18 @@
 package net.soundvibe.lasher.map;
 
-import net.soundvibe.lasher.db.TimeLash;
+import net.soundvibe.lasher.db.*;
+import net.soundvibe.lasher.map.core.Lasher;
 import net.soundvibe.lasher.serde.Serdes;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
-import java.nio.file.Path;
+import java.io.IOException;
+import java.nio.file.*;
 import java.time.*;
 import java.util.AbstractMap.SimpleEntry;
-import java.util.Set;
+import java.util.*;
 
 import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.*;
@@ -61,6 +65,56 @@ class TimeLashTest {
         }
     }
 
+    @Test
+    void should_delete_expired_buckets_in_background(@TempDir Path tmpDir) throws InterruptedException {
+        var t0 = Instant.parse("2020-02-03T06:10:00Z");
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(2), Duration.ofHours(1), Serdes.STRING, Serdes.STRING)) {
+            sut.put("foo1", "bar1", t0);
+            var expiredDir = tmpDir.resolve(String.valueOf(Instant.parse("2020-02-03T06:00:00Z").getEpochSecond()));
+            assertTrue(Files.exists(expiredDir));
+
+            sut.put("foo2", "bar2", t0.plus(Duration.ofHours(3)));
+            assertNull(sut.get("foo1", t0));
+            assertNull(sut.getLatest("foo1"));
+            assertEquals(1L, sut.size());
+
+            for (int i = 0; i < 100 && Files.exists(expiredDir); i++) {
+                Thread.sleep(50L);
+            }
+            assertFalse(Files.exists(expiredDir));
+            assertEquals("bar2", sut.getLatest("foo2"));
+        }
+    }
+
+    @Test
+    void should_reuse_files_of_expired_buckets(@TempDir Path tmpDir) throws InterruptedException, IOException {
+        var t0 = Instant.parse("2020-02-03T06:10:00Z");
+        var config = LasherConfig.defaults().withShards(1);
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(2), Duration.ofHours(1), Serdes.STRING, Serdes.STRING,
+                config, 1000L)) {
+            sut.put("foo1", "bar1", t0);
+            sut.put("foo2", "bar2", t0.plus(Duration.ofHours(3)));
+
+            var pooledDir = tmpDir.resolve("pool").resolve(String.valueOf(Instant.parse("2020-02-03T06:00:00Z").getEpochSecond()));
+            for (int i = 0; i < 100 && Files.notExists(pooledDir); i++) {
+                Thread.sleep(50L);
+            }
+            assertTrue(Files.exists(pooledDir.resolve("shard_0")));
+            assertFalse(Files.exists(pooledDir.resolve("shard_1")));
+            try (var files = Files.list(pooledDir.resolve("shard_0"))) {
+                assertEquals(Set.of("index.lasher", "data.lasher"),
+                        files.map(file -> file.getFileName().toString()).collect(toSet()));
+            }
+            assertEquals(Lasher.MB_32, Files.size(pooledDir.resolve("shard_0").resolve("index.lasher")));
+
+            sut.put("foo3", "bar3", t0.plus(Duration.ofHours(4)));
+            assertFalse(Files.exists(pooledDir));
+            assertNull(sut.get("foo1", t0.plus(Duration.ofHours(4))));
+            assertEquals("bar3", sut.get("foo3", t0.plus(Duration.ofHours(4))));
+            assertEquals(2L, sut.size());
+        }
+    }
+
     @Test
     void should_not_expire_old_entries_6_hour_bucket(@TempDir Path tmpDir) {
         try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(6), Duration.ofHours(6), Serdes.STRING, Serdes.STRING)) {
@@ -104,4 +158,218 @@ class TimeLashTest {
             assertEquals("test1", sut.remove(1L, Instant.now()));
         }
     }
+
+    @Test
+    void should_find_latest_and_ranged_values_across_buckets(@TempDir Path tmpDir) {
+        var t0 = Instant.parse("2020-02-03T06:10:00Z");
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(24), Serdes.STRING, Serdes.STRING)) {
+            for (int h = 0; h < 10; h++) {
+                sut.put("every-hour", "value" + h, t0.plus(Duration.ofHours(h)));
+                if (h % 3 == 0) {
+                    sut.put("every-third-hour", "value" + h, t0.plus(Duration.ofHours(h)));
+                }
+            }
+            assertEquals("value9", sut.getLatest("every-hour"));
+            assertEquals("value9", sut.getLatest("every-third-hour"));
+            assertNull(sut.getLatest("absent"));
+
+            var range = sut.getRange("every-third-hour", t0.plus(Duration.ofHours(2)), t0.plus(Duration.ofHours(6)));
+            assertEquals(List.of("value3", "value6"), List.copyOf(range.values()));
+            assertEquals(Instant.parse("2020-02-03T09:00:00Z").getEpochSecond(), range.firstKey());
+            assertEquals(10, sut.getRange("every-hour", t0, t0.plus(Duration.ofHours(9))).size());
+            assertTrue(sut.getRange("absent", t0, t0.plus(Duration.ofHours(9))).isEmpty());
+        }
+
+        //Bloom filters are persisted beside buckets and loaded when buckets are reopened
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(24), Serdes.STRING, Serdes.STRING)) {
+            assertEquals("value0", sut.put("every-hour", "new", t0));
+            assertEquals("new", sut.get("every-hour", t0));
+            assertEquals("value9", sut.getLatest("every-hour"));
+            assertEquals("value0", sut.get("every-third-hour", t0));
+        }
+    }
+
+    @Test
+    void should_discover_existing_buckets_on_restart(@TempDir Path tmpDir) throws InterruptedException {
+        var t0 = Instant.parse("2020-02-03T06:10:00Z");
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(24), Serdes.STRING, Serdes.STRING)) {
+            for (int h = 0; h < 6; h++) {
+                sut.put("foo", "bar" + h, t0.plus(Duration.ofHours(h)));
+            }
+        }
+
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(24), Serdes.STRING, Serdes.STRING)) {
+            assertEquals("bar2", sut.get("foo", t0.plus(Duration.ofHours(2))));
+            assertEquals("bar5", sut.getLatest("foo"));
+            assertEquals(6L, sut.stream().count());
+            assertEquals(6L, sut.size());
+        }
+
+        //retention is applied to discovered buckets
+        var expiredDir = tmpDir.resolve(String.valueOf(Instant.parse("2020-02-03T06:00:00Z").getEpochSecond()));
+        try (var sut = new TimeLash<>(tmpDir, Duration.ofHours(2), Serdes.STRING, Serdes.STRING)) {
+            assertNull(sut.get("foo", t0));
+            assertEquals(3L, sut.size());
+            assertEquals(Set.of("bar3", "bar4", "bar5"), sut.stream().map(Map.Entry::getValue).collect(toSet()));
+
+            for (int i = 0; i < 100 && Files.exists(expiredDir); i++) {
+                Thread.sleep(50L);
+            }
+            assertFalse(Files.exists(expiredDir));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void should_convert_buckets_out_of_write_window_to_immutable_files(boolean compressed, @TempDir Path tmpDir) throws InterruptedException {
+        var t0 = Instant.parse("2020-02-03T06:10:00Z");
+        var config = TimeLashConfig.defaults(Duration.ofHours(6))
+                .withBucketConfig(LasherConfig.defaults().withShards(2))
+                .withWriteWindow(Duration.ofHours(1), compressed);
+        var coldDir = tmpDir.resolve(String.valueOf(Instant.parse("2020-02-03T06:00:00Z").getEpochSecond()));
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.STRING)) {
+            for (int i = 0; i < 5000; i++) {
+                sut.put("foo" + i, "bar" + i, t0);
+            }
+            sut.put("foo1", "late", t0.plus(Duration.ofHours(1)));
+            var stream = sut.stream().iterator();
+            var streamed = new HashSet<String>();
+            streamed.add(stream.next().getValue());
+            sut.put("foo2", "latest", t0.plus(Duration.ofHours(2)));
+
+            for (int i = 0; i < 100 && Files.exists(coldDir.resolve("shard_0")); i++) {
+                Thread.sleep(50L);
+            }
+            assertFalse(Files.exists(coldDir.resolve("shard_0")));
+            assertTrue(Files.exists(coldDir.resolve("frozen.lasher")));
+
+            assertNull(sut.put("foo0", "ignored", t0));
+            assertEquals("bar0", sut.get("foo0", t0));
+            assertEquals("bar4999", sut.get("foo4999", t0));
+            assertNull(sut.get("foo5000", t0));
+            assertEquals("late", sut.getLatest("foo1"));
+            assertEquals(List.of("bar2", "latest"), new ArrayList<>(sut.getRange("foo2", t0, t0.plus(Duration.ofHours(2))).values()));
+            assertEquals(5002L, sut.size());
+
+            //a stream started before the conversion continues from the immutable file
+            stream.forEachRemaining(entry -> streamed.add(entry.getValue()));
+            assertEquals(5000L, streamed.stream().filter(value -> value.startsWith("bar")).count());
+        }
+
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.STRING)) {
+            assertEquals("bar42", sut.get("foo42", t0));
+            assertEquals(5002L, sut.size());
+            assertEquals(5002L, sut.stream().count());
+        }
+    }
+
+    @Test
+    void should_stream_time_ranges_in_bucket_order(@TempDir Path tmpDir) throws InterruptedException {
+        var t0 = Instant.parse("2020-02-03T00:10:00Z");
+        var config = TimeLashConfig.defaults(Duration.ofHours(24))
+                .withBucketConfig(LasherConfig.defaults().withShards(4))
+                .withWriteWindow(Duration.ofHours(2), false);
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.INTEGER)) {
+            for (int h = 0; h < 6; h++) {
+                for (int i = 0; i < 100; i++) {
+                    sut.put("foo" + i, h, t0.plus(Duration.ofHours(h)));
+                }
+            }
+            var frozenDir = tmpDir.resolve(String.valueOf(Instant.parse("2020-02-03T02:00:00Z").getEpochSecond()));
+            for (int i = 0; i < 100 && Files.notExists(frozenDir.resolve("frozen.lasher")); i++) {
+                Thread.sleep(50L);
+            }
+
+            var from = t0.plus(Duration.ofHours(1));
+            var to = t0.plus(Duration.ofHours(4));
+            var ascending = sut.stream(from, to, false).map(Map.Entry::getValue).toList();
+            assertEquals(400, ascending.size());
+            assertEquals(ascending.stream().sorted().toList(), ascending);
+            assertEquals(Set.of(1, 2, 3, 4), new HashSet<>(ascending));
+
+            var descending = sut.stream(from, to, true).map(Map.Entry::getValue).toList();
+            assertEquals(ascending.stream().sorted(Comparator.reverseOrder()).toList(), descending);
+
+            assertEquals(ascending, sut.parallelStream(from, to, false).map(Map.Entry::getValue).toList());
+            assertEquals(descending, sut.parallelStream(from, to, true).map(Map.Entry::getValue).toList());
+            assertEquals(600L, sut.parallelStream(t0, t0.plus(Duration.ofHours(5)), false).count());
+            assertEquals(0L, sut.stream(t0.plus(Duration.ofHours(6)), t0.plus(Duration.ofHours(9)), false).count());
+        }
+    }
+
+    @Test
+    void should_roll_up_old_buckets_into_coarser_ones(@TempDir Path tmpDir) throws InterruptedException {
+        var t0 = Instant.parse("2020-02-03T00:10:00Z");
+        var config = TimeLashConfig.defaults(Duration.ofHours(48));
+        var rollUp = new RollUp<>(Duration.ofHours(2), Duration.ofHours(6), Long::sum);
+        var rollUpDir = tmpDir.resolve("rollup").resolve(String.valueOf(Instant.parse("2020-02-03T00:00:00Z").getEpochSecond()));
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.LONG, rollUp)) {
+            sut.put("b", 1L, t0.plus(Duration.ofHours(1)));
+            for (int h = 0; h < 9; h++) {
+                sut.put("a", 1L, t0.plus(Duration.ofHours(h)));
+            }
+
+            var rolledUpBucket = tmpDir.resolve(String.valueOf(Instant.parse("2020-02-03T05:00:00Z").getEpochSecond()));
+            for (int i = 0; i < 100 && Files.exists(rolledUpBucket); i++) {
+                Thread.sleep(50L);
+            }
+            assertTrue(Files.exists(rollUpDir));
+            assertFalse(Files.exists(rolledUpBucket));
+
+            assertEquals(6L, sut.get("a", t0));
+            assertEquals(6L, sut.get("a", t0.plus(Duration.ofHours(3))));
+            assertEquals(1L, sut.get("b", t0.plus(Duration.ofHours(5))));
+            assertEquals(1L, sut.get("a", t0.plus(Duration.ofHours(7))));
+            assertEquals(1L, sut.getLatest("b"));
+            assertEquals(List.of(6L, 1L, 1L, 1L), new ArrayList<>(sut.getRange("a", t0, t0.plus(Duration.ofHours(8))).values()));
+            assertEquals(5L, sut.size());
+            assertEquals(List.of(1L, 1L, 1L), sut.stream(t0.plus(Duration.ofHours(6)), t0.plus(Duration.ofHours(8)), false)
+                    .map(Map.Entry::getValue).toList());
+
+            assertNull(sut.put("a", 10L, t0.plus(Duration.ofHours(1))));
+            assertEquals(6L, sut.get("a", t0));
+        }
+
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.LONG, rollUp)) {
+            assertEquals(6L, sut.get("a", t0));
+            assertEquals(5L, sut.size());
+        }
+    }
+
+    @Test
+    void should_estimate_distinct_and_top_keys_across_buckets(@TempDir Path tmpDir) {
+        var t0 = Instant.parse("2020-02-03T00:10:00Z");
+        var config = TimeLashConfig.defaults(Duration.ofHours(48)).withSketches(true);
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.LONG)) {
+            for (int h = 0; h < 3; h++) {
+                for (int i = 0; i < 1000; i++) {
+                    sut.put("key" + (h * 500 + i), 1L, t0.plus(Duration.ofHours(h)));
+                }
+                for (int i = 0; i < 50; i++) {
+                    sut.put("hot", (long) i, t0.plus(Duration.ofHours(h)));
+                }
+                for (int i = 0; i < 20 * (h + 1); i++) {
+                    sut.put("warm", (long) i, t0.plus(Duration.ofHours(h)));
+                }
+            }
+            assertEquals(2002L, sut.distinctKeys(t0, t0.plus(Duration.ofHours(2))), 2002L * 0.05);
+            assertEquals(1002L, sut.distinctKeys(t0, t0), 1002L * 0.05);
+
+            var top = sut.topKeys(t0, t0.plus(Duration.ofHours(2)), 2);
+            assertEquals(List.of("hot", "warm"), top.stream().map(Map.Entry::getKey).toList());
+            assertTrue(top.get(0).getValue() >= 150L);
+            assertTrue(top.get(1).getValue() >= 120L);
+            assertEquals("warm", sut.topKeys(t0.plus(Duration.ofHours(2)), t0.plus(Duration.ofHours(2)), 1).get(0).getKey());
+        }
+
+        try (var sut = new TimeLash<>(tmpDir, config, Serdes.STRING, Serdes.LONG)) {
+            assertTrue(Files.exists(tmpDir.resolve(String.valueOf(t0.minusSeconds(600).getEpochSecond())).resolve("sketch.lasher")));
+            assertEquals(2002L, sut.distinctKeys(t0, t0.plus(Duration.ofHours(2))), 2002L * 0.05);
+            assertEquals("hot", sut.topKeys(t0, t0.plus(Duration.ofHours(2)), 1).get(0).getKey());
+        }
+
+        try (var sut = new TimeLash<>(tmpDir, TimeLashConfig.defaults(Duration.ofHours(48)), Serdes.STRING, Serdes.LONG)) {
+            assertThrows(IllegalStateException.class, () -> sut.distinctKeys(t0, t0));
+        }
+    }
 }
@@ -1,12 +1,16 @@
 package net.soundvibe.lasher.map.core;
 
 import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.soundvibe.lasher.map.model.FileType;
+import net.soundvibe.lasher.map.sync.NoOpLocker;
 import net.soundvibe.lasher.util.*;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
 
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -75,6 +79,290 @@ class LasherTest {
         }
     }
 
+    @Test
+    void should_compute(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            var key = "foo".getBytes();
+            var hash = Hash.hashBytes(key);
+            assertNull(sut.compute(key, old -> null, hash));
+            assertFalse(sut.containsKey(key));
+
+            assertArrayEquals("1".getBytes(), sut.compute(key, old -> old == null ? "1".getBytes() : null, hash));
+            assertArrayEquals("12".getBytes(), sut.compute(key, old -> (new String(old) + "2").getBytes(), hash));
+            assertArrayEquals("12".getBytes(), sut.compute(key, old -> old, hash));
+            assertEquals(1L, sut.size());
+
+            assertNull(sut.compute(key, old -> null, hash));
+            assertFalse(sut.containsKey(key));
+            assertEquals(0L, sut.size());
+        }
+    }
+
+    @Test
+    void should_update_values_in_place_when_they_fit(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            var key = "foo".getBytes();
+            sut.put(key, "12345678901234567890".getBytes());
+            sut.put("bar".getBytes(), "bar".getBytes());
+            final long writePos = sut.dataWritePos.get();
+
+            assertArrayEquals("12345678901234567890".getBytes(), sut.put(key, "abcdefghijklmnopqrst".getBytes()));
+            assertArrayEquals("abcdefghijklmnopqrst".getBytes(), sut.get(key));
+            assertEquals(writePos, sut.dataWritePos.get());
+
+            sut.put(key, "abc".getBytes());
+            assertArrayEquals("abc".getBytes(), sut.get(key));
+            assertEquals(writePos, sut.dataWritePos.get());
+
+            assertTrue(sut.replace(key, Hash.hashBytes(key), "abc".getBytes(), "xyz".getBytes()));
+            assertArrayEquals("xyz".getBytes(), sut.get(key));
+            assertEquals(writePos, sut.dataWritePos.get());
+
+            sut.put(key, "ab".getBytes());
+            assertArrayEquals("ab".getBytes(), sut.get(key));
+            assertTrue(sut.dataWritePos.get() > writePos);
+
+            assertArrayEquals("bar".getBytes(), sut.get("bar".getBytes()));
+            assertEquals(2L, sut.size());
+        }
+    }
+
+    @Test
+    void should_align_inserted_counters(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            for (int i = 0; i < 100; i++) {
+                var key = ("counter" + "x".repeat(i % 9)).getBytes();
+                sut.put(("padding" + i).getBytes(), "x".repeat(i % 7).getBytes());
+                var hash = Hash.hashBytes(key);
+                sut.getAndAdd(key, 1L, hash);
+                final long valuePos = sut.alignedLongPos(key, hash);
+                assertNotEquals(-1L, valuePos);
+                assertTrue(sut.compareAndSetAligned(valuePos, sut.getAndAddAligned(valuePos, 1L) + 1L, 0L));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals("x".repeat(i % 7).getBytes(), sut.get(("padding" + i).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    void should_align_put_counters_once_they_are_updated(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            for (int i = 0; i < 100; i++) {
+                var key = ("counter" + i).getBytes();
+                sut.put(key, BytesSupport.longToBytes(i));
+                sut.put(("padding" + i).getBytes(), "x".repeat(i % 7).getBytes());
+                var hash = Hash.hashBytes(key);
+                if (i % 2 == 0) {
+                    assertEquals(i, sut.getAndAdd(key, 1L, hash));
+                } else {
+                    assertTrue(sut.compareAndSet(key, i, i + 1L, hash));
+                }
+                final long valuePos = sut.alignedLongPos(key, hash);
+                assertNotEquals(-1L, valuePos);
+                assertEquals(i + 1L, sut.getAndAddAligned(valuePos, 1L));
+            }
+            assertEquals(200L, sut.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i + 2L, BytesSupport.bytesToLong(sut.get(("counter" + i).getBytes())));
+                assertArrayEquals("x".repeat(i % 7).getBytes(), sut.get(("padding" + i).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    void should_reuse_records_of_expired_keys(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32, true, Tags.empty(),
+                new StoreOptions(BaseLinearHashMap.FEATURE_EXPIRY, 0L, OrderedIndex.BY_KEY))) {
+            final long expiresAt = System.currentTimeMillis() + 10L;
+            for (var key : List.of("put", "putIfAbsent", "compute", "counter")) {
+                sut.put(key.getBytes(), BytesSupport.longToBytes(1L), Hash.hashBytes(key.getBytes()), expiresAt);
+            }
+            Thread.sleep(50L);
+
+            assertNull(sut.put("put".getBytes(), "value".getBytes()));
+            assertNull(sut.putIfAbsent("putIfAbsent".getBytes(), "value".getBytes()));
+            assertArrayEquals("value".getBytes(), sut.compute("compute".getBytes(),
+                    value -> value == null ? "value".getBytes() : null, Hash.hashBytes("compute".getBytes())));
+            assertEquals(0L, sut.getAndAdd("counter".getBytes(), 5L, Hash.hashBytes("counter".getBytes())));
+            assertEquals(4L, sut.size());
+
+            assertEquals(0L, sut.sweepExpired(0L, Integer.MAX_VALUE));
+            assertEquals(4L, sut.size());
+            var keys = new ArrayList<String>();
+            sut.orderedIterator(new NoOpLocker(), null, null, false)
+                    .forEachRemaining(entry -> keys.add(new String(entry.getKey())));
+            assertEquals(List.of("compute", "counter", "put", "putIfAbsent"), keys);
+            assertEquals(5L, BytesSupport.bytesToLong(sut.get("counter".getBytes())));
+        }
+    }
+
+    @Test
+    void should_notify_listener_of_every_entry_change(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new Lasher(tmpPath, 1024L, 4096L, true, Tags.empty(),
+                new StoreOptions(BaseLinearHashMap.FEATURE_EXPIRY, 100L, null))) {
+            var entries = new HashMap<ByteBuffer, ByteBuffer>();
+            sut.setListener((key, before, after) -> {
+                var previous = after == null ?
+                        entries.remove(ByteBuffer.wrap(key)) : entries.put(ByteBuffer.wrap(key), ByteBuffer.wrap(after));
+                assertEquals(before == null ? null : ByteBuffer.wrap(before), previous);
+            });
+            final long expiresAt = System.currentTimeMillis() + 20L;
+            for (int i = 0; i < 1000; i++) {
+                var key = ("key" + i).getBytes();
+                var hash = Hash.hashBytes(key);
+                sut.put(key, ("value" + i).getBytes(), hash, i % 3 == 0 ? expiresAt : Lasher.NO_EXPIRY);
+                sut.getAndAdd(("counter" + i % 10).getBytes(), 1L, Hash.hashBytes(("counter" + i % 10).getBytes()));
+                if (i % 5 == 0) {
+                    sut.remove(("key" + (i / 2)).getBytes(), Hash.hashBytes(("key" + (i / 2)).getBytes()));
+                }
+                if (i % 7 == 0) {
+                    sut.compute(key, value -> "computed".getBytes(), hash);
+                }
+                sut.compactStep(1 << 16);
+            }
+            Thread.sleep(50L);
+            sut.sweepExpired(0L, Integer.MAX_VALUE);
+
+            var live = new HashMap<ByteBuffer, ByteBuffer>();
+            sut.iterator().forEachRemaining(entry ->
+                    live.put(ByteBuffer.wrap(entry.getKey()), ByteBuffer.wrap(entry.getValue())));
+            assertEquals(live, entries);
+            assertEquals(sut.size(), entries.size());
+        }
+    }
+
+    @Test
+    void should_evict_entries_not_read_recently(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, 1024L, 4096L, true, Tags.of("test", "eviction"),
+                StoreOptions.NONE.withMaxEntries(100L))) {
+            var counter = "counter".getBytes();
+            sut.getAndAdd(counter, 1L, Hash.hashBytes(counter));
+            for (int i = 0; i < 2000; i++) {
+                sut.put(("key" + i).getBytes(), ("value" + i).getBytes());
+                sut.getAndAdd(counter, 1L, Hash.hashBytes(counter));
+                sut.compactStep(1 << 16);
+                assertTrue(sut.size() <= 100L);
+            }
+            assertEquals(100L, sut.size());
+            assertEquals(2001L, BytesSupport.bytesToLong(sut.get(counter)));
+            assertNotEquals(-1L, sut.alignedLongPos(counter, Hash.hashBytes(counter)));
+            assertArrayEquals("value1999".getBytes(), sut.get("key1999".getBytes()));
+            assertTrue(registry.get("evicted-entries").tag("test", "eviction").counter().count() >= 1900.0);
+            assertTrue(sut.compactions > 0);
+            assertTrue(sut.dataWritePos.get() < 20_000L);
+
+            var iterated = new ArrayList<Map.Entry<byte[], byte[]>>();
+            sut.iterator().forEachRemaining(iterated::add);
+            assertEquals(100, iterated.size());
+        }
+
+        try (var sut = new Lasher(tmpPath, 1024L, 4096L)) {
+            assertEquals(100L, sut.size());
+            assertArrayEquals("value1999".getBytes(), sut.get("key1999".getBytes()));
+        }
+    }
+
+    @Test
+    void should_compact_and_recover_interrupted_compaction(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            for (int i = 0; i < 1000; i++) {
+                sut.put(("key" + i).getBytes(), ("value" + i).getBytes());
+            }
+            for (int i = 0; i < 1000; i += 2) {
+                sut.remove(("key" + i).getBytes());
+            }
+            final long writePos = sut.dataWritePos.get();
+            sut.compact();
+            assertTrue(sut.dataWritePos.get() < writePos);
+            assertEquals(500L, sut.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i % 2 == 0 ? null : "value" + i, Optional.ofNullable(sut.get(("key" + i).getBytes()))
+                        .map(String::new).orElse(null));
+            }
+        }
+
+        var compactionDir = Files.createDirectories(tmpPath.resolve(BaseLinearHashMap.COMPACTION_DIR));
+        Files.write(compactionDir.resolve(FileType.DATA.filename), new byte[16]);
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            assertFalse(Files.exists(compactionDir));
+            assertEquals(500L, sut.size());
+            assertArrayEquals("value1".getBytes(), sut.get("key1".getBytes()));
+        }
+    }
+
+    @Test
+    void should_compact_in_steps_between_writes(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, 1024L, 4096L)) {
+            var expected = new HashMap<String, Long>();
+            var rng = new Random(42L);
+            for (int i = 0; i < 20_000; i++) {
+                final var key = "key" + rng.nextInt(500);
+                final long hash = Hash.hashBytes(key.getBytes());
+                switch (rng.nextInt(4)) {
+                    case 0 -> {
+                        sut.put(key.getBytes(), BytesSupport.longToBytes(i), hash);
+                        expected.put(key, (long) i);
+                    }
+                    case 1 -> {
+                        sut.remove(key.getBytes(), hash);
+                        expected.remove(key);
+                    }
+                    case 2 -> {
+                        sut.getAndAdd(key.getBytes(), 1L, hash);
+                        expected.merge(key, 1L, Long::sum);
+                    }
+                    default -> {
+                        final long valuePos = sut.alignedLongPos(key.getBytes(), hash);
+                        if (valuePos != -1L) {
+                            sut.getAndAddAligned(valuePos, 1L);
+                            expected.merge(key, 1L, Long::sum);
+                        }
+                    }
+                }
+                sut.compactStep(1 << 16);
+            }
+            assertTrue(sut.compactions > 0);
+            assertEquals(expected.size(), sut.size());
+            var iterated = new HashMap<String, Long>();
+            sut.iterator().forEachRemaining(entry ->
+                    iterated.put(new String(entry.getKey()), BytesSupport.bytesToLong(entry.getValue())));
+            assertEquals(expected, iterated);
+            expected.forEach((key, value) -> assertEquals(value, BytesSupport.bytesToLong(sut.get(key.getBytes()))));
+        }
+    }
+
+    @Test
+    void should_defer_the_end_of_compaction_while_scans_run(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, 1024L, 4096L)) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 200; i++) {
+                    sut.put(("key" + i).getBytes(), "x".repeat(50 + round * 10).getBytes());
+                }
+            }
+            final long writePos = sut.dataWritePos.get();
+            var scanned = new ArrayList<String>();
+            sut.scan(new NoOpLocker(), (key, value) -> {
+                if (scanned.isEmpty()) {
+                    while (sut.compactStep(1 << 16)) {
+                        assertEquals(0, sut.compactions);
+                    }
+                }
+                var bytes = new byte[key.remaining()];
+                key.get(bytes);
+                scanned.add(new String(bytes));
+            });
+            assertEquals(200, scanned.size());
+            assertEquals(0, sut.compactions);
+
+            assertFalse(sut.compactStep(1 << 16));
+            assertEquals(1, sut.compactions);
+            assertTrue(sut.dataWritePos.get() < writePos);
+            assertEquals(200L, sut.size());
+            assertArrayEquals("x".repeat(70).getBytes(), sut.get("key199".getBytes()));
+        }
+    }
+
     @Test
     void should_rehash(@TempDir Path tmpPath) {
         long fileSize = (long) Math.pow(2, 8L);
@@ -163,6 +451,59 @@ class LasherTest {
         }
     }
 
+    @Test
+    void should_return_record_seen_by_has_next_after_compaction(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            sut.put("key1".getBytes(), "value1".getBytes());
+            var it = sut.iterator();
+            assertTrue(it.hasNext());
+
+            sut.remove("key1".getBytes());
+            sut.compact();
+
+            var entry = it.next();
+            assertArrayEquals("key1".getBytes(), entry.getKey());
+            assertArrayEquals("value1".getBytes(), entry.getValue());
+            assertFalse(it.hasNext());
+            assertThrows(NoSuchElementException.class, it::next);
+        }
+    }
+
+    @Test
+    void should_iterate_projections(@TempDir Path tmpPath) {
+        try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
+            long nInserts = 1000;
+            for (long k = 0; k < nInserts; k++) {
+                sut.put(BytesSupport.longToBytes(k), BytesSupport.longToBytes(k * 2));
+            }
+            var locker = new NoOpLocker();
+
+            var keys = new HashSet<Long>();
+            sut.keyIterator(locker).forEachRemaining(k -> keys.add(BytesSupport.bytesToLong(k)));
+            assertEquals(nInserts, keys.size());
+            for (long k = 0; k < nInserts; k++) {
+                assertTrue(keys.contains(k));
+            }
+
+            var values = new HashSet<Long>();
+            sut.valueIterator(locker).forEachRemaining(v -> values.add(BytesSupport.bytesToLong(v)));
+            assertEquals(nInserts, values.size());
+            for (long k = 0; k < nInserts; k++) {
+                assertTrue(values.contains(k * 2));
+            }
+
+            var headers = sut.headerIterator(locker);
+            long count = 0;
+            while (headers.hasNext()) {
+                var header = headers.next();
+                assertEquals(Long.BYTES, header.keyLength());
+                assertEquals(Long.BYTES, header.valueLength());
+                count++;
+            }
+            assertEquals(nInserts, count);
+        }
+    }
+
     @Test
     void should_work_when_collisions_occur(@TempDir Path tmpPath) {
         try (var sut = new Lasher(tmpPath, MB_32, MB_32)) {
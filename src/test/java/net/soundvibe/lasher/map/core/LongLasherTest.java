@@ -0,0 +1,131 @@
+package net.soundvibe.lasher.map.core;
+
+import io.micrometer.core.instrument.Tags;
+import net.soundvibe.lasher.map.model.FileType;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+class LongLasherTest {
+
+    @Test
+    void should_do_basic_operations(@TempDir Path tmpPath) {
+        try (var sut = new LongLasher(tmpPath)) {
+            assertFalse(sut.containsKey(1L));
+            assertEquals(-1L, sut.getOrDefault(1L, -1L));
+
+            assertEquals(0L, sut.put(1L, 10L));
+            assertEquals(10L, sut.put(1L, 11L));
+            assertEquals(11L, sut.getOrDefault(1L, -1L));
+
+            assertEquals(5L, sut.increment(2L, 5L));
+            assertEquals(7L, sut.increment(2L, 2L));
+
+            assertEquals(0L, sut.put(0L, 100L));
+            assertEquals(100L, sut.getOrDefault(0L, -1L));
+            assertEquals(3L, sut.size());
+
+            assertTrue(sut.remove(0L));
+            assertFalse(sut.remove(0L));
+            assertTrue(sut.remove(1L));
+            assertFalse(sut.containsKey(1L));
+            assertEquals(0L, sut.increment(1L, 0L));
+            assertEquals(2L, sut.size());
+
+            sut.clear();
+            assertEquals(0L, sut.size());
+            assertFalse(sut.containsKey(2L));
+        }
+    }
+
+    @Test
+    void should_grow_and_remove_without_losing_entries(@TempDir Path tmpPath) {
+        var expected = new HashMap<Long, Long>();
+        var random = new Random(42L);
+        try (var sut = new LongLasher(tmpPath, Long.BYTES, 16L, Tags.empty())) {
+            for (int i = 0; i < 100_000; i++) {
+                long key = random.nextInt(50_000);
+                if (random.nextInt(4) == 0) {
+                    assertEquals(expected.remove(key) != null, sut.remove(key));
+                } else {
+                    sut.put(key, i);
+                    expected.put(key, (long) i);
+                }
+            }
+            assertEquals(expected.size(), sut.size());
+            expected.forEach((key, value) -> assertEquals(value, sut.getOrDefault(key, -1L)));
+
+            var actual = new HashMap<Long, Long>();
+            sut.forEach(actual::put);
+            assertEquals(expected, actual);
+        }
+        assertFalse(Files.exists(tmpPath.resolve("resize")));
+
+        try (var sut = new LongLasher(tmpPath)) {
+            assertEquals(expected.size(), sut.size());
+            expected.forEach((key, value) -> assertEquals(value, sut.getOrDefault(key, -1L)));
+        }
+    }
+
+    @Test
+    void should_store_fixed_width_values(@TempDir Path tmpPath) {
+        try (var sut = new LongLasher(tmpPath, 12)) {
+            var value = new byte[12];
+            for (long key = 0; key < 1000; key++) {
+                Arrays.fill(value, (byte) key);
+                assertTrue(sut.put(key, value));
+            }
+            Arrays.fill(value, (byte) 7);
+            assertFalse(sut.put(7L, value));
+
+            var dst = new byte[12];
+            for (long key = 0; key < 1000; key++) {
+                assertTrue(sut.get(key, dst));
+                var expected = new byte[12];
+                Arrays.fill(expected, (byte) key);
+                assertArrayEquals(expected, dst);
+            }
+            assertFalse(sut.get(1000L, dst));
+
+            assertThrows(IllegalArgumentException.class, () -> sut.put(1L, new byte[8]));
+            assertThrows(IllegalStateException.class, () -> sut.increment(1L, 1L));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new LongLasher(tmpPath, 8));
+    }
+
+    @Test
+    void should_keep_counts_in_header_and_grow_a_full_table(@TempDir Path tmpPath) throws Exception {
+        try (var sut = new LongLasher(tmpPath, Long.BYTES, 16L, Tags.empty())) {
+            for (long key = 1L; key <= 10L; key++) {
+                sut.put(key, key);
+            }
+            try (var channel = FileChannel.open(tmpPath.resolve(FileType.SLOTS.filename), StandardOpenOption.READ)) {
+                var header = ByteBuffer.allocate(Long.BYTES);
+                channel.read(header, 0L);
+                assertEquals(10L, header.flip().order(ByteOrder.nativeOrder()).getLong());
+            }
+        }
+        try (var channel = FileChannel.open(tmpPath.resolve(FileType.SLOTS.filename), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES), 0L);
+        }
+
+        try (var sut = new LongLasher(tmpPath, Long.BYTES, 16L, Tags.empty())) {
+            for (long key = 11L; key <= 30L; key++) {
+                sut.put(key, key);
+            }
+            assertFalse(sut.containsKey(31L));
+            assertFalse(sut.remove(31L));
+            for (long key = 1L; key <= 30L; key++) {
+                assertEquals(key, sut.getOrDefault(key, -1L));
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.soundvibe.lasher.map.core;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+class OrderedIndexTest {
+
+    @Test
+    void should_keep_entries_ordered_across_page_splits(@TempDir Path tmpPath) {
+        var expected = new TreeSet<byte[]>(Arrays::compareUnsigned);
+        var random = new Random(42L);
+        try (var sut = new OrderedIndex(tmpPath)) {
+            for (int i = 0; i < 50_000; i++) {
+                var entry = ("key" + random.nextInt(30_000) + "-".repeat(random.nextInt(40))).getBytes();
+                if (random.nextInt(4) == 0) {
+                    assertEquals(expected.remove(entry), sut.remove(entry));
+                } else {
+                    assertEquals(expected.add(entry), sut.add(entry));
+                }
+            }
+            assertEquals(expected.size(), sut.size());
+            assertEntries(new ArrayList<>(expected), scanAll(sut, null, null, false));
+            assertEntries(new ArrayList<>(expected.descendingSet()), scanAll(sut, null, null, true));
+
+            var lower = "key1".getBytes();
+            var upper = "key2".getBytes();
+            assertEntries(new ArrayList<>(expected.subSet(lower, true, upper, false)), scanAll(sut, lower, upper, false));
+            assertEntries(new ArrayList<>(expected.subSet(lower, true, upper, false).descendingSet()), scanAll(sut, lower, upper, true));
+        }
+
+        try (var sut = new OrderedIndex(tmpPath)) {
+            assertEquals(expected.size(), sut.size());
+            assertEntries(new ArrayList<>(expected), scanAll(sut, null, null, false));
+
+            sut.clear();
+            assertEquals(0L, sut.size());
+            assertTrue(sut.scan(null, null, null, false, 10).isEmpty());
+        }
+    }
+
+    @Test
+    void should_encode_entries_by_sort_keys(@TempDir Path tmpPath) {
+        UnaryOperator<byte[]> sortKey = key -> key.length < 2 ? null : new byte[] {key[1], 0};
+        var key = new byte[] {7, 0, 0, 1};
+        var entry = OrderedIndex.entryOf(sortKey, key);
+        assertArrayEquals(key, OrderedIndex.keyOf(sortKey, entry));
+        assertNull(OrderedIndex.entryOf(sortKey, new byte[] {1}));
+        assertSame(key, OrderedIndex.entryOf(OrderedIndex.BY_KEY, key));
+
+        try (var sut = new OrderedIndex(tmpPath)) {
+            sut.add(OrderedIndex.entryOf(sortKey, new byte[] {1, 2}));
+            sut.add(OrderedIndex.entryOf(sortKey, new byte[] {2, 1}));
+            sut.add(OrderedIndex.entryOf(sortKey, new byte[] {3, 1}));
+            sut.add(OrderedIndex.entryOf(sortKey, new byte[] {0, (byte) 0xFF}));
+
+            var keys = scanAll(sut, null, null, false).stream()
+                    .map(e -> OrderedIndex.keyOf(sortKey, e)[0])
+                    .toList();
+            assertEquals(List.of((byte) 2, (byte) 3, (byte) 1, (byte) 0), keys);
+
+            var lower = OrderedIndex.boundOf(sortKey, new byte[] {1});
+            var inPrefix = scanAll(sut, lower, OrderedIndex.prefixEnd(lower), false);
+            assertEquals(2, inPrefix.size());
+        }
+
+        assertArrayEquals(new byte[] {1, 3}, OrderedIndex.prefixEnd(new byte[] {1, 2, (byte) 0xFF}));
+        assertNull(OrderedIndex.prefixEnd(new byte[] {(byte) 0xFF}));
+        assertThrows(IllegalArgumentException.class,
+                () -> OrderedIndex.requireFits(new byte[OrderedIndex.MAX_ENTRY_LENGTH + 1]));
+    }
+
+    private static List<byte[]> scanAll(OrderedIndex sut, byte[] lower, byte[] upper, boolean descending) {
+        var result = new ArrayList<byte[]>();
+        byte[] after = null;
+        List<byte[]> batch;
+        do {
+            batch = sut.scan(lower, upper, after, descending, 100);
+            result.addAll(batch);
+            if (!batch.isEmpty()) {
+                after = batch.get(batch.size() - 1);
+            }
+        } while (batch.size() == 100);
+        return result;
+    }
+
+    private static void assertEntries(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.soundvibe.lasher.map.sync;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+class InstrumentedLockerTest {
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+
+	@BeforeEach
+	void setUp() {
+		Metrics.addRegistry(registry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		Metrics.removeRegistry(registry);
+	}
+
+	@Test
+	void should_record_wait_and_hold_times() {
+		var tags = Tags.of("shard", "instrumented-test");
+		var sut = new InstrumentedLocker(new ReentrantReadWriteLock(), tags);
+		sut.readLock();
+		sut.readLock();
+		sut.readUnlock();
+		sut.readUnlock();
+		sut.writeLock();
+		sut.writeLock();
+		sut.writeUnlock();
+		sut.writeUnlock();
+
+		assertEquals(2L, timer("lock-wait", "read").count());
+		assertEquals(2L, timer("lock-wait", "write").count());
+		assertEquals(1L, timer("lock-hold", "read").count());
+		assertEquals(1L, timer("lock-hold", "write").count());
+		assertEquals(0d, registry.get("lock-queue-length").tag("shard", "instrumented-test").gauge().value());
+	}
+
+	private Timer timer(String name, String mode) {
+		return registry.get(name)
+				.tag("shard", "instrumented-test")
+				.tag("mode", mode)
+				.timer();
+	}
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.*;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.stream.*;
 
@@ -23,6 +24,15 @@ class LongSerdeTest {
         assertEquals(value, actual);
     }
 
+    @ParameterizedTest
+    @MethodSource("longProvider")
+    void should_read_write_longs_using_buffers(Long value) {
+        var buffer = ByteBuffer.allocate(sut.sizeOf(value));
+        sut.write(value, buffer);
+        assertArrayEquals(sut.toBytes(value), buffer.array());
+        assertEquals(value, sut.read(buffer.flip()));
+    }
+
     static Stream<Long> longProvider() {
         var random = new Random();
         return IntStream.range(0, 100)
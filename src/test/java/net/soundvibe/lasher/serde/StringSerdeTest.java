@@ -4,10 +4,11 @@ import org.junit.jupiter.api.*;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.*;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.stream.*;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 @DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
 class StringSerdeTest {
@@ -23,6 +24,17 @@ class StringSerdeTest {
         assertEquals(value, actual);
     }
 
+    @ParameterizedTest
+    @ValueSource(strings = {"", "ascii", "ąčęėįšųūž", "日本語", "emoji \uD83D\uDE00", "unpaired \uD83D"})
+    @MethodSource("stringProvider")
+    void should_read_write_strings_using_buffers(String value) {
+        var buffer = ByteBuffer.allocate(sut.sizeOf(value));
+        sut.write(value, buffer);
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(sut.toBytes(value), buffer.array());
+        assertEquals(sut.fromBytes(buffer.array()), sut.read(buffer.flip()));
+    }
+
     static Stream<String> stringProvider() {
         var random = new Random();
         return IntStream.range(0, 100)